@@ -9,6 +9,8 @@ public enum PoiExcelColumnValueType {
 	CELL_STYLE(true, false),
 	/** cell font */
 	CELL_FONT(true, false),
+	/** cell value formatted by the data format */
+	CELL_FORMATTED(true, true),
 	/** cell comment */
 	CELL_COMMENT(true, false),
 	/** cell type */
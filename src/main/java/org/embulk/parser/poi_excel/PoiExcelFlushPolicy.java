@@ -0,0 +1,57 @@
+package org.embulk.parser.poi_excel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.embulk.parser.poi_excel.PoiExcelParserPlugin.PluginTask;
+import org.embulk.spi.Exec;
+import org.embulk.spi.PageBuilder;
+import org.slf4j.Logger;
+
+import com.google.common.base.Optional;
+
+/**
+ * decides when the page is flushed.
+ * <p>
+ * by default, the page is not flushed explicitly; PageBuilder flushes it when it becomes full, so full-size pages
+ * are emitted. flush_count and flush_max_latency_millis force a flush of a partly filled page.
+ * </p>
+ */
+public class PoiExcelFlushPolicy {
+	private final Logger log = Exec.getLogger(getClass());
+
+	private final PageBuilder pageBuilder;
+	private final int flushCount;
+	private final long maxLatencyNanos;
+
+	private int count;
+	private long lastFlushNanos;
+
+	public PoiExcelFlushPolicy(PluginTask task, PageBuilder pageBuilder) {
+		this.pageBuilder = pageBuilder;
+		this.flushCount = task.getFlushCount().or(0);
+		Optional<Long> latency = task.getFlushMaxLatencyMillis();
+		this.maxLatencyNanos = latency.isPresent() ? TimeUnit.MILLISECONDS.toNanos(latency.get()) : 0;
+		this.lastFlushNanos = (maxLatencyNanos > 0) ? System.nanoTime() : 0;
+	}
+
+	public void addRecord() {
+		pageBuilder.addRecord();
+
+		if (flushCount > 0 && ++count >= flushCount) {
+			flush();
+			return;
+		}
+		if (maxLatencyNanos > 0 && System.nanoTime() - lastFlushNanos >= maxLatencyNanos) {
+			flush();
+		}
+	}
+
+	protected void flush() {
+		log.trace("flush");
+		pageBuilder.flush();
+		this.count = 0;
+		if (maxLatencyNanos > 0) {
+			this.lastFlushNanos = System.nanoTime();
+		}
+	}
+}
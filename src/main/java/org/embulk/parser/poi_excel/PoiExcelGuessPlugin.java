@@ -0,0 +1,422 @@
+package org.embulk.parser.poi_excel;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.poi.poifs.filesystem.NPOIFSFileSystem;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.util.CellReference;
+import org.embulk.config.ConfigDiff;
+import org.embulk.config.ConfigSource;
+import org.embulk.parser.poi_excel.bean.PoiExcelRowRange;
+import org.embulk.parser.poi_excel.streaming.PoiExcelStreamingReader;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Exec;
+import org.embulk.spi.GuessPlugin;
+import org.slf4j.Logger;
+
+/**
+ * guesses sheets, skip_header_lines and columns from the first rows of the sheets.
+ * <p>
+ * the workbook is read by the streaming reader, and only {@link #SAMPLE_ROWS} rows of each sheet are parsed. the
+ * sample buffer is the head of the file, which can not be opened as a workbook unless the whole file fits in it; so
+ * the file of the local file input is read directly if it can be found.
+ * </p>
+ */
+public class PoiExcelGuessPlugin implements GuessPlugin {
+	private final Logger log = Exec.getLogger(getClass());
+
+	// rows read from each sheet (including the header row)
+	public static final int SAMPLE_ROWS = 100;
+
+	private static final String LONG = "long";
+	private static final String DOUBLE = "double";
+	private static final String TIMESTAMP = "timestamp";
+	private static final String BOOLEAN = "boolean";
+	private static final String STRING = "string";
+
+	@Override
+	public ConfigDiff guess(ConfigSource config, Buffer sample) {
+		ConfigDiff diff = Exec.newConfigDiff();
+
+		ConfigSource parserConfig = config.has("parser") ? config.getNested("parser") : Exec.newConfigSource();
+		String type = parserConfig.get(String.class, "type", PoiExcelParserPlugin.TYPE);
+		if (!type.equals(PoiExcelParserPlugin.TYPE)) {
+			return diff;
+		}
+		byte[] header = new byte[Math.min(sample.limit(), 8)];
+		sample.getBytes(0, header, 0, header.length);
+		if (!isExcel(header)) {
+			return diff;
+		}
+
+		List<String> sheetNames = new ArrayList<>();
+		if (parserConfig.has("sheet")) {
+			sheetNames.add(parserConfig.get(String.class, "sheet"));
+		}
+		if (parserConfig.has("sheets")) {
+			for (Object name : parserConfig.get(List.class, "sheets")) {
+				sheetNames.add(name.toString());
+			}
+		}
+
+		File temp = null;
+		try {
+			File file = findLocalFile(config);
+			if (file == null) {
+				temp = File.createTempFile("embulk-poi_excel-guess-", ".tmp");
+				writeSample(sample, temp);
+				file = temp;
+			}
+
+			Map<String, Object> guessed;
+			try (PoiExcelStreamingReader reader = PoiExcelStreamingReader.open(file)) {
+				if (reader == null) {
+					return diff;
+				}
+				guessed = guess(reader, sheetNames);
+			}
+
+			ConfigDiff parserDiff = diff.getNestedOrSetEmpty("parser");
+			parserDiff.set("type", PoiExcelParserPlugin.TYPE);
+			for (Map.Entry<String, Object> entry : guessed.entrySet()) {
+				parserDiff.set(entry.getKey(), entry.getValue());
+			}
+			return diff;
+		} catch (IOException | RuntimeException e) {
+			// e.g. the sample buffer is smaller than the file
+			log.warn("poi_excel guess failed. {}", e.toString());
+			log.debug("poi_excel guess failed", e);
+			return diff;
+		} finally {
+			if (temp != null) {
+				temp.delete();
+			}
+		}
+	}
+
+	private static boolean isExcel(byte[] header) {
+		if (header.length < 8) {
+			return false;
+		}
+		// ZIP (Office Open XML) or OLE2 (BIFF8)
+		return (header[0] == 'P' && header[1] == 'K' && header[2] == 3 && header[3] == 4)
+				|| NPOIFSFileSystem.hasPOIFSHeader(header);
+	}
+
+	private static void writeSample(Buffer sample, File file) throws IOException {
+		byte[] bytes = new byte[sample.limit()];
+		sample.getBytes(0, bytes, 0, bytes.length);
+		try (OutputStream os = new FileOutputStream(file)) {
+			os.write(bytes);
+		}
+	}
+
+	/**
+	 * @param config
+	 *            config of the input plugin
+	 * @return the first file of the local file input (same order as path_prefix). null if not found
+	 */
+	protected File findLocalFile(ConfigSource config) {
+		if (!"file".equals(config.get(String.class, "type", null)) || !config.has("path_prefix")
+				|| config.has("decoders")) {
+			return null;
+		}
+
+		File prefix = new File(config.get(String.class, "path_prefix")).getAbsoluteFile();
+		File dir = prefix.isDirectory() ? prefix : prefix.getParentFile();
+		if (dir == null) {
+			return null;
+		}
+		return findFile(dir, prefix.getPath());
+	}
+
+	private static File findFile(File dir, String prefix) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return null;
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			String path = file.getPath();
+			if (file.isDirectory()) {
+				if (path.startsWith(prefix) || prefix.startsWith(path + File.separator)) {
+					File found = findFile(file, prefix);
+					if (found != null) {
+						return found;
+					}
+				}
+			} else if (path.startsWith(prefix)) {
+				return file;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param reader
+	 *            streaming reader
+	 * @param sheetNames
+	 *            sheet names in the config (can use wildcards). the first sheet is used if empty
+	 * @return guessed parser config (sheets, skip_header_lines, sheet_options, columns)
+	 */
+	protected Map<String, Object> guess(PoiExcelStreamingReader reader, List<String> sheetNames) {
+		Map<String, Object> guessed = new LinkedHashMap<>();
+
+		List<String> allSheetNames = reader.getSheetNames();
+		List<String> list = new ArrayList<>();
+		for (String sheetName : PoiExcelParserPlugin.resolveSheetName(allSheetNames, sheetNames)) {
+			if (allSheetNames.contains(sheetName)) {
+				list.add(sheetName);
+			}
+		}
+		if (list.isEmpty()) {
+			if (allSheetNames.isEmpty()) {
+				return guessed;
+			}
+			list.add(allSheetNames.get(0));
+			guessed.put("sheets", list);
+		}
+
+		final Map<String, List<SampleRow>> samples = new LinkedHashMap<>();
+		Map<String, PoiExcelRowRange> rowRangeMap = new HashMap<>();
+		for (String sheetName : list) {
+			rowRangeMap.put(sheetName, new PoiExcelRowRange(0, Integer.MAX_VALUE, SAMPLE_ROWS));
+		}
+		reader.setRowRanges(rowRangeMap);
+		reader.read(list, new PoiExcelStreamingReader.RowHandler() {
+			private List<SampleRow> rows;
+
+			@Override
+			public void startSheet(String sheetName, int sheetIndex) {
+				this.rows = new ArrayList<>();
+				samples.put(sheetName, rows);
+			}
+
+			@Override
+			public void handleRow(Row row) {
+				SampleRow sample = new SampleRow(row);
+				if (!sample.cells.isEmpty()) {
+					rows.add(sample);
+				}
+			}
+
+			@Override
+			public void endSheet(String sheetName) {
+			}
+		});
+
+		// the first rows of the sheets are the header candidates
+		List<SampleRow> firstRows = new ArrayList<>();
+		List<SampleRow> dataRows = new ArrayList<>();
+		for (List<SampleRow> rows : samples.values()) {
+			if (rows.isEmpty()) {
+				continue;
+			}
+			firstRows.add(rows.get(0));
+			dataRows.addAll(rows.subList(1, rows.size()));
+		}
+		if (firstRows.isEmpty()) {
+			return guessed;
+		}
+		SampleRow headerRow = firstRows.get(0);
+
+		Map<Integer, String> types = new TreeMap<>();
+		for (SampleRow row : dataRows) {
+			for (Map.Entry<Integer, SampleCell> entry : row.cells.entrySet()) {
+				Integer index = entry.getKey();
+				types.put(index, mergeType(types.get(index), entry.getValue().type));
+			}
+		}
+		boolean hasHeader = isHeader(headerRow, dataRows, types);
+		if (!hasHeader) {
+			// the first rows are data
+			for (SampleRow row : firstRows) {
+				for (Map.Entry<Integer, SampleCell> entry : row.cells.entrySet()) {
+					Integer index = entry.getKey();
+					types.put(index, mergeType(types.get(index), entry.getValue().type));
+				}
+			}
+		}
+
+		// skip_header_lines of each sheet
+		Integer skipHeaderLines = null;
+		Map<String, Object> sheetOptions = new LinkedHashMap<>();
+		for (Map.Entry<String, List<SampleRow>> entry : samples.entrySet()) {
+			List<SampleRow> rows = entry.getValue();
+			if (rows.isEmpty()) {
+				continue;
+			}
+			int skip = rows.get(0).rowIndex + (hasHeader ? 1 : 0);
+			if (skipHeaderLines == null) {
+				skipHeaderLines = skip;
+			} else if (skip != skipHeaderLines) {
+				Map<String, Object> option = new LinkedHashMap<>();
+				option.put("skip_header_lines", skip);
+				sheetOptions.put(entry.getKey(), option);
+			}
+		}
+		if (skipHeaderLines != null && skipHeaderLines > 0) {
+			guessed.put("skip_header_lines", skipHeaderLines);
+		}
+		if (!sheetOptions.isEmpty()) {
+			guessed.put("sheet_options", sheetOptions);
+		}
+
+		Set<Integer> indexes = new TreeSet<>(types.keySet());
+		if (hasHeader) {
+			indexes.addAll(headerRow.cells.keySet());
+		}
+		List<Map<String, Object>> columns = new ArrayList<>();
+		Set<String> names = new HashSet<>();
+		for (Integer index : indexes) {
+			String columnNumber = CellReference.convertNumToColString(index);
+			String name = null;
+			if (hasHeader) {
+				SampleCell cell = headerRow.cells.get(index);
+				if (cell != null && cell.text != null) {
+					name = cell.text.trim();
+				}
+			}
+			if (name == null || name.isEmpty()) {
+				name = columnNumber;
+			}
+			String unique = name;
+			for (int i = 2; !names.add(unique); i++) {
+				unique = name + "_" + i;
+			}
+			String columnType = types.get(index);
+
+			Map<String, Object> column = new LinkedHashMap<>();
+			column.put("name", unique);
+			column.put("type", (columnType != null) ? columnType : STRING);
+			column.put("column_number", columnNumber);
+			columns.add(column);
+		}
+		guessed.put("columns", columns);
+
+		if (log.isDebugEnabled()) {
+			log.debug("guessed sheets={}, header={}, sample rows={}", list, hasHeader, dataRows.size() + 1);
+		}
+		return guessed;
+	}
+
+	// the first row is header if all its cells are strings and the data rows have other types,
+	// or the labels do not appear in the data rows when all cells are strings
+	private static boolean isHeader(SampleRow first, List<SampleRow> dataRows, Map<Integer, String> types) {
+		for (SampleCell cell : first.cells.values()) {
+			if (!STRING.equals(cell.type)) {
+				return false;
+			}
+		}
+		if (dataRows.isEmpty()) {
+			return false;
+		}
+		for (Map.Entry<Integer, SampleCell> entry : first.cells.entrySet()) {
+			String type = types.get(entry.getKey());
+			if (type != null && !STRING.equals(type)) {
+				return true;
+			}
+		}
+
+		Set<String> labels = new HashSet<>();
+		for (SampleCell cell : first.cells.values()) {
+			if (!labels.add(cell.text)) {
+				return false;
+			}
+		}
+		for (SampleRow row : dataRows) {
+			for (Map.Entry<Integer, SampleCell> entry : row.cells.entrySet()) {
+				SampleCell label = first.cells.get(entry.getKey());
+				if (label != null && label.text.equals(entry.getValue().text)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static String mergeType(String type1, String type2) {
+		if (type1 == null || type1.equals(type2)) {
+			return type2;
+		}
+		if (type2 == null) {
+			return type1;
+		}
+		if ((type1.equals(LONG) && type2.equals(DOUBLE)) || (type1.equals(DOUBLE) && type2.equals(LONG))) {
+			return DOUBLE;
+		}
+		return STRING;
+	}
+
+	private static class SampleRow {
+		private final int rowIndex;
+		// blank and error cells are not kept
+		private final Map<Integer, SampleCell> cells = new TreeMap<>();
+
+		public SampleRow(Row row) {
+			this.rowIndex = row.getRowNum();
+			for (Cell cell : row) {
+				SampleCell sample = SampleCell.of(cell);
+				if (sample != null) {
+					cells.put(cell.getColumnIndex(), sample);
+				}
+			}
+		}
+	}
+
+	private static class SampleCell {
+		private final String type;
+		// string value
+		private final String text;
+
+		private SampleCell(String type, String text) {
+			this.type = type;
+			this.text = text;
+		}
+
+		public static SampleCell of(Cell cell) {
+			int cellType = cell.getCellType();
+			if (cellType == Cell.CELL_TYPE_FORMULA) {
+				cellType = cell.getCachedFormulaResultType();
+			}
+			switch (cellType) {
+			case Cell.CELL_TYPE_NUMERIC:
+				CellStyle style = cell.getCellStyle();
+				if (style != null && DateUtil.isADateFormat(style.getDataFormat(), style.getDataFormatString())) {
+					return new SampleCell(TIMESTAMP, null);
+				}
+				double value = cell.getNumericCellValue();
+				if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+					return new SampleCell(LONG, null);
+				}
+				return new SampleCell(DOUBLE, null);
+			case Cell.CELL_TYPE_STRING:
+				String text = cell.getStringCellValue();
+				if (text.trim().isEmpty()) {
+					return null;
+				}
+				return new SampleCell(STRING, text);
+			case Cell.CELL_TYPE_BOOLEAN:
+				return new SampleCell(BOOLEAN, null);
+			default:
+				return null;
+			}
+		}
+	}
+}
@@ -1,29 +1,54 @@
 package org.embulk.parser.poi_excel;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import org.apache.poi.EncryptedDocumentException;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.embulk.config.Config;
 import org.embulk.config.ConfigDefault;
 import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
 import org.embulk.config.Task;
 import org.embulk.config.TaskSource;
+import org.embulk.parser.poi_excel.bean.PoiExcelColumnBean;
+import org.embulk.parser.poi_excel.bean.PoiExcelRowRange;
+import org.embulk.parser.poi_excel.bean.PoiExcelSheetBean;
+import org.embulk.parser.poi_excel.streaming.PoiExcelStreamingPipeline;
+import org.embulk.parser.poi_excel.streaming.PoiExcelStreamingReader;
 import org.embulk.parser.poi_excel.visitor.PoiExcelColumnVisitor;
 import org.embulk.parser.poi_excel.visitor.PoiExcelVisitorFactory;
 import org.embulk.parser.poi_excel.visitor.PoiExcelVisitorValue;
+import org.embulk.parser.poi_excel.visitor.PoiExcelWorkbookCache;
+import org.embulk.spi.BufferAllocator;
 import org.embulk.spi.Exec;
+import org.embulk.spi.ExecAction;
+import org.embulk.spi.ExecSession;
 import org.embulk.spi.FileInput;
 import org.embulk.spi.PageBuilder;
 import org.embulk.spi.PageOutput;
@@ -35,6 +60,8 @@ import org.embulk.spi.util.FileInputInputStream;
 import org.slf4j.Logger;
 
 import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
 import com.ibm.icu.text.MessageFormat;
 
 public class PoiExcelParserPlugin implements ParserPlugin {
@@ -62,9 +89,58 @@ public class PoiExcelParserPlugin implements ParserPlugin {
 		@Config("columns")
 		public SchemaConfig getColumns();
 
+		// flush every flush_count rows. by default, the page is flushed when it becomes full
 		@Config("flush_count")
-		@ConfigDefault("100")
-		public int getFlushCount();
+		@ConfigDefault("null")
+		public Optional<Integer> getFlushCount();
+
+		@Config("flush_max_latency_millis")
+		@ConfigDefault("null")
+		public Optional<Long> getFlushMaxLatencyMillis();
+
+		// usermodel, streaming
+		@Config("engine")
+		@ConfigDefault("\"usermodel\"")
+		public String getEngine();
+
+		// copy the file to local and open it by random access (streaming engine always uses it)
+		@Config("spool")
+		@ConfigDefault("false")
+		public boolean getSpool();
+
+		@Config("spool_directory")
+		@ConfigDefault("null")
+		public Optional<String> getSpoolDirectory();
+
+		// number of threads which read the sheets of a workbook (usermodel engine)
+		@Config("sheet_threads")
+		@ConfigDefault("1")
+		public int getSheetThreads();
+
+		// sheet, relaxed
+		@Config("sheet_order")
+		@ConfigDefault("\"sheet\"")
+		public String getSheetOrder();
+
+		// read rows in another thread (streaming engine)
+		@Config("pipeline")
+		@ConfigDefault("false")
+		public boolean getPipeline();
+
+		// number of row batches read ahead by the pipeline
+		@Config("pipeline_queue_size")
+		@ConfigDefault("4")
+		public int getPipelineQueueSize();
+
+		// number of files opened ahead in a background thread
+		@Config("read_ahead")
+		@ConfigDefault("0")
+		public int getReadAhead();
+
+		// number of threads of formula_batch. by default, the number of available processors
+		@Config("formula_batch_threads")
+		@ConfigDefault("null")
+		public Optional<Integer> getFormulaBatchThreads();
 	}
 
 	public interface SheetCommonOptionTask extends Task, ColumnCommonOptionTask {
@@ -72,6 +148,25 @@ public class PoiExcelParserPlugin implements ParserPlugin {
 		@Config("skip_header_lines")
 		@ConfigDefault("null")
 		public Optional<Integer> getSkipHeaderLines();
+
+		// row number (1-origin) of the first row
+		@Config("start_row")
+		@ConfigDefault("null")
+		public Optional<Integer> getStartRow();
+
+		// row number (1-origin) of the last row
+		@Config("end_row")
+		@ConfigDefault("null")
+		public Optional<Integer> getEndRow();
+
+		@Config("max_rows")
+		@ConfigDefault("null")
+		public Optional<Long> getMaxRows();
+
+		// evaluate the formula cells of the sheet in parallel before the rows are read (usermodel engine)
+		@Config("formula_batch")
+		@ConfigDefault("null")
+		public Optional<Boolean> getFormulaBatch();
 	}
 
 	public interface SheetOptionTask extends Task, SheetCommonOptionTask {
@@ -121,6 +216,10 @@ public class PoiExcelParserPlugin implements ParserPlugin {
 		@ConfigDefault("null")
 		public Optional<List<FormulaReplaceTask>> getFormulaReplace();
 
+		@Config("formula_template")
+		@ConfigDefault("null")
+		public Optional<Boolean> getFormulaTemplate();
+
 		@Config("on_evaluate_error")
 		@ConfigDefault("null")
 		public Optional<String> getOnEvaluateError();
@@ -145,9 +244,42 @@ public class PoiExcelParserPlugin implements ParserPlugin {
 		public String getTo();
 	}
 
+	public enum Engine {
+		USERMODEL, STREAMING
+	}
+
+	public enum SheetOrder {
+		// the records of a sheet are output after the records of the preceding sheets
+		SHEET,
+		// the records are output in the order they are read
+		RELAXED
+	}
+
+	// pages of the following sheets which may be held per thread while sheet_order=sheet
+	private static final int BUFFERED_PAGES_PER_THREAD = 16;
+
+	// rows per batch passed from the reader thread of the pipeline
+	private static final int PIPELINE_BATCH_SIZE = 256;
+
 	@Override
 	public void transaction(ConfigSource config, ParserPlugin.Control control) {
 		PluginTask task = config.loadConfig(PluginTask.class);
+		getEngine(task);
+		getSheetOrder(task);
+		if (task.getSheetThreads() < 1) {
+			throw new ConfigException(MessageFormat.format("illegal sheet_threads={0}", task.getSheetThreads()));
+		}
+		if (getFormulaBatchThreads(task) < 1) {
+			throw new ConfigException(MessageFormat.format("illegal formula_batch_threads={0}",
+					getFormulaBatchThreads(task)));
+		}
+		if (task.getReadAhead() < 0) {
+			throw new ConfigException(MessageFormat.format("illegal read_ahead={0}", task.getReadAhead()));
+		}
+		if (task.getPipelineQueueSize() < 1) {
+			throw new ConfigException(MessageFormat.format("illegal pipeline_queue_size={0}",
+					task.getPipelineQueueSize()));
+		}
 
 		Schema schema = task.getColumns().toSchema();
 
@@ -168,25 +300,154 @@ public class PoiExcelParserPlugin implements ParserPlugin {
 			throw new ConfigException("Attribute sheets is required but not set");
 		}
 
+		Engine engine = getEngine(task);
+
 		try (FileInputInputStream is = new FileInputInputStream(input)) {
+			if (task.getReadAhead() > 0) {
+				runReadAhead(task, schema, engine, is, sheetNames, output);
+				return;
+			}
+
 			while (is.nextFile()) {
-				Workbook workbook;
+				WorkbookFile file = openFile(task, engine, is);
 				try {
-					workbook = WorkbookFactory.create(is);
-				} catch (IOException | EncryptedDocumentException | InvalidFormatException e) {
-					throw new RuntimeException(e);
+					runFile(task, schema, file, sheetNames, output);
+				} finally {
+					file.close();
 				}
+			}
+		}
+	}
+
+	/**
+	 * opens the following files in a background thread while the current file is converted.
+	 */
+	protected void runReadAhead(final PluginTask task, Schema schema, final Engine engine,
+			final FileInputInputStream is, List<String> sheetNames, PageOutput output) {
+		final ExecSession session = Exec.session();
+		// FileInput is read by one thread at a time, in order
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		Callable<WorkbookFile> open = new Callable<WorkbookFile>() {
+			private boolean eof;
+
+			@Override
+			public WorkbookFile call() throws Exception {
+				if (eof) {
+					return null;
+				}
+				return Exec.doWith(session, new ExecAction<WorkbookFile>() {
+
+					@Override
+					public WorkbookFile run() throws Exception {
+						if (!is.nextFile()) {
+							eof = true;
+							return null;
+						}
+						return openFile(task, engine, is);
+					}
+				});
+			}
+		};
 
-				List<String> list = resolveSheetName(workbook, sheetNames);
-				if (log.isDebugEnabled()) {
-					log.debug("resolved sheet names={}", list);
+		Deque<Future<WorkbookFile>> futures = new ArrayDeque<>();
+		try {
+			// the current file and read_ahead files are opened (one more is submitted when a file is taken)
+			for (int i = 0; i < task.getReadAhead(); i++) {
+				futures.add(executor.submit(open));
+			}
+			for (;;) {
+				WorkbookFile file = getFuture(futures.poll());
+				if (file == null) {
+					break;
+				}
+				futures.add(executor.submit(open));
+				try {
+					runFile(task, schema, file, sheetNames, output);
+				} finally {
+					file.close();
+				}
+			}
+		} finally {
+			for (Future<WorkbookFile> future : futures) {
+				future.cancel(false);
+			}
+			executor.shutdown();
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			for (Future<WorkbookFile> future : futures) {
+				if (future.isDone() && !future.isCancelled()) {
+					try {
+						WorkbookFile file = future.get();
+						if (file != null) {
+							file.close();
+						}
+					} catch (Exception e) {
+						log.debug("ignore read ahead error", e);
+					}
 				}
-				run(task, schema, workbook, list, output);
 			}
 		}
 	}
 
+	private <T> T getFuture(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			// Exec.doWith wraps the exception of the action
+			if (cause instanceof ExecutionException && cause.getCause() != null) {
+				cause = cause.getCause();
+			}
+			Throwables.propagateIfPossible(cause);
+			throw new RuntimeException(cause);
+		}
+	}
+
+	protected Engine getEngine(PluginTask task) {
+		String value = task.getEngine();
+		try {
+			return Engine.valueOf(value.trim().toUpperCase());
+		} catch (Exception e) {
+			List<String> list = new ArrayList<>();
+			for (Engine s : Engine.values()) {
+				list.add(s.name().toLowerCase());
+			}
+			throw new ConfigException(MessageFormat.format("illegal engine={0}. expected={1}", value, list), e);
+		}
+	}
+
+	protected SheetOrder getSheetOrder(PluginTask task) {
+		String value = task.getSheetOrder();
+		try {
+			return SheetOrder.valueOf(value.trim().toUpperCase());
+		} catch (Exception e) {
+			List<String> list = new ArrayList<>();
+			for (SheetOrder s : SheetOrder.values()) {
+				list.add(s.name().toLowerCase());
+			}
+			throw new ConfigException(MessageFormat.format("illegal sheet_order={0}. expected={1}", value, list), e);
+		}
+	}
+
+	protected int getFormulaBatchThreads(PluginTask task) {
+		return task.getFormulaBatchThreads().or(Runtime.getRuntime().availableProcessors());
+	}
+
 	private List<String> resolveSheetName(Workbook workbook, List<String> sheetNames) {
+		List<String> allSheetNames = new ArrayList<>();
+		for (Sheet sheet : workbook) {
+			allSheetNames.add(sheet.getSheetName());
+		}
+		return resolveSheetName(allSheetNames, sheetNames);
+	}
+
+	static List<String> resolveSheetName(List<String> allSheetNames, List<String> sheetNames) {
 		Set<String> set = new LinkedHashSet<>();
 		for (String s : sheetNames) {
 			if (s.contains("*") || s.contains("?")) {
@@ -220,8 +481,7 @@ public class PoiExcelParserPlugin implements ParserPlugin {
 					sb.append(Pattern.quote(buf.toString()));
 				}
 				String regex = sb.toString();
-				for (Sheet sheet : workbook) {
-					String name = sheet.getSheetName();
+				for (String name : allSheetNames) {
 					if (name.matches(regex)) {
 						set.add(name);
 					}
@@ -234,59 +494,439 @@ public class PoiExcelParserPlugin implements ParserPlugin {
 	}
 
 	protected void run(PluginTask task, Schema schema, Workbook workbook, List<String> sheetNames, PageOutput output) {
-		final int flushCount = task.getFlushCount();
+		List<Sheet> sheets = new ArrayList<>(sheetNames.size());
+		for (String sheetName : sheetNames) {
+			Sheet sheet = workbook.getSheet(sheetName);
+			if (sheet == null) {
+				if (task.getIgnoreSheetNotFound()) {
+					log.info("ignore: not found sheet={}", sheetName);
+					continue;
+				} else {
+					throw new RuntimeException(MessageFormat.format("not found sheet={0}", sheetName));
+				}
+			}
+			sheets.add(sheet);
+		}
+
+		int threads = Math.min(task.getSheetThreads(), sheets.size());
+		if (threads > 1 && !isParallelSupported(task, schema, workbook, sheets)) {
+			threads = 1;
+		}
+		if (threads > 1) {
+			runParallel(task, schema, sheets, threads, output);
+			return;
+		}
+
+		PoiExcelWorkbookCache workbookCache = new PoiExcelWorkbookCache(workbook);
 
 		try (PageBuilder pageBuilder = new PageBuilder(Exec.getBufferAllocator(), schema, output)) {
-			for (String sheetName : sheetNames) {
-				Sheet sheet = workbook.getSheet(sheetName);
-				if (sheet == null) {
-					if (task.getIgnoreSheetNotFound()) {
-						log.info("ignore: not found sheet={}", sheetName);
-						continue;
-					} else {
-						throw new RuntimeException(MessageFormat.format("not found sheet={0}", sheetName));
+			PoiExcelFlushPolicy flushPolicy = new PoiExcelFlushPolicy(task, pageBuilder);
+			for (Sheet sheet : sheets) {
+				runSheet(task, schema, sheet, workbookCache, pageBuilder, flushPolicy);
+			}
+			pageBuilder.finish();
+		}
+		workbookCache.logStatistics();
+	}
+
+	/**
+	 * @return false if the sheets modify the workbook while they are read
+	 */
+	protected boolean isParallelSupported(PluginTask task, Schema schema, Workbook workbook, List<Sheet> sheets) {
+		if (workbook instanceof HSSFWorkbook) {
+			for (Sheet sheet : sheets) {
+				PoiExcelSheetBean sheetBean = new PoiExcelSheetBean(task, schema, sheet);
+				for (PoiExcelColumnBean bean : sheetBean.getColumnBeans()) {
+					if (!bean.getFormulaReplacer().isEmpty()) {
+						// HSSF FormulaParser adds the EXTERNSHEET and NAME records of the workbook
+						log.info("sheet_threads is ignored (formula_replace of xls). sheet={}", sheet.getSheetName());
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * creates the objects of the sheet which POI initializes lazily (and which modify the workbook) before the sheets
+	 * are read in parallel.
+	 */
+	protected void prepareParallel(PluginTask task, Schema schema, Sheet sheet, PoiExcelWorkbookCache workbookCache) {
+		PoiExcelSheetBean sheetBean = new PoiExcelSheetBean(task, schema, sheet);
+		for (PoiExcelColumnBean bean : sheetBean.getColumnBeans()) {
+			if (bean.getValueType() == PoiExcelColumnValueType.CELL_COMMENT) {
+				workbookCache.getCommentIndex(sheet);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * reads the sheets by the thread pool.
+	 * <p>
+	 * each thread has its own visitors, formula evaluator and PageBuilder. the pages are forwarded to the output
+	 * in the order of sheet_order. the objects which POI creates lazily in the workbook (palette, fonts, drawing and
+	 * comments) are created before the threads start.
+	 * </p>
+	 */
+	protected void runParallel(final PluginTask task, final Schema schema, List<Sheet> sheets, int threads,
+			PageOutput output) {
+		log.info("sheet_threads={}, sheet_order={}", threads, task.getSheetOrder());
+
+		// FormulaEvaluator is not thread-safe
+		final List<PoiExcelWorkbookCache> workbookCaches = new ArrayList<>(sheets.size());
+		for (Sheet sheet : sheets) {
+			PoiExcelWorkbookCache workbookCache = new PoiExcelWorkbookCache(sheet.getWorkbook());
+			prepareParallel(task, schema, sheet, workbookCache);
+			workbookCaches.add(workbookCache);
+		}
+		PoiExcelWorkbookCache.prepareConcurrentRead(sheets.get(0).getWorkbook());
+
+		final ExecSession session = Exec.session();
+		final BufferAllocator allocator = Exec.getBufferAllocator();
+		boolean ordered = getSheetOrder(task) == SheetOrder.SHEET;
+		final PoiExcelSheetPageOutput sheetOutput = new PoiExcelSheetPageOutput(output, sheets.size(), ordered,
+				threads * BUFFERED_PAGES_PER_THREAD);
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Void>> futures = new ArrayList<>(sheets.size());
+			for (int i = 0; i < sheets.size(); i++) {
+				final Sheet sheet = sheets.get(i);
+				final int sheetIndex = i;
+				futures.add(executor.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						return Exec.doWith(session, new ExecAction<Void>() {
+
+							@Override
+							public Void run() throws Exception {
+								PoiExcelWorkbookCache workbookCache = workbookCaches.get(sheetIndex);
+								try (PageBuilder pageBuilder = new PageBuilder(allocator, schema,
+										sheetOutput.open(sheetIndex))) {
+									PoiExcelFlushPolicy flushPolicy = new PoiExcelFlushPolicy(task, pageBuilder);
+									runSheet(task, schema, sheet, workbookCache, pageBuilder, flushPolicy);
+									pageBuilder.finish();
+								}
+								workbookCache.logStatistics();
+								return null;
+							}
+						});
 					}
+				}));
+			}
+
+			for (Future<Void> future : futures) {
+				getFuture(future);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		output.finish();
+	}
+
+	protected void runSheet(PluginTask task, Schema schema, Sheet sheet, PoiExcelWorkbookCache workbookCache,
+			PageBuilder pageBuilder, PoiExcelFlushPolicy flushPolicy) {
+		String sheetName = sheet.getSheetName();
+		log.info("sheet={}", sheetName);
+		PoiExcelVisitorFactory factory = newPoiExcelVisitorFactory(task, schema, sheet, workbookCache, pageBuilder);
+		PoiExcelColumnVisitor visitor = factory.getPoiExcelColumnVisitor();
+		PoiExcelSheetBean sheetBean = factory.getVisitorValue().getSheetBean();
+		PoiExcelRowRange range = sheetBean.getRowRange();
+
+		final long start = System.nanoTime();
+		if (sheetBean.getFormulaBatch()) {
+			workbookCache.evaluateBatch(sheet, sheetBean, getFormulaBatchThreads(task));
+		}
+		long rows = 0;
+		// the rows are looked up by the index, so that the rows out of the range are not iterated
+		int first = Math.max(range.getFirstRowIndex(), sheet.getFirstRowNum());
+		int last = Math.min(range.getLastRowIndex(), sheet.getLastRowNum());
+		for (int rowIndex = first; rowIndex <= last && rows < range.getMaxRows(); rowIndex++) {
+			Row row = sheet.getRow(rowIndex);
+			if (row == null) {
+				continue;
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("row({}) start", rowIndex);
+			}
+
+			visitor.visitRow(row);
+			flushPolicy.addRecord();
+			rows++;
+
+			if (log.isDebugEnabled()) {
+				log.debug("row({}) end", rowIndex);
+			}
+		}
+		workbookCache.clearBatch();
+		logSheetEnd(sheetName, rows, start);
+	}
+
+	protected void logSheetEnd(String sheetName, long rows, long startNanos) {
+		if (log.isInfoEnabled()) {
+			long nanos = Math.max(System.nanoTime() - startNanos, 1);
+			log.info("sheet={} end. rows={}, time={}ms, {} rows/sec", sheetName, rows, nanos / 1000000,
+					rows * 1000000000L / nanos);
+		}
+	}
+
+	/**
+	 * @deprecated the formula results and the attribute caches are not shared with the other sheets. use
+	 *             {@link #newPoiExcelVisitorFactory(PluginTask, Schema, Sheet, PoiExcelWorkbookCache, PageBuilder)}
+	 */
+	@Deprecated
+	protected PoiExcelVisitorFactory newPoiExcelVisitorFactory(PluginTask task, Schema schema, Sheet sheet,
+			PageBuilder pageBuilder) {
+		return newPoiExcelVisitorFactory(task, schema, sheet, new PoiExcelWorkbookCache(sheet.getWorkbook()),
+				pageBuilder);
+	}
+
+	protected PoiExcelVisitorFactory newPoiExcelVisitorFactory(PluginTask task, Schema schema, Sheet sheet,
+			PoiExcelWorkbookCache workbookCache, PageBuilder pageBuilder) {
+		PoiExcelVisitorValue visitorValue = new PoiExcelVisitorValue(task, schema, sheet, workbookCache,
+				pageBuilder);
+		return new PoiExcelVisitorFactory(visitorValue);
+	}
+
+	/**
+	 * opened input file.
+	 */
+	protected class WorkbookFile {
+		// spooled file. null if the workbook is read from the stream
+		private final File file;
+		// null for the streaming engine
+		private final Workbook workbook;
+
+		public WorkbookFile(File file, Workbook workbook) {
+			this.file = file;
+			this.workbook = workbook;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public Workbook getWorkbook() {
+			return workbook;
+		}
+
+		public void close() {
+			if (workbook != null) {
+				closeWorkbook(workbook);
+			}
+			if (file != null) {
+				deleteSpoolFile(file);
+			}
+		}
+	}
+
+	protected WorkbookFile openFile(PluginTask task, Engine engine, InputStream is) {
+		if (engine == Engine.STREAMING) {
+			return new WorkbookFile(spool(task, is), null);
+		}
+		if (task.getSpool()) {
+			File file = spool(task, is);
+			try {
+				return new WorkbookFile(file, openWorkbook(file));
+			} catch (RuntimeException e) {
+				deleteSpoolFile(file);
+				throw e;
+			}
+		}
+
+		try {
+			return new WorkbookFile(null, WorkbookFactory.create(is));
+		} catch (IOException | EncryptedDocumentException | InvalidFormatException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected void runFile(PluginTask task, Schema schema, WorkbookFile file, List<String> sheetNames,
+			PageOutput output) {
+		Workbook workbook = file.getWorkbook();
+		if (workbook == null) {
+			runStreaming(task, schema, file.getFile(), sheetNames, output);
+		} else {
+			runWorkbook(task, schema, workbook, sheetNames, output);
+		}
+	}
+
+	protected void runStreaming(PluginTask task, Schema schema, File file, List<String> sheetNames,
+			PageOutput output) {
+		try (PoiExcelStreamingReader reader = PoiExcelStreamingReader.open(file)) {
+			if (reader == null) {
+				log.info("streaming engine does not support the file format. use usermodel");
+				Workbook workbook = openWorkbook(file);
+				try {
+					runWorkbook(task, schema, workbook, sheetNames, output);
+				} finally {
+					closeWorkbook(workbook);
+				}
+				return;
+			}
+
+			List<String> list = resolveSheetName(reader.getSheetNames(), sheetNames);
+			if (log.isDebugEnabled()) {
+				log.debug("resolved sheet names={}", list);
+			}
+			run(task, schema, reader, list, output);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected void runWorkbook(PluginTask task, Schema schema, Workbook workbook, List<String> sheetNames,
+			PageOutput output) {
+		List<String> list = resolveSheetName(workbook, sheetNames);
+		if (log.isDebugEnabled()) {
+			log.debug("resolved sheet names={}", list);
+		}
+		run(task, schema, workbook, list, output);
+	}
+
+	protected Workbook openWorkbook(File file) {
+		try {
+			// read only: only the parts (zip entries or sectors) which are used are read from the file
+			return WorkbookFactory.create(file, null, true);
+		} catch (IOException | EncryptedDocumentException | InvalidFormatException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected void closeWorkbook(Workbook workbook) {
+		try {
+			if (workbook instanceof XSSFWorkbook) {
+				// do not save the package opened as read only
+				((XSSFWorkbook) workbook).getPackage().revert();
+			} else {
+				workbook.close();
+			}
+		} catch (IOException e) {
+			log.warn("failed to close workbook", e);
+		}
+	}
+
+	protected void deleteSpoolFile(File file) {
+		if (!file.delete()) {
+			log.warn("failed to delete spool file={}", file);
+		}
+	}
+
+	protected File spool(PluginTask task, InputStream is) {
+		try {
+			File dir = null;
+			Optional<String> option = task.getSpoolDirectory();
+			if (option.isPresent()) {
+				dir = new File(option.get());
+				if (!dir.isDirectory() && !dir.mkdirs()) {
+					throw new ConfigException(MessageFormat.format("spool_directory can not be created. dir={0}",
+							dir));
 				}
+			}
+			File file = File.createTempFile("embulk-poi_excel-", ".tmp", dir);
+			try (OutputStream os = new FileOutputStream(file)) {
+				ByteStreams.copy(is, os);
+			} catch (IOException | RuntimeException e) {
+				file.delete();
+				throw e;
+			}
+			return file;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
 
-				log.info("sheet={}", sheetName);
-				PoiExcelVisitorFactory factory = newPoiExcelVisitorFactory(task, schema, sheet, pageBuilder);
-				PoiExcelColumnVisitor visitor = factory.getPoiExcelColumnVisitor();
-				final int skipHeaderLines = factory.getVisitorValue().getSheetBean().getSkipHeaderLines();
+	protected void run(final PluginTask task, final Schema schema, PoiExcelStreamingReader reader,
+			List<String> sheetNames, PageOutput output) {
+		List<String> allSheetNames = reader.getSheetNames();
+		List<String> list = new ArrayList<>(sheetNames.size());
+		for (String sheetName : sheetNames) {
+			if (!allSheetNames.contains(sheetName)) {
+				if (task.getIgnoreSheetNotFound()) {
+					log.info("ignore: not found sheet={}", sheetName);
+					continue;
+				} else {
+					throw new RuntimeException(MessageFormat.format("not found sheet={0}", sheetName));
+				}
+			}
+			list.add(sheetName);
+		}
 
-				int count = 0;
-				for (Row row : sheet) {
+		// the styles of xls are created from the stub workbook by the reader (in another thread if pipeline)
+		Workbook styleWorkbook = reader.getStyleWorkbook();
+		PoiExcelWorkbookCache.prepareConcurrentRead(styleWorkbook);
+		final PoiExcelWorkbookCache workbookCache = new PoiExcelWorkbookCache(null, styleWorkbook,
+				reader.isDate1904());
+
+		try (final PageBuilder pageBuilder = new PageBuilder(Exec.getBufferAllocator(), schema, output)) {
+			final PoiExcelFlushPolicy flushPolicy = new PoiExcelFlushPolicy(task, pageBuilder);
+
+			// the readers skip the cells which are not read by the columns and the rows out of the range
+			final Map<String, PoiExcelVisitorFactory> factoryMap = new HashMap<>();
+			Map<String, BitSet> columnsMap = new HashMap<>();
+			Map<String, PoiExcelRowRange> rowRangeMap = new HashMap<>();
+			for (String sheetName : list) {
+				PoiExcelVisitorFactory factory = newPoiExcelVisitorFactory(task, schema, sheetName,
+						allSheetNames.indexOf(sheetName), workbookCache, pageBuilder);
+				factoryMap.put(sheetName, factory);
+				columnsMap.put(sheetName, factory.getVisitorValue().getSheetBean().getCellColumns());
+				rowRangeMap.put(sheetName, factory.getVisitorValue().getSheetBean().getRowRange());
+			}
+			reader.setColumns(columnsMap);
+			reader.setRowRanges(rowRangeMap);
+
+			PoiExcelStreamingReader.RowHandler handler = new PoiExcelStreamingReader.RowHandler() {
+				private PoiExcelColumnVisitor visitor;
+				private long start;
+				private long rows;
+
+				@Override
+				public void startSheet(String sheetName, int sheetIndex) {
+					log.info("sheet={}", sheetName);
+					PoiExcelVisitorFactory factory = factoryMap.get(sheetName);
+					this.visitor = factory.getPoiExcelColumnVisitor();
+					this.start = System.nanoTime();
+					this.rows = 0;
+				}
+
+				@Override
+				public void handleRow(Row row) {
 					int rowIndex = row.getRowNum();
-					if (rowIndex < skipHeaderLines) {
-						log.debug("row({}) skipped", rowIndex);
-						continue;
-					}
 					if (log.isDebugEnabled()) {
 						log.debug("row({}) start", rowIndex);
 					}
 
-					visitor.setRow(row);
-					schema.visitColumns(visitor);
-					pageBuilder.addRecord();
-
-					if (++count >= flushCount) {
-						log.trace("flush");
-						pageBuilder.flush();
-						count = 0;
-					}
+					visitor.visitRow(row);
+					flushPolicy.addRecord();
+					rows++;
 
 					if (log.isDebugEnabled()) {
 						log.debug("row({}) end", rowIndex);
 					}
 				}
-				pageBuilder.flush();
+
+				@Override
+				public void endSheet(String sheetName) {
+					logSheetEnd(sheetName, rows, start);
+				}
+			};
+			if (task.getPipeline()) {
+				new PoiExcelStreamingPipeline(reader, task.getPipelineQueueSize(), PIPELINE_BATCH_SIZE).read(list,
+						handler);
+			} else {
+				reader.read(list, handler);
 			}
 			pageBuilder.finish();
 		}
 	}
 
-	protected PoiExcelVisitorFactory newPoiExcelVisitorFactory(PluginTask task, Schema schema, Sheet sheet,
-			PageBuilder pageBuilder) {
-		PoiExcelVisitorValue visitorValue = new PoiExcelVisitorValue(task, schema, sheet, pageBuilder);
+	protected PoiExcelVisitorFactory newPoiExcelVisitorFactory(PluginTask task, Schema schema, String sheetName,
+			int sheetIndex, PoiExcelWorkbookCache workbookCache, PageBuilder pageBuilder) {
+		PoiExcelVisitorValue visitorValue = new PoiExcelVisitorValue(task, schema, sheetName, sheetIndex,
+				workbookCache, pageBuilder);
 		return new PoiExcelVisitorFactory(visitorValue);
 	}
 }
@@ -0,0 +1,105 @@
+package org.embulk.parser.poi_excel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.embulk.spi.Page;
+import org.embulk.spi.PageOutput;
+
+/**
+ * forwards the pages of the sheets processed in parallel to one PageOutput.
+ * <p>
+ * when ordered, the pages of a sheet are emitted after all pages of the preceding sheets. pages of a following
+ * sheet are buffered until its turn, and the worker waits while too many pages are buffered.
+ * </p>
+ */
+public class PoiExcelSheetPageOutput {
+
+	private final PageOutput output;
+	private final boolean ordered;
+	private final int maxBufferedPages;
+
+	private final List<List<Page>> buffers;
+	private final boolean[] finished;
+	private int head = 0;
+	private int bufferedPages = 0;
+
+	public PoiExcelSheetPageOutput(PageOutput output, int sheetCount, boolean ordered, int maxBufferedPages) {
+		this.output = output;
+		this.ordered = ordered;
+		this.maxBufferedPages = maxBufferedPages;
+		this.buffers = new ArrayList<>(sheetCount);
+		for (int i = 0; i < sheetCount; i++) {
+			buffers.add(new ArrayList<Page>());
+		}
+		this.finished = new boolean[sheetCount];
+	}
+
+	/**
+	 * @param sheetIndex
+	 *            0 origin index in the order of the output
+	 * @return output for the sheet (not thread-safe, like PageOutput)
+	 */
+	public PageOutput open(final int sheetIndex) {
+		return new PageOutput() {
+
+			@Override
+			public void add(Page page) {
+				PoiExcelSheetPageOutput.this.add(sheetIndex, page);
+			}
+
+			@Override
+			public void finish() {
+				PoiExcelSheetPageOutput.this.finish(sheetIndex);
+			}
+
+			@Override
+			public void close() {
+				// the parent output is closed by the caller
+			}
+		};
+	}
+
+	protected synchronized void add(int sheetIndex, Page page) {
+		if (!ordered || sheetIndex == head) {
+			output.add(page);
+			return;
+		}
+
+		// the head sheet never waits, so a waiting worker is always released
+		while (bufferedPages >= maxBufferedPages && sheetIndex != head) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+		}
+		if (sheetIndex == head) {
+			output.add(page);
+			return;
+		}
+		buffers.get(sheetIndex).add(page);
+		bufferedPages++;
+	}
+
+	protected synchronized void finish(int sheetIndex) {
+		finished[sheetIndex] = true;
+		if (!ordered) {
+			return;
+		}
+
+		while (head < finished.length && finished[head]) {
+			head++;
+			if (head < buffers.size()) {
+				List<Page> pages = buffers.get(head);
+				for (Page page : pages) {
+					output.add(page);
+				}
+				bufferedPages -= pages.size();
+				pages.clear();
+			}
+		}
+		notifyAll();
+	}
+}
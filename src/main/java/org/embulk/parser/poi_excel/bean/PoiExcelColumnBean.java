@@ -266,7 +266,7 @@ public class PoiExcelColumnBean {
 	}
 
 	public enum FormulaHandling {
-		EVALUATE, CASHED_VALUE
+		EVALUATE, CASHED_VALUE, AUTO
 	}
 
 	private CacheValue<FormulaHandling> formulaHandling = new CacheValue<FormulaHandling>() {
@@ -317,6 +317,32 @@ public class PoiExcelColumnBean {
 		return formulaReplace.get();
 	}
 
+	private CacheValue<Boolean> formulaTemplate = new CacheValue<Boolean>() {
+
+		@Override
+		protected Optional<Boolean> getTaskValue(ColumnCommonOptionTask task) {
+			return task.getFormulaTemplate();
+		}
+
+		@Override
+		protected Boolean getDefaultValue() {
+			return false;
+		}
+	};
+
+	public boolean getFormulaTemplate() {
+		return formulaTemplate.get();
+	}
+
+	private PoiExcelFormulaReplacer formulaReplacer;
+
+	public PoiExcelFormulaReplacer getFormulaReplacer() {
+		if (formulaReplacer == null) {
+			formulaReplacer = new PoiExcelFormulaReplacer(getFormulaReplace());
+		}
+		return formulaReplacer;
+	}
+
 	private CacheErrorStrategy evaluateErrorStrategy = new CacheErrorStrategy() {
 		@Override
 		protected Optional<String> getStringValue(ColumnCommonOptionTask task) {
@@ -1,6 +1,7 @@
 package org.embulk.parser.poi_excel.bean;
 
 import java.text.MessageFormat;
+import java.util.BitSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -19,10 +20,12 @@ public class PoiExcelColumnIndex {
 	private final Logger log = Exec.getLogger(getClass());
 
 	protected final Map<String, Integer> indexMap = new LinkedHashMap<>();
+	protected final BitSet cellColumns = new BitSet();
 
 	public void initializeColumnIndex(PluginTask task, List<PoiExcelColumnBean> beanList) {
 		int index = -1;
 		indexMap.clear();
+		cellColumns.clear();
 
 		Schema schema = task.getColumns().toSchema();
 		for (Column column : schema.getColumns()) {
@@ -36,6 +39,7 @@ public class PoiExcelColumnIndex {
 				}
 				bean.setColumnIndex(index);
 				indexMap.put(column.getName(), index);
+				cellColumns.set(index);
 				if (log.isInfoEnabled()) {
 					String c = CellReference.convertNumToColString(index);
 					switch (valueType) {
@@ -51,6 +55,7 @@ public class PoiExcelColumnIndex {
 						break;
 					case CELL_VALUE:
 					case CELL_FORMULA:
+					case CELL_FORMATTED:
 					case CELL_TYPE:
 					case CELL_CACHED_TYPE:
 					case COLUMN_NUMBER:
@@ -79,6 +84,13 @@ public class PoiExcelColumnIndex {
 		}
 	}
 
+	/**
+	 * @return column indexes of the cells which are read (projection of the sheet)
+	 */
+	public BitSet getCellColumns() {
+		return (BitSet) cellColumns.clone();
+	}
+
 	protected int resolveColumnIndex(Column column, PoiExcelColumnBean bean, int index,
 			PoiExcelColumnValueType valueType) {
 		Optional<String> numberOption = bean.getColumnNumber();
@@ -0,0 +1,104 @@
+package org.embulk.parser.poi_excel.bean;
+
+import java.text.MessageFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.embulk.config.ConfigException;
+import org.embulk.parser.poi_excel.PoiExcelParserPlugin.FormulaReplaceTask;
+
+/**
+ * formula_replace compiled once per column.
+ * <p>
+ * the regex patterns are compiled once. the replacements are applied in order, and "${row}" is substituted into each
+ * replacement before its regex is applied (same as the replacement of the cell formula). the result of the
+ * replacements before the first one which has "${row}" is cached per source formula.
+ * </p>
+ */
+public class PoiExcelFormulaReplacer {
+
+	private static final String ROW_VARIABLE = "${row}";
+
+	private static final int CACHE_SIZE = 1024;
+
+	private final Pattern[] patterns;
+	private final String[] replacements;
+	// index of the first replacement which has "${row}"
+	private final int rowStart;
+
+	private final Map<String, String> cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Entry<String, String> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	/**
+	 * @param list
+	 *            formula_replace
+	 */
+	public PoiExcelFormulaReplacer(List<FormulaReplaceTask> list) {
+		int size = list.size();
+		this.patterns = new Pattern[size];
+		this.replacements = new String[size];
+		int rowStart = size;
+		for (int i = 0; i < size; i++) {
+			FormulaReplaceTask replace = list.get(i);
+			String regex = replace.getRegex();
+			try {
+				patterns[i] = Pattern.compile(regex);
+			} catch (PatternSyntaxException e) {
+				throw new ConfigException(MessageFormat.format("illegal formula_replace regex={0}", regex), e);
+			}
+			replacements[i] = replace.getTo();
+			if (rowStart == size && replacements[i].contains(ROW_VARIABLE)) {
+				rowStart = i;
+			}
+		}
+		this.rowStart = rowStart;
+	}
+
+	public boolean isEmpty() {
+		return patterns.length == 0;
+	}
+
+	/**
+	 * @param formula
+	 *            source formula
+	 * @param rowIndex
+	 *            row index (0-origin)
+	 * @return replaced formula. null if the formula is not changed
+	 */
+	public String replace(String formula, int rowIndex) {
+		String replaced = cache.get(formula);
+		if (replaced == null) {
+			replaced = replace(formula, 0, rowStart, null);
+			cache.put(formula, replaced);
+		}
+		if (rowStart < patterns.length) {
+			replaced = replace(replaced, rowStart, patterns.length, Integer.toString(rowIndex + 1));
+		}
+		if (replaced.equals(formula)) {
+			return null;
+		}
+		return replaced;
+	}
+
+	private String replace(String formula, int start, int end, String row) {
+		String replaced = formula;
+		for (int i = start; i < end; i++) {
+			String replacement = replacements[i];
+			if (row != null) {
+				replacement = replacement.replace(ROW_VARIABLE, row);
+			}
+			replaced = patterns[i].matcher(replaced).replaceAll(replacement);
+		}
+		return replaced;
+	}
+}
@@ -0,0 +1,50 @@
+package org.embulk.parser.poi_excel.bean;
+
+/**
+ * rows of a sheet to read (skip_header_lines, start_row, end_row, max_rows).
+ */
+public class PoiExcelRowRange {
+
+	public static final PoiExcelRowRange ALL = new PoiExcelRowRange(0, Integer.MAX_VALUE, Long.MAX_VALUE);
+
+	private final int firstRowIndex;
+	private final int lastRowIndex;
+	private final long maxRows;
+
+	/**
+	 * @param firstRowIndex
+	 *            first row index (0-origin)
+	 * @param lastRowIndex
+	 *            last row index (0-origin, inclusive)
+	 * @param maxRows
+	 *            maximum number of rows
+	 */
+	public PoiExcelRowRange(int firstRowIndex, int lastRowIndex, long maxRows) {
+		this.firstRowIndex = firstRowIndex;
+		this.lastRowIndex = lastRowIndex;
+		this.maxRows = maxRows;
+	}
+
+	public int getFirstRowIndex() {
+		return firstRowIndex;
+	}
+
+	public int getLastRowIndex() {
+		return lastRowIndex;
+	}
+
+	public long getMaxRows() {
+		return maxRows;
+	}
+
+	/**
+	 * @param rowIndex
+	 *            row index
+	 * @param rows
+	 *            number of rows already read
+	 * @return true if no more rows are read after the row
+	 */
+	public boolean isEnd(int rowIndex, long rows) {
+		return rowIndex >= lastRowIndex || rows >= maxRows;
+	}
+}
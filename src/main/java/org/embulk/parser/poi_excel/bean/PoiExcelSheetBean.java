@@ -1,12 +1,15 @@
 package org.embulk.parser.poi_excel.bean;
 
+import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
 import org.apache.poi.ss.usermodel.Sheet;
+import org.embulk.config.ConfigException;
 import org.embulk.parser.poi_excel.PoiExcelParserPlugin.ColumnOptionTask;
 import org.embulk.parser.poi_excel.PoiExcelParserPlugin.PluginTask;
 import org.embulk.parser.poi_excel.PoiExcelParserPlugin.SheetCommonOptionTask;
@@ -19,21 +22,27 @@ import com.google.common.base.Optional;
 
 public class PoiExcelSheetBean {
 
-	protected final Sheet sheet;
+	protected final String sheetName;
 
 	private final List<SheetCommonOptionTask> sheetTaskList = new ArrayList<>(2);
 
 	private final List<PoiExcelColumnBean> columnBeanList = new ArrayList<>();
 
+	private BitSet cellColumns;
+
 	public PoiExcelSheetBean(PluginTask task, Schema schema, Sheet sheet) {
-		this.sheet = sheet;
+		this(task, schema, sheet.getSheetName());
+	}
+
+	public PoiExcelSheetBean(PluginTask task, Schema schema, String sheetName) {
+		this.sheetName = sheetName;
 
 		initializeSheetTask(task);
 		initializeColumnBean(task, schema);
 	}
 
 	private void initializeSheetTask(PluginTask task) {
-		String name = sheet.getSheetName();
+		String name = sheetName;
 		Map<String, SheetOptionTask> map = task.getSheetOptions();
 		SheetOptionTask s = map.get(name);
 		if (s != null) {
@@ -75,7 +84,9 @@ public class PoiExcelSheetBean {
 			columnBeanList.add(bean);
 		}
 
-		new PoiExcelColumnIndex().initializeColumnIndex(task, columnBeanList);
+		PoiExcelColumnIndex columnIndex = new PoiExcelColumnIndex();
+		columnIndex.initializeColumnIndex(task, columnBeanList);
+		this.cellColumns = columnIndex.getCellColumns();
 	}
 
 	public final List<SheetCommonOptionTask> getSheetOption() {
@@ -93,10 +104,100 @@ public class PoiExcelSheetBean {
 		return 0;
 	}
 
+	/**
+	 * @return rows to read
+	 */
+	public PoiExcelRowRange getRowRange() {
+		int first = getSkipHeaderLines();
+		int last = Integer.MAX_VALUE;
+		long maxRows = Long.MAX_VALUE;
+
+		Optional<Integer> startRow = getStartRow();
+		if (startRow.isPresent()) {
+			if (startRow.get() < 1) {
+				throw new ConfigException(MessageFormat.format("illegal start_row={0}. sheet={1}", startRow.get(),
+						sheetName));
+			}
+			first = Math.max(first, startRow.get() - 1);
+		}
+		Optional<Integer> endRow = getEndRow();
+		if (endRow.isPresent()) {
+			if (endRow.get() < 1) {
+				throw new ConfigException(MessageFormat.format("illegal end_row={0}. sheet={1}", endRow.get(),
+						sheetName));
+			}
+			last = endRow.get() - 1;
+		}
+		Optional<Long> max = getMaxRows();
+		if (max.isPresent()) {
+			if (max.get() < 0) {
+				throw new ConfigException(MessageFormat.format("illegal max_rows={0}. sheet={1}", max.get(),
+						sheetName));
+			}
+			maxRows = max.get();
+		}
+
+		if (first == 0 && last == Integer.MAX_VALUE && maxRows == Long.MAX_VALUE) {
+			return PoiExcelRowRange.ALL;
+		}
+		return new PoiExcelRowRange(first, last, maxRows);
+	}
+
+	public Optional<Integer> getStartRow() {
+		List<SheetCommonOptionTask> list = getSheetOption();
+		for (SheetCommonOptionTask sheetTask : list) {
+			Optional<Integer> value = sheetTask.getStartRow();
+			if (value.isPresent()) {
+				return value;
+			}
+		}
+		return Optional.absent();
+	}
+
+	public Optional<Integer> getEndRow() {
+		List<SheetCommonOptionTask> list = getSheetOption();
+		for (SheetCommonOptionTask sheetTask : list) {
+			Optional<Integer> value = sheetTask.getEndRow();
+			if (value.isPresent()) {
+				return value;
+			}
+		}
+		return Optional.absent();
+	}
+
+	public Optional<Long> getMaxRows() {
+		List<SheetCommonOptionTask> list = getSheetOption();
+		for (SheetCommonOptionTask sheetTask : list) {
+			Optional<Long> value = sheetTask.getMaxRows();
+			if (value.isPresent()) {
+				return value;
+			}
+		}
+		return Optional.absent();
+	}
+
+	public boolean getFormulaBatch() {
+		List<SheetCommonOptionTask> list = getSheetOption();
+		for (SheetCommonOptionTask sheetTask : list) {
+			Optional<Boolean> value = sheetTask.getFormulaBatch();
+			if (value.isPresent()) {
+				return value.get();
+			}
+		}
+		return false;
+	}
+
 	public final List<PoiExcelColumnBean> getColumnBeans() {
 		return columnBeanList;
 	}
 
+	/**
+	 * @return column indexes of the cells which are read by the columns
+	 */
+	public final BitSet getCellColumns() {
+		return cellColumns;
+	}
+
 	public final PoiExcelColumnBean getColumnBean(Column column) {
 		List<PoiExcelColumnBean> list = getColumnBeans();
 		return list.get(column.getIndex());
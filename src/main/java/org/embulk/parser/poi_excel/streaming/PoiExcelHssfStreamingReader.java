@@ -0,0 +1,525 @@
+package org.embulk.parser.poi_excel.streaming;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.poi.hssf.eventusermodel.AbortableHSSFListener;
+import org.apache.poi.hssf.eventusermodel.EventWorkbookBuilder.SheetRecordCollectingListener;
+import org.apache.poi.hssf.eventusermodel.HSSFEventFactory;
+import org.apache.poi.hssf.eventusermodel.HSSFListener;
+import org.apache.poi.hssf.eventusermodel.HSSFRequest;
+import org.apache.poi.hssf.eventusermodel.HSSFUserException;
+import org.apache.poi.hssf.eventusermodel.MissingRecordAwareHSSFListener;
+import org.apache.poi.hssf.eventusermodel.dummyrecord.LastCellOfRowDummyRecord;
+import org.apache.poi.hssf.model.HSSFFormulaParser;
+import org.apache.poi.hssf.model.InternalWorkbook;
+import org.apache.poi.hssf.record.BOFRecord;
+import org.apache.poi.hssf.record.BlankRecord;
+import org.apache.poi.hssf.record.BoolErrRecord;
+import org.apache.poi.hssf.record.BoundSheetRecord;
+import org.apache.poi.hssf.record.CellValueRecordInterface;
+import org.apache.poi.hssf.record.DateWindow1904Record;
+import org.apache.poi.hssf.record.EOFRecord;
+import org.apache.poi.hssf.record.ExtendedFormatRecord;
+import org.apache.poi.hssf.record.ExternSheetRecord;
+import org.apache.poi.hssf.record.FontRecord;
+import org.apache.poi.hssf.record.FormatRecord;
+import org.apache.poi.hssf.record.FormulaRecord;
+import org.apache.poi.hssf.record.LabelRecord;
+import org.apache.poi.hssf.record.LabelSSTRecord;
+import org.apache.poi.hssf.record.NumberRecord;
+import org.apache.poi.hssf.record.PaletteRecord;
+import org.apache.poi.hssf.record.Record;
+import org.apache.poi.hssf.record.RowRecord;
+import org.apache.poi.hssf.record.SSTRecord;
+import org.apache.poi.hssf.record.StringRecord;
+import org.apache.poi.hssf.record.SupBookRecord;
+import org.apache.poi.hssf.usermodel.HSSFCellStyle;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.poifs.filesystem.NPOIFSFileSystem;
+import org.apache.poi.ss.formula.Formula;
+import org.apache.poi.ss.formula.ptg.ExpPtg;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.embulk.parser.poi_excel.bean.PoiExcelRowRange;
+import org.embulk.parser.poi_excel.streaming.PoiExcelStreamingCell.FormulaConverter;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+/**
+ * streaming reader for xls. reads BIFF8 records by the HSSF event model.
+ * <p>
+ * only the workbook globals (sheet names, shared strings, cell styles) are kept in memory.
+ * </p>
+ */
+public class PoiExcelHssfStreamingReader extends PoiExcelStreamingReader {
+	private final Logger log = Exec.getLogger(getClass());
+
+	private final NPOIFSFileSystem fs;
+	private final SheetRecordCollectingListener globals;
+	private final List<Record> styleRecords = new ArrayList<>();
+
+	private final List<String> sheetNames = new ArrayList<>();
+	// sheet index in the order of the substreams
+	private final int[] streamOrder;
+
+	// workbook of the globals records (formulas, cell styles)
+	private HSSFWorkbook stubWorkbook;
+	private final Map<Integer, HSSFCellStyle> styleCache = new HashMap<>();
+	// called when the formula is read (by the thread of the visitor if pipeline)
+	private final FormulaConverter formulaConverter = new FormulaConverter() {
+
+		@Override
+		public String toFormulaString(Formula formula) {
+			try {
+				return PoiExcelHssfStreamingReader.this.toFormulaString(formula);
+			} catch (RuntimeException e) {
+				log.debug("formula convert error", e);
+				return null;
+			}
+		}
+	};
+
+	private boolean date1904;
+
+	public PoiExcelHssfStreamingReader(File file) throws IOException {
+		this.fs = new NPOIFSFileSystem(file, true);
+		try {
+			this.globals = new SheetRecordCollectingListener(new HSSFListener() {
+				@Override
+				public void processRecord(Record record) {
+					switch (record.getSid()) {
+					case FontRecord.sid:
+					case FormatRecord.sid:
+					case ExtendedFormatRecord.sid:
+					case PaletteRecord.sid:
+						styleRecords.add(record);
+						break;
+					default:
+						break;
+					}
+				}
+			});
+			process(new AbortableHSSFListener() {
+				@Override
+				public short abortableProcessRecord(Record record) {
+					if (record instanceof EOFRecord) {
+						return 1; // end of workbook globals
+					}
+					if (record instanceof DateWindow1904Record) {
+						date1904 = ((DateWindow1904Record) record).getWindowing() == 1;
+					}
+					globals.processRecord(record);
+					return 0;
+				}
+			});
+
+			BoundSheetRecord[] bounds = globals.getBoundSheetRecords();
+			for (BoundSheetRecord bound : bounds) {
+				sheetNames.add(bound.getSheetname());
+			}
+			BoundSheetRecord[] ordered = BoundSheetRecord.orderByBofPosition(Arrays.asList(bounds));
+			this.streamOrder = new int[ordered.length];
+			for (int i = 0; i < ordered.length; i++) {
+				streamOrder[i] = sheetNames.indexOf(ordered[i].getSheetname());
+			}
+		} catch (IOException | RuntimeException e) {
+			fs.close();
+			throw e;
+		}
+		if (log.isDebugEnabled()) {
+			SSTRecord sst = globals.getSSTRecord();
+			log.debug("shared strings={}", (sst != null) ? sst.getNumUniqueStrings() : 0);
+		}
+	}
+
+	protected short process(AbortableHSSFListener listener) throws IOException {
+		HSSFRequest request = new HSSFRequest();
+		request.addListenerForAllRecords(listener);
+		try {
+			return new HSSFEventFactory().abortableProcessWorkbookEvents(request, fs.getRoot());
+		} catch (HSSFUserException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public boolean isDate1904() {
+		return date1904;
+	}
+
+	@Override
+	public List<String> getSheetNames() {
+		return Collections.unmodifiableList(sheetNames);
+	}
+
+	@Override
+	public void read(List<String> sheetNames, RowHandler handler) {
+		// the records of sheets can be read only in the stream order.
+		// so the sheets are read by passes, each of which covers sheets in ascending stream order.
+		List<Integer> pass = new ArrayList<>();
+		int last = -1;
+		for (String sheetName : sheetNames) {
+			int sheetIndex = this.sheetNames.indexOf(sheetName);
+			if (sheetIndex < 0) {
+				throw new RuntimeException(MessageFormat.format("not found sheet={0}", sheetName));
+			}
+			int position = getStreamPosition(sheetIndex);
+			if (position <= last) {
+				readPass(pass, handler);
+				pass.clear();
+			}
+			pass.add(sheetIndex);
+			last = position;
+		}
+		if (!pass.isEmpty()) {
+			readPass(pass, handler);
+		}
+	}
+
+	private int getStreamPosition(int sheetIndex) {
+		for (int i = 0; i < streamOrder.length; i++) {
+			if (streamOrder[i] == sheetIndex) {
+				return i;
+			}
+		}
+		throw new IllegalStateException(MessageFormat.format("not found sheet index={0}", sheetIndex));
+	}
+
+	protected void readPass(List<Integer> sheetIndexes, RowHandler handler) {
+		if (log.isDebugEnabled()) {
+			log.debug("read pass sheets={}", sheetIndexes);
+		}
+		final SheetListener sheetListener = new SheetListener(sheetIndexes, handler);
+		final MissingRecordAwareHSSFListener missingAware = new MissingRecordAwareHSSFListener(sheetListener);
+		try {
+			process(new AbortableHSSFListener() {
+				@Override
+				public short abortableProcessRecord(Record record) {
+					missingAware.processRecord(record);
+					return sheetListener.isFinished() ? (short) 1 : 0;
+				}
+			});
+		} catch (IOException e) {
+			throw new RuntimeException("sheet read error", e);
+		}
+	}
+
+	protected String getSharedString(int index) {
+		SSTRecord sst = globals.getSSTRecord();
+		return sst.getString(index).getString();
+	}
+
+	protected String toFormulaString(Formula formula) {
+		Ptg[] ptgs = formula.getTokens();
+		if (ptgs.length > 0 && ptgs[0] instanceof ExpPtg) {
+			return null; // shared formula
+		}
+		return HSSFFormulaParser.toFormulaString(getStubWorkbook(), ptgs);
+	}
+
+	protected HSSFWorkbook getStubWorkbook() {
+		if (stubWorkbook == null) {
+			// same as SheetRecordCollectingListener.getStubHSSFWorkbook() with the records of the cell styles
+			List<Record> records = new ArrayList<>();
+			BoundSheetRecord[] bounds = globals.getBoundSheetRecords();
+			records.addAll(Arrays.asList(bounds));
+			if (globals.getSSTRecord() != null) {
+				records.add(globals.getSSTRecord());
+			}
+			records.addAll(styleRecords);
+			ExternSheetRecord[] externs = globals.getExternSheetRecords();
+			records.add(SupBookRecord.createInternalReferences((short) externs.length));
+			records.addAll(Arrays.asList(externs));
+			records.add(EOFRecord.instance);
+
+			stubWorkbook = HSSFWorkbook.create(InternalWorkbook.createWorkbook(records));
+			for (BoundSheetRecord bound : bounds) {
+				stubWorkbook.createSheet(bound.getSheetname());
+			}
+		}
+		return stubWorkbook;
+	}
+
+	@Override
+	public Workbook getStyleWorkbook() {
+		return getStubWorkbook();
+	}
+
+	protected HSSFCellStyle getStyle(int index) {
+		HSSFCellStyle style = styleCache.get(index);
+		if (style == null) {
+			HSSFWorkbook workbook = getStubWorkbook();
+			if (index >= workbook.getNumCellStyles()) {
+				return null;
+			}
+			style = workbook.getCellStyleAt((short) index);
+			styleCache.put(index, style);
+		}
+		return style;
+	}
+
+	@Override
+	public void close() throws IOException {
+		fs.close();
+	}
+
+	private class SheetListener implements HSSFListener {
+		private final List<Integer> sheetIndexes;
+		private final RowHandler handler;
+
+		private final PoiExcelStreamingRow row = new PoiExcelStreamingRow(date1904);
+		private final PoiExcelStreamingRow emptyRow = new PoiExcelStreamingRow(date1904);
+
+		private int depth = 0;
+		private int substream = -1;
+		private boolean finished = false;
+
+		// current sheet
+		private String sheetName;
+		// null: all columns
+		private BitSet columns;
+		private PoiExcelRowRange range;
+		private long rows;
+		// true if the rows of the range have been read
+		private boolean endOfRange;
+		private final BitSet rowRecords = new BitSet();
+		private int currentRow;
+		private boolean hasCells;
+		private int lastRow;
+		private PoiExcelStreamingCell stringCell;
+
+		public SheetListener(List<Integer> sheetIndexes, RowHandler handler) {
+			this.sheetIndexes = sheetIndexes;
+			this.handler = handler;
+		}
+
+		public boolean isFinished() {
+			return finished;
+		}
+
+		@Override
+		public void processRecord(Record record) {
+			switch (record.getSid()) {
+			case BOFRecord.sid:
+				BOFRecord bof = (BOFRecord) record;
+				if (depth++ == 0 && bof.getType() != BOFRecord.TYPE_WORKBOOK) { // top level substream of a sheet
+					substream++;
+					startSheet(bof);
+				}
+				return;
+			case EOFRecord.sid:
+				if (--depth == 0) {
+					endSheet();
+				}
+				return;
+			default:
+				break;
+			}
+			if (sheetName == null) {
+				return;
+			}
+			if (endOfRange) {
+				// the rest of the sheet is skipped. the stream is aborted if the sheet is the last one
+				if (isLastSheet()) {
+					endSheet();
+				}
+				return;
+			}
+
+			if (record instanceof LastCellOfRowDummyRecord) {
+				LastCellOfRowDummyRecord dummy = (LastCellOfRowDummyRecord) record;
+				if (hasCells && dummy.getRow() == currentRow) {
+					endRow();
+				}
+				return;
+			}
+			if (record instanceof CellValueRecordInterface) {
+				CellValueRecordInterface cellRecord = (CellValueRecordInterface) record;
+				if (cellRecord.getRow() < range.getFirstRowIndex()
+						|| (columns != null && !columns.get(cellRecord.getColumn()))) {
+					// not projected or before the range: the row is kept, but the value (shared string, formula) is not read
+					startRow(cellRecord.getRow());
+					return;
+				}
+			}
+
+			switch (record.getSid()) {
+			case RowRecord.sid:
+				rowRecords.set(((RowRecord) record).getRowNumber());
+				break;
+			case NumberRecord.sid:
+				NumberRecord number = (NumberRecord) record;
+				newCell(number).setNumeric(number.getValue());
+				break;
+			case LabelSSTRecord.sid:
+				LabelSSTRecord sst = (LabelSSTRecord) record;
+				newCell(sst).setString(getSharedString(sst.getSSTIndex()));
+				break;
+			case LabelRecord.sid:
+				LabelRecord label = (LabelRecord) record;
+				newCell(label).setString(label.getValue());
+				break;
+			case BoolErrRecord.sid:
+				BoolErrRecord boolErr = (BoolErrRecord) record;
+				PoiExcelStreamingCell c = newCell(boolErr);
+				if (boolErr.isBoolean()) {
+					c.setBoolean(boolErr.getBooleanValue());
+				} else {
+					c.setError(boolErr.getErrorValue());
+				}
+				break;
+			case BlankRecord.sid:
+				BlankRecord blank = (BlankRecord) record;
+				newCell(blank).setBlank();
+				break;
+			case FormulaRecord.sid:
+				setFormula((FormulaRecord) record);
+				break;
+			case StringRecord.sid:
+				if (stringCell != null) {
+					stringCell.setString(((StringRecord) record).getString());
+					stringCell = null;
+				}
+				break;
+			default:
+				break;
+			}
+		}
+
+		private void startSheet(BOFRecord bof) {
+			if (substream >= streamOrder.length) {
+				return;
+			}
+			int sheetIndex = streamOrder[substream];
+			if (!sheetIndexes.contains(sheetIndex) || bof.getType() != BOFRecord.TYPE_WORKSHEET) {
+				return;
+			}
+
+			this.sheetName = sheetNames.get(sheetIndex);
+			this.columns = getColumns(sheetName);
+			this.range = getRowRange(sheetName);
+			this.rows = 0;
+			this.endOfRange = range.getMaxRows() <= 0;
+			rowRecords.clear();
+			this.currentRow = -1;
+			this.hasCells = false;
+			this.lastRow = -1;
+			this.stringCell = null;
+			handler.startSheet(sheetName, sheetIndex);
+		}
+
+		private void endSheet() {
+			if (sheetName == null) {
+				return;
+			}
+			if (hasCells) {
+				endRow();
+			}
+			emitRowsBefore(Integer.MAX_VALUE);
+			handler.endSheet(sheetName);
+			this.sheetName = null;
+
+			if (isLastSheet()) {
+				this.finished = true;
+			}
+		}
+
+		private boolean isLastSheet() {
+			int sheetIndex = streamOrder[substream];
+			return sheetIndex == sheetIndexes.get(sheetIndexes.size() - 1);
+		}
+
+		private PoiExcelStreamingCell newCell(CellValueRecordInterface record) {
+			startRow(record.getRow());
+			PoiExcelStreamingCell cell = row.newCell(record.getColumn());
+			cell.setStyle(getStyle(record.getXFIndex() & 0xffff));
+			return cell;
+		}
+
+		private void startRow(int rowIndex) {
+			if (rowIndex != currentRow) {
+				if (hasCells) {
+					endRow();
+				}
+				row.clear(rowIndex);
+				this.currentRow = rowIndex;
+			}
+			this.hasCells = true;
+			this.stringCell = null;
+		}
+
+		private void setFormula(FormulaRecord record) {
+			PoiExcelStreamingCell cell = newCell(record);
+			// the formula string is converted only for the columns which read it (e.g. cell_formula)
+			cell.setFormula(record.getFormula(), formulaConverter);
+
+			int cachedType = record.getCachedResultType();
+			switch (cachedType) {
+			case Cell.CELL_TYPE_NUMERIC:
+				cell.setNumeric(record.getValue());
+				break;
+			case Cell.CELL_TYPE_STRING:
+				cell.setString("");
+				if (record.hasCachedResultString()) {
+					this.stringCell = cell; // the value is in the next StringRecord
+				}
+				break;
+			case Cell.CELL_TYPE_BOOLEAN:
+				cell.setBoolean(record.getCachedBooleanValue());
+				break;
+			case Cell.CELL_TYPE_ERROR:
+				cell.setError((byte) record.getCachedErrorValue());
+				break;
+			default:
+				throw new IllegalStateException(MessageFormat.format("unsupported cached type={0}. {1}", cachedType,
+						cell));
+			}
+		}
+
+		private void endRow() {
+			emitRowsBefore(currentRow);
+			if (log.isTraceEnabled()) {
+				log.trace("row({}) parsed", currentRow);
+			}
+			emitRow(row);
+			this.lastRow = currentRow;
+			this.hasCells = false;
+			this.stringCell = null;
+		}
+
+		// rows which have only RowRecord (no cells)
+		private void emitRowsBefore(int rowIndex) {
+			for (int i = rowRecords.nextSetBit(lastRow + 1); i >= 0 && i < rowIndex; i = rowRecords
+					.nextSetBit(i + 1)) {
+				emptyRow.clear(i);
+				emitRow(emptyRow);
+				this.lastRow = i;
+			}
+		}
+
+		private void emitRow(PoiExcelStreamingRow row) {
+			int rowIndex = row.getRowNum();
+			if (endOfRange || rowIndex < range.getFirstRowIndex()) {
+				return;
+			}
+			if (rowIndex > range.getLastRowIndex()) {
+				this.endOfRange = true;
+				return;
+			}
+			handler.handleRow(row);
+			if (range.isEnd(rowIndex, ++rows)) {
+				this.endOfRange = true;
+			}
+		}
+	}
+}
@@ -0,0 +1,369 @@
+package org.embulk.parser.poi_excel.streaming;
+
+import java.text.MessageFormat;
+import java.util.Calendar;
+import java.util.Date;
+
+import org.apache.poi.ss.formula.Formula;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Comment;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.usermodel.Hyperlink;
+import org.apache.poi.ss.usermodel.RichTextString;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+
+/**
+ * read-only cell filled by {@link PoiExcelStreamingReader}.
+ * <p>
+ * instances are reused row after row, so they must not be kept after the row is processed.
+ * </p>
+ */
+public class PoiExcelStreamingCell implements Cell {
+
+	private final PoiExcelStreamingRow row;
+	private final int columnIndex;
+
+	private int cellType;
+	private int cachedType;
+	private double numericValue;
+	private String stringValue;
+	private boolean booleanValue;
+	private byte errorValue;
+	private String formula;
+	// xls: converted at the first getCellFormula()
+	private Formula encodedFormula;
+	private FormulaConverter formulaConverter;
+	private CellStyle style;
+	private Comment comment;
+
+	PoiExcelStreamingCell(PoiExcelStreamingRow row, int columnIndex) {
+		this.row = row;
+		this.columnIndex = columnIndex;
+	}
+
+	void clear() {
+		this.cellType = CELL_TYPE_BLANK;
+		this.cachedType = CELL_TYPE_BLANK;
+		this.numericValue = 0;
+		this.stringValue = null;
+		this.booleanValue = false;
+		this.errorValue = 0;
+		this.formula = null;
+		this.encodedFormula = null;
+		this.formulaConverter = null;
+		this.style = null;
+		this.comment = null;
+	}
+
+	void copyFrom(PoiExcelStreamingCell src) {
+		this.cellType = src.cellType;
+		this.cachedType = src.cachedType;
+		this.numericValue = src.numericValue;
+		this.stringValue = src.stringValue;
+		this.booleanValue = src.booleanValue;
+		this.errorValue = src.errorValue;
+		this.formula = src.formula;
+		this.encodedFormula = src.encodedFormula;
+		this.formulaConverter = src.formulaConverter;
+		this.style = src.style;
+		this.comment = src.comment;
+	}
+
+	public void setNumeric(double value) {
+		setType(CELL_TYPE_NUMERIC);
+		this.numericValue = value;
+	}
+
+	public void setString(String value) {
+		setType(CELL_TYPE_STRING);
+		this.stringValue = value;
+	}
+
+	public void setBoolean(boolean value) {
+		setType(CELL_TYPE_BOOLEAN);
+		this.booleanValue = value;
+	}
+
+	public void setError(byte value) {
+		setType(CELL_TYPE_ERROR);
+		this.errorValue = value;
+	}
+
+	public void setBlank() {
+		setType(CELL_TYPE_BLANK);
+	}
+
+	/**
+	 * @param formula
+	 *            formula (null if it is unknown, e.g. the non-master cell of shared formula)
+	 */
+	public void setFormula(String formula) {
+		this.cellType = CELL_TYPE_FORMULA;
+		this.formula = formula;
+		this.encodedFormula = null;
+		this.formulaConverter = null;
+	}
+
+	/**
+	 * @param formula
+	 *            encoded formula of xls
+	 * @param converter
+	 *            converter which is called only if the formula is read
+	 */
+	public void setFormula(Formula formula, FormulaConverter converter) {
+		this.cellType = CELL_TYPE_FORMULA;
+		this.formula = null;
+		this.encodedFormula = formula;
+		this.formulaConverter = converter;
+	}
+
+	/**
+	 * converts the encoded formula to the formula string.
+	 */
+	public interface FormulaConverter {
+
+		/**
+		 * @param formula
+		 *            encoded formula
+		 * @return formula (null if it is unknown)
+		 */
+		public String toFormulaString(Formula formula);
+	}
+
+	private void setType(int type) {
+		this.cachedType = type;
+		if (cellType != CELL_TYPE_FORMULA) {
+			this.cellType = type;
+		}
+	}
+
+	public void setStyle(CellStyle style) {
+		this.style = style;
+	}
+
+	@Override
+	public int getColumnIndex() {
+		return columnIndex;
+	}
+
+	@Override
+	public int getRowIndex() {
+		return row.getRowNum();
+	}
+
+	/**
+	 * @return null (the streaming engine does not build usermodel sheet)
+	 */
+	@Override
+	public Sheet getSheet() {
+		return null;
+	}
+
+	@Override
+	public Row getRow() {
+		return row;
+	}
+
+	@Override
+	public int getCellType() {
+		return cellType;
+	}
+
+	@Override
+	public int getCachedFormulaResultType() {
+		if (cellType != CELL_TYPE_FORMULA) {
+			throw new IllegalStateException("Only formula cells have cached results");
+		}
+		return cachedType;
+	}
+
+	@Override
+	public String getCellFormula() {
+		if (cellType != CELL_TYPE_FORMULA) {
+			throw typeMismatch(CELL_TYPE_FORMULA);
+		}
+		if (encodedFormula != null) {
+			this.formula = formulaConverter.toFormulaString(encodedFormula);
+			this.encodedFormula = null;
+			this.formulaConverter = null;
+		}
+		return formula;
+	}
+
+	@Override
+	public double getNumericCellValue() {
+		switch (cachedType) {
+		case CELL_TYPE_BLANK:
+			return 0;
+		case CELL_TYPE_NUMERIC:
+			return numericValue;
+		default:
+			throw typeMismatch(CELL_TYPE_NUMERIC);
+		}
+	}
+
+	@Override
+	public Date getDateCellValue() {
+		if (cachedType == CELL_TYPE_BLANK) {
+			return null;
+		}
+		return DateUtil.getJavaDate(getNumericCellValue(), row.isDate1904());
+	}
+
+	@Override
+	public RichTextString getRichStringCellValue() {
+		throw new UnsupportedOperationException("getRichStringCellValue");
+	}
+
+	@Override
+	public String getStringCellValue() {
+		switch (cachedType) {
+		case CELL_TYPE_BLANK:
+			return "";
+		case CELL_TYPE_STRING:
+			return stringValue;
+		default:
+			throw typeMismatch(CELL_TYPE_STRING);
+		}
+	}
+
+	@Override
+	public boolean getBooleanCellValue() {
+		switch (cachedType) {
+		case CELL_TYPE_BLANK:
+			return false;
+		case CELL_TYPE_BOOLEAN:
+			return booleanValue;
+		default:
+			throw typeMismatch(CELL_TYPE_BOOLEAN);
+		}
+	}
+
+	@Override
+	public byte getErrorCellValue() {
+		switch (cachedType) {
+		case CELL_TYPE_BLANK:
+			return 0;
+		case CELL_TYPE_ERROR:
+			return errorValue;
+		default:
+			throw typeMismatch(CELL_TYPE_ERROR);
+		}
+	}
+
+	private IllegalStateException typeMismatch(int expectedType) {
+		return new IllegalStateException(MessageFormat.format("Cannot get a {0} value from a {1} cell",
+				expectedType, cellType));
+	}
+
+	@Override
+	public CellStyle getCellStyle() {
+		return style;
+	}
+
+	@Override
+	public Comment getCellComment() {
+		return comment;
+	}
+
+	@Override
+	public Hyperlink getHyperlink() {
+		return null;
+	}
+
+	@Override
+	public CellRangeAddress getArrayFormulaRange() {
+		return null;
+	}
+
+	@Override
+	public boolean isPartOfArrayFormulaGroup() {
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return MessageFormat.format("PoiExcelStreamingCell(row={0}, column={1}, type={2})", getRowIndex(),
+				columnIndex, cellType);
+	}
+
+	// read only
+
+	@Override
+	public void setCellType(int cellType) {
+		throw new UnsupportedOperationException("read only");
+	}
+
+	@Override
+	public void setCellValue(double value) {
+		throw new UnsupportedOperationException("read only");
+	}
+
+	@Override
+	public void setCellValue(Date value) {
+		throw new UnsupportedOperationException("read only");
+	}
+
+	@Override
+	public void setCellValue(Calendar value) {
+		throw new UnsupportedOperationException("read only");
+	}
+
+	@Override
+	public void setCellValue(RichTextString value) {
+		throw new UnsupportedOperationException("read only");
+	}
+
+	@Override
+	public void setCellValue(String value) {
+		throw new UnsupportedOperationException("read only");
+	}
+
+	@Override
+	public void setCellFormula(String formula) {
+		throw new UnsupportedOperationException("read only");
+	}
+
+	@Override
+	public void setCellValue(boolean value) {
+		throw new UnsupportedOperationException("read only");
+	}
+
+	@Override
+	public void setCellErrorValue(byte value) {
+		throw new UnsupportedOperationException("read only");
+	}
+
+	@Override
+	public void setCellStyle(CellStyle style) {
+		throw new UnsupportedOperationException("read only");
+	}
+
+	@Override
+	public void setAsActiveCell() {
+		throw new UnsupportedOperationException("read only");
+	}
+
+	@Override
+	public void setCellComment(Comment comment) {
+		throw new UnsupportedOperationException("read only");
+	}
+
+	@Override
+	public void removeCellComment() {
+		throw new UnsupportedOperationException("read only");
+	}
+
+	@Override
+	public void setHyperlink(Hyperlink link) {
+		throw new UnsupportedOperationException("read only");
+	}
+
+	@Override
+	public void removeHyperlink() {
+		throw new UnsupportedOperationException("read only");
+	}
+}
@@ -0,0 +1,216 @@
+package org.embulk.parser.poi_excel.streaming;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.poi.ss.usermodel.Row;
+
+import com.google.common.base.Throwables;
+
+/**
+ * runs {@link PoiExcelStreamingReader} in another thread.
+ * <p>
+ * the reader thread (unzip, XML or record parsing, shared strings) copies the rows into batches, and the calling
+ * thread passes them to the handler (conversion, PageBuilder). the batches are recycled through a bounded queue, so
+ * the reader waits while the handler is behind.
+ * </p>
+ */
+public class PoiExcelStreamingPipeline {
+
+	private static final class Batch {
+		private final PoiExcelStreamingRow[] rows;
+		private int size;
+
+		private String startSheetName;
+		private int startSheetIndex;
+		private String endSheetName;
+		private boolean last;
+
+		public Batch(int batchSize) {
+			this.rows = new PoiExcelStreamingRow[batchSize];
+			for (int i = 0; i < batchSize; i++) {
+				rows[i] = new PoiExcelStreamingRow();
+			}
+		}
+
+		public void clear() {
+			this.size = 0;
+			this.startSheetName = null;
+			this.endSheetName = null;
+			this.last = false;
+		}
+
+		public boolean isFull() {
+			return size >= rows.length;
+		}
+	}
+
+	private final PoiExcelStreamingReader reader;
+	private final BlockingQueue<Batch> freeQueue;
+	private final BlockingQueue<Batch> fullQueue;
+
+	private volatile Throwable readerError;
+	private volatile boolean stopped;
+
+	/**
+	 * @param reader
+	 *            reader
+	 * @param queueSize
+	 *            number of batches which are read ahead
+	 * @param batchSize
+	 *            number of rows in a batch
+	 */
+	public PoiExcelStreamingPipeline(PoiExcelStreamingReader reader, int queueSize, int batchSize) {
+		this.reader = reader;
+		// one batch is filled by the reader and one is handled while the others are queued
+		int count = queueSize + 2;
+		this.freeQueue = new ArrayBlockingQueue<>(count);
+		this.fullQueue = new ArrayBlockingQueue<>(count);
+		for (int i = 0; i < count; i++) {
+			freeQueue.add(new Batch(batchSize));
+		}
+	}
+
+	/**
+	 * @param sheetNames
+	 *            sheet names to read (must exist in the workbook)
+	 * @param handler
+	 *            row handler (called in the calling thread)
+	 */
+	public void read(final List<String> sheetNames, PoiExcelStreamingReader.RowHandler handler) {
+		Thread thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				readRows(sheetNames);
+			}
+		}, "poi_excel-reader");
+		thread.setDaemon(true);
+		thread.start();
+
+		boolean completed = false;
+		try {
+			handleRows(handler);
+			completed = true;
+		} finally {
+			if (!completed) {
+				this.stopped = true;
+				thread.interrupt();
+			}
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		Throwable e = readerError;
+		if (e != null) {
+			throw Throwables.propagate(e);
+		}
+	}
+
+	protected void readRows(List<String> sheetNames) {
+		final Batch[] current = new Batch[1];
+		try {
+			reader.read(sheetNames, new PoiExcelStreamingReader.RowHandler() {
+
+				@Override
+				public void startSheet(String sheetName, int sheetIndex) {
+					Batch batch = next(current);
+					batch.startSheetName = sheetName;
+					batch.startSheetIndex = sheetIndex;
+				}
+
+				@Override
+				public void handleRow(Row row) {
+					Batch batch = current[0];
+					if (batch.isFull()) {
+						put(batch);
+						current[0] = null;
+						batch = next(current);
+					}
+					batch.rows[batch.size++].copyFrom((PoiExcelStreamingRow) row);
+				}
+
+				@Override
+				public void endSheet(String sheetName) {
+					Batch batch = current[0];
+					batch.endSheetName = sheetName;
+					put(batch);
+					current[0] = null;
+				}
+			});
+		} catch (Throwable e) {
+			if (!(e instanceof PipelineInterruptedException)) {
+				this.readerError = e;
+			}
+		} finally {
+			if (stopped) {
+				return;
+			}
+			try {
+				Batch batch = (current[0] != null) ? current[0] : next(current);
+				batch.last = true;
+				put(batch);
+			} catch (PipelineInterruptedException e) {
+				// the handler has stopped
+			}
+		}
+	}
+
+	private Batch next(Batch[] current) {
+		Batch batch = take(freeQueue);
+		batch.clear();
+		current[0] = batch;
+		return batch;
+	}
+
+	private void put(Batch batch) {
+		try {
+			fullQueue.put(batch);
+		} catch (InterruptedException e) {
+			throw new PipelineInterruptedException();
+		}
+	}
+
+	protected void handleRows(PoiExcelStreamingReader.RowHandler handler) {
+		for (;;) {
+			Batch batch;
+			try {
+				batch = fullQueue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+
+			if (batch.startSheetName != null) {
+				handler.startSheet(batch.startSheetName, batch.startSheetIndex);
+			}
+			for (int i = 0; i < batch.size; i++) {
+				handler.handleRow(batch.rows[i]);
+			}
+			if (batch.endSheetName != null) {
+				handler.endSheet(batch.endSheetName);
+			}
+			if (batch.last) {
+				return;
+			}
+
+			freeQueue.add(batch);
+		}
+	}
+
+	private static Batch take(BlockingQueue<Batch> queue) {
+		try {
+			return queue.take();
+		} catch (InterruptedException e) {
+			throw new PipelineInterruptedException();
+		}
+	}
+
+	private static class PipelineInterruptedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+}
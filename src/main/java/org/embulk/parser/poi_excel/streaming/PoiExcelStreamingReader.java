@@ -0,0 +1,132 @@
+package org.embulk.parser.poi_excel.streaming;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.poi.poifs.filesystem.NPOIFSFileSystem;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.embulk.parser.poi_excel.bean.PoiExcelRowRange;
+
+/**
+ * reads rows of a workbook without building the usermodel.
+ */
+public abstract class PoiExcelStreamingReader implements Closeable {
+
+	public static interface RowHandler {
+
+		public void startSheet(String sheetName, int sheetIndex);
+
+		/**
+		 * @param row
+		 *            row (reused after this method returns)
+		 */
+		public void handleRow(Row row);
+
+		public void endSheet(String sheetName);
+	}
+
+	/**
+	 * @param file
+	 *            Excel file
+	 * @return reader. null if the file format is not supported
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public static PoiExcelStreamingReader open(File file) throws IOException {
+		byte[] header = new byte[8];
+		try (InputStream is = new FileInputStream(file)) {
+			int len = is.read(header);
+			if (len < header.length) {
+				return null;
+			}
+		}
+
+		// ZIP (Office Open XML)
+		if (header[0] == 'P' && header[1] == 'K' && header[2] == 3 && header[3] == 4) {
+			return new PoiExcelXssfStreamingReader(file);
+		}
+		// OLE2 (BIFF8)
+		if (NPOIFSFileSystem.hasPOIFSHeader(header)) {
+			return new PoiExcelHssfStreamingReader(file);
+		}
+		return null;
+	}
+
+	private Map<String, BitSet> columnsMap = Collections.emptyMap();
+
+	/**
+	 * @param columnsMap
+	 *            column indexes to read per sheet name. the cells of other columns are skipped before they are
+	 *            parsed (shared strings, formulas). all columns are read for the sheets not in the map
+	 */
+	public void setColumns(Map<String, BitSet> columnsMap) {
+		this.columnsMap = columnsMap;
+	}
+
+	/**
+	 * @param sheetName
+	 *            sheet name
+	 * @return column indexes to read. null if all columns are read
+	 */
+	protected BitSet getColumns(String sheetName) {
+		return columnsMap.get(sheetName);
+	}
+
+	private Map<String, PoiExcelRowRange> rowRangeMap = Collections.emptyMap();
+
+	/**
+	 * @param rowRangeMap
+	 *            rows to read per sheet name. the rows before the range are skipped before they are parsed, and
+	 *            the rest of the sheet is not read after the range. all rows are read for the sheets not in the map
+	 */
+	public void setRowRanges(Map<String, PoiExcelRowRange> rowRangeMap) {
+		this.rowRangeMap = rowRangeMap;
+	}
+
+	/**
+	 * @param sheetName
+	 *            sheet name
+	 * @return rows to read
+	 */
+	protected PoiExcelRowRange getRowRange(String sheetName) {
+		PoiExcelRowRange range = rowRangeMap.get(sheetName);
+		return (range != null) ? range : PoiExcelRowRange.ALL;
+	}
+
+	/**
+	 * @return true if the workbook uses 1904 date system
+	 */
+	public abstract boolean isDate1904();
+
+	/**
+	 * @return workbook which resolves the fonts and the palette of the cell styles. null if the cell styles do not
+	 *         need the workbook (xlsx)
+	 */
+	public Workbook getStyleWorkbook() {
+		return null;
+	}
+
+	/**
+	 * @return all sheet names in workbook order
+	 */
+	public abstract List<String> getSheetNames();
+
+	/**
+	 * @param sheetNames
+	 *            sheet names to read (must exist in the workbook)
+	 * @param handler
+	 *            row handler
+	 */
+	public abstract void read(List<String> sheetNames, RowHandler handler);
+
+	@Override
+	public abstract void close() throws IOException;
+}
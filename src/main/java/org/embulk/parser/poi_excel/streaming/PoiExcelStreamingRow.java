@@ -0,0 +1,243 @@
+package org.embulk.parser.poi_excel.streaming;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+
+/**
+ * read-only row filled by {@link PoiExcelStreamingReader}.
+ * <p>
+ * the row and its cells are reused, so the memory is bounded by the widest row.
+ * </p>
+ */
+public class PoiExcelStreamingRow implements Row {
+
+	private int rowNum;
+	private PoiExcelStreamingCell[] pool = new PoiExcelStreamingCell[16];
+	private PoiExcelStreamingCell[] cells = new PoiExcelStreamingCell[16];
+	private int firstCellNum = -1;
+	private int lastCellNum = -1; // exclusive
+	private int count;
+	// date system of the workbook (read by the date values of the cells)
+	private boolean date1904;
+
+	public PoiExcelStreamingRow() {
+		this(false);
+	}
+
+	/**
+	 * @param date1904
+	 *            true if the workbook uses the 1904 date system
+	 */
+	public PoiExcelStreamingRow(boolean date1904) {
+		this.date1904 = date1904;
+	}
+
+	public boolean isDate1904() {
+		return date1904;
+	}
+
+	public void clear(int rowNum) {
+		if (count > 0) {
+			Arrays.fill(cells, firstCellNum, lastCellNum, null);
+		}
+		this.rowNum = rowNum;
+		this.firstCellNum = -1;
+		this.lastCellNum = -1;
+		this.count = 0;
+	}
+
+	/**
+	 * @param src
+	 *            row to copy (the cells are copied, not shared)
+	 */
+	public void copyFrom(PoiExcelStreamingRow src) {
+		clear(src.rowNum);
+		this.date1904 = src.date1904;
+		if (src.count == 0) {
+			return;
+		}
+		for (int i = src.firstCellNum; i < src.lastCellNum; i++) {
+			PoiExcelStreamingCell cell = src.cells[i];
+			if (cell != null) {
+				newCell(i).copyFrom(cell);
+			}
+		}
+	}
+
+	/**
+	 * @param columnIndex
+	 *            column index (0 origin)
+	 * @return cell (cleared)
+	 */
+	public PoiExcelStreamingCell newCell(int columnIndex) {
+		if (columnIndex >= pool.length) {
+			int size = Math.max(pool.length * 2, columnIndex + 1);
+			pool = Arrays.copyOf(pool, size);
+			cells = Arrays.copyOf(cells, size);
+		}
+		PoiExcelStreamingCell cell = pool[columnIndex];
+		if (cell == null) {
+			cell = new PoiExcelStreamingCell(this, columnIndex);
+			pool[columnIndex] = cell;
+		}
+		cell.clear();
+
+		if (cells[columnIndex] == null) {
+			count++;
+		}
+		cells[columnIndex] = cell;
+		if (firstCellNum < 0 || columnIndex < firstCellNum) {
+			firstCellNum = columnIndex;
+		}
+		if (columnIndex >= lastCellNum) {
+			lastCellNum = columnIndex + 1;
+		}
+		return cell;
+	}
+
+	@Override
+	public int getRowNum() {
+		return rowNum;
+	}
+
+	@Override
+	public Cell getCell(int cellnum) {
+		if (cellnum < 0 || cellnum >= lastCellNum) {
+			return null;
+		}
+		return cells[cellnum];
+	}
+
+	@Override
+	public Cell getCell(int cellnum, MissingCellPolicy policy) {
+		Cell cell = getCell(cellnum);
+		if (policy == RETURN_BLANK_AS_NULL) {
+			if (cell != null && cell.getCellType() == Cell.CELL_TYPE_BLANK) {
+				return null;
+			}
+			return cell;
+		}
+		if (policy == CREATE_NULL_AS_BLANK && cell == null) {
+			throw new UnsupportedOperationException("read only");
+		}
+		return cell;
+	}
+
+	@Override
+	public short getFirstCellNum() {
+		return (short) firstCellNum;
+	}
+
+	@Override
+	public short getLastCellNum() {
+		return (short) lastCellNum;
+	}
+
+	@Override
+	public int getPhysicalNumberOfCells() {
+		return count;
+	}
+
+	@Override
+	public Iterator<Cell> iterator() {
+		return cellIterator();
+	}
+
+	@Override
+	public Iterator<Cell> cellIterator() {
+		List<Cell> list = new ArrayList<>(count);
+		for (int i = Math.max(firstCellNum, 0); i < lastCellNum; i++) {
+			if (cells[i] != null) {
+				list.add(cells[i]);
+			}
+		}
+		return list.iterator();
+	}
+
+	/**
+	 * @return null (the streaming engine does not build usermodel sheet)
+	 */
+	@Override
+	public Sheet getSheet() {
+		return null;
+	}
+
+	@Override
+	public boolean getZeroHeight() {
+		return false;
+	}
+
+	@Override
+	public short getHeight() {
+		return -1;
+	}
+
+	@Override
+	public float getHeightInPoints() {
+		return -1;
+	}
+
+	@Override
+	public boolean isFormatted() {
+		return false;
+	}
+
+	@Override
+	public CellStyle getRowStyle() {
+		return null;
+	}
+
+	@Override
+	public int getOutlineLevel() {
+		return 0;
+	}
+
+	// read only
+
+	@Override
+	public Cell createCell(int column) {
+		throw new UnsupportedOperationException("read only");
+	}
+
+	@Override
+	public Cell createCell(int column, int type) {
+		throw new UnsupportedOperationException("read only");
+	}
+
+	@Override
+	public void removeCell(Cell cell) {
+		throw new UnsupportedOperationException("read only");
+	}
+
+	@Override
+	public void setRowNum(int rowNum) {
+		throw new UnsupportedOperationException("read only");
+	}
+
+	@Override
+	public void setHeight(short height) {
+		throw new UnsupportedOperationException("read only");
+	}
+
+	@Override
+	public void setZeroHeight(boolean zHeight) {
+		throw new UnsupportedOperationException("read only");
+	}
+
+	@Override
+	public void setHeightInPoints(float height) {
+		throw new UnsupportedOperationException("read only");
+	}
+
+	@Override
+	public void setRowStyle(CellStyle style) {
+		throw new UnsupportedOperationException("read only");
+	}
+}
@@ -0,0 +1,473 @@
+package org.embulk.parser.poi_excel.streaming;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFRelation;
+import org.embulk.parser.poi_excel.bean.PoiExcelRowRange;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * streaming reader for xlsx. reads sheet XML by SAX.
+ */
+public class PoiExcelXssfStreamingReader extends PoiExcelStreamingReader {
+	private final Logger log = Exec.getLogger(getClass());
+
+	private final OPCPackage pkg;
+	private final List<String> sharedStrings = new ArrayList<>();
+	private final StylesTable styles;
+	private final Map<Integer, XSSFCellStyle> styleCache = new HashMap<>();
+
+	private final List<String> sheetNames = new ArrayList<>();
+	private final Map<String, PackagePart> sheetParts = new HashMap<>();
+	private boolean date1904;
+
+	public PoiExcelXssfStreamingReader(File file) throws IOException {
+		try {
+			this.pkg = OPCPackage.open(file, PackageAccess.READ);
+		} catch (OpenXML4JException e) {
+			throw new IOException(e);
+		}
+		try {
+			XSSFReader reader = new XSSFReader(pkg);
+			readSharedStrings();
+			readWorkbookProperties(reader);
+			this.styles = reader.getStylesTable();
+
+			XSSFReader.SheetIterator i = (XSSFReader.SheetIterator) reader.getSheetsData();
+			while (i.hasNext()) {
+				// the sheet is read later by the part
+				i.next().close();
+				String name = i.getSheetName();
+				sheetNames.add(name);
+				sheetParts.put(name, i.getSheetPart());
+			}
+		} catch (IOException | OpenXML4JException | SAXException | ParserConfigurationException | RuntimeException e) {
+			pkg.revert();
+			if (e instanceof IOException) {
+				throw (IOException) e;
+			}
+			throw new IOException(e);
+		}
+	}
+
+	protected void readSharedStrings() throws IOException, SAXException, ParserConfigurationException {
+		List<PackagePart> parts = pkg.getPartsByContentType(XSSFRelation.SHARED_STRINGS.getContentType());
+		if (parts.isEmpty()) {
+			return;
+		}
+		try (InputStream is = parts.get(0).getInputStream()) {
+			XMLReader reader = newXMLReader();
+			reader.setContentHandler(new SharedStringsHandler());
+			reader.parse(new InputSource(is));
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("shared strings={}", sharedStrings.size());
+		}
+	}
+
+	protected void readWorkbookProperties(XSSFReader reader) throws IOException, OpenXML4JException, SAXException,
+			ParserConfigurationException {
+		try (InputStream is = reader.getWorkbookData()) {
+			XMLReader xmlReader = newXMLReader();
+			xmlReader.setContentHandler(new DefaultHandler() {
+				@Override
+				public void startElement(String uri, String localName, String qName, Attributes attributes) {
+					if ("workbookPr".equals(localName)) {
+						String value = attributes.getValue("date1904");
+						date1904 = "1".equals(value) || "true".equals(value);
+					}
+				}
+			});
+			xmlReader.parse(new InputSource(is));
+		}
+	}
+
+	// phonetic runs (rPh) are excluded same as usermodel
+	private class SharedStringsHandler extends DefaultHandler {
+		private final StringBuilder text = new StringBuilder(64);
+		private boolean collectText = false;
+		private boolean inPhonetic = false;
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) {
+			switch (localName) {
+			case "si":
+				text.setLength(0);
+				break;
+			case "t":
+				collectText = !inPhonetic;
+				break;
+			case "rPh":
+				inPhonetic = true;
+				break;
+			default:
+				break;
+			}
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) {
+			switch (localName) {
+			case "si":
+				sharedStrings.add(text.toString());
+				break;
+			case "t":
+				collectText = false;
+				break;
+			case "rPh":
+				inPhonetic = false;
+				break;
+			default:
+				break;
+			}
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) {
+			if (collectText) {
+				text.append(ch, start, length);
+			}
+		}
+	}
+
+	@Override
+	public boolean isDate1904() {
+		return date1904;
+	}
+
+	@Override
+	public List<String> getSheetNames() {
+		return Collections.unmodifiableList(sheetNames);
+	}
+
+	@Override
+	public void read(List<String> sheetNames, RowHandler handler) {
+		for (String sheetName : sheetNames) {
+			PackagePart part = sheetParts.get(sheetName);
+			if (part == null) {
+				throw new RuntimeException(MessageFormat.format("not found sheet={0}", sheetName));
+			}
+
+			handler.startSheet(sheetName, this.sheetNames.indexOf(sheetName));
+			try (InputStream is = part.getInputStream()) {
+				XMLReader reader = newXMLReader();
+				reader.setContentHandler(new SheetHandler(handler, getColumns(sheetName), getRowRange(sheetName)));
+				reader.parse(new InputSource(is));
+			} catch (EndOfRangeException e) {
+				// the rest of the sheet is not read
+			} catch (IOException | SAXException | ParserConfigurationException e) {
+				throw new RuntimeException(MessageFormat.format("sheet read error. sheet={0}", sheetName), e);
+			}
+			handler.endSheet(sheetName);
+		}
+	}
+
+	protected XMLReader newXMLReader() throws SAXException, ParserConfigurationException {
+		SAXParserFactory factory = SAXParserFactory.newInstance();
+		factory.setNamespaceAware(true);
+		factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+		return factory.newSAXParser().getXMLReader();
+	}
+
+	protected XSSFCellStyle getStyle(int index) {
+		if (styles == null) {
+			return null;
+		}
+		XSSFCellStyle style = styleCache.get(index);
+		if (style == null) {
+			if (index >= styles.getNumCellStyles()) {
+				return null;
+			}
+			style = styles.getStyleAt(index);
+			styleCache.put(index, style);
+		}
+		return style;
+	}
+
+	@Override
+	public void close() throws IOException {
+		pkg.revert();
+	}
+
+	// thrown by SheetHandler to stop parsing the sheet
+	private static class EndOfRangeException extends SAXException {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+
+	private class SheetHandler extends DefaultHandler {
+		private final RowHandler handler;
+		// null: all columns
+		private final BitSet columns;
+		private final PoiExcelRowRange range;
+		private long rows = 0;
+		private final PoiExcelStreamingRow row = new PoiExcelStreamingRow(date1904);
+
+		private int nextRowIndex = 0;
+		private int nextColumnIndex = 0;
+		private boolean inRow = false;
+
+		// current cell
+		private PoiExcelStreamingCell cell;
+		private String cellType;
+		private String value;
+		private String inlineString;
+
+		private final StringBuilder text = new StringBuilder(64);
+		private boolean collectText = false;
+		private boolean inInlineString = false;
+		private boolean inPhonetic = false;
+
+		public SheetHandler(RowHandler handler, BitSet columns, PoiExcelRowRange range) {
+			this.handler = handler;
+			this.columns = columns;
+			this.range = range;
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes)
+				throws SAXException {
+			switch (localName) {
+			case "row":
+				startRow(attributes);
+				break;
+			case "c":
+				startCell(attributes);
+				break;
+			case "v":
+			case "f":
+				if (cell != null) {
+					startText();
+				}
+				break;
+			case "is":
+				if (cell == null) {
+					break;
+				}
+				inInlineString = true;
+				inlineString = null;
+				text.setLength(0);
+				break;
+			case "t":
+				if (inInlineString && !inPhonetic) {
+					collectText = true;
+				}
+				break;
+			case "rPh":
+				inPhonetic = true;
+				break;
+			default:
+				break;
+			}
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+			switch (localName) {
+			case "row":
+				endRow();
+				break;
+			case "c":
+				endCell();
+				break;
+			case "v":
+				if (cell != null) {
+					value = text.toString();
+				}
+				collectText = false;
+				break;
+			case "f":
+				if (cell != null) {
+					String formula = text.toString();
+					cell.setFormula(formula.isEmpty() ? null : formula);
+				}
+				collectText = false;
+				break;
+			case "t":
+				if (inInlineString) {
+					collectText = false;
+				}
+				break;
+			case "is":
+				if (inInlineString) {
+					inlineString = text.toString();
+					inInlineString = false;
+				}
+				break;
+			case "rPh":
+				inPhonetic = false;
+				break;
+			default:
+				break;
+			}
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) {
+			if (collectText) {
+				text.append(ch, start, length);
+			}
+		}
+
+		private void startText() {
+			text.setLength(0);
+			collectText = true;
+		}
+
+		private void startRow(Attributes attributes) throws SAXException {
+			String r = attributes.getValue("r");
+			int rowIndex = (r != null) ? Integer.parseInt(r) - 1 : nextRowIndex;
+			nextRowIndex = rowIndex + 1;
+			if (rowIndex > range.getLastRowIndex() || rows >= range.getMaxRows()) {
+				throw new EndOfRangeException();
+			}
+			if (rowIndex < range.getFirstRowIndex()) {
+				// the cells are not read
+				return;
+			}
+			row.clear(rowIndex);
+			nextColumnIndex = 0;
+			inRow = true;
+		}
+
+		private void endRow() throws SAXException {
+			if (!inRow) {
+				return;
+			}
+			if (log.isTraceEnabled()) {
+				log.trace("row({}) parsed", row.getRowNum());
+			}
+			handler.handleRow(row);
+			inRow = false;
+			if (range.isEnd(row.getRowNum(), ++rows)) {
+				throw new EndOfRangeException();
+			}
+		}
+
+		private void startCell(Attributes attributes) {
+			if (!inRow) {
+				return;
+			}
+			String r = attributes.getValue("r");
+			int columnIndex = (r != null) ? toColumnIndex(r) : nextColumnIndex;
+			nextColumnIndex = columnIndex + 1;
+			if (columns != null && !columns.get(columnIndex)) {
+				// not projected: the value and the style are not read
+				this.cell = null;
+				return;
+			}
+
+			this.cell = row.newCell(columnIndex);
+			this.cellType = attributes.getValue("t");
+			this.value = null;
+			this.inlineString = null;
+
+			String s = attributes.getValue("s");
+			int styleIndex = (s != null) ? Integer.parseInt(s) : 0;
+			cell.setStyle(getStyle(styleIndex));
+		}
+
+		private void endCell() {
+			if (cell == null) {
+				return;
+			}
+			try {
+				setValue();
+			} catch (RuntimeException e) {
+				throw new RuntimeException(MessageFormat.format("illegal cell value. {0}, t={1}, v={2}", cell,
+						cellType, value), e);
+			}
+			this.cell = null;
+		}
+
+		private void setValue() {
+			if (cellType == null || cellType.equals("n")) {
+				if (value == null || value.isEmpty()) {
+					cell.setBlank();
+				} else {
+					cell.setNumeric(Double.parseDouble(value));
+				}
+				return;
+			}
+			switch (cellType) {
+			case "s":
+				if (value == null || value.isEmpty()) {
+					cell.setBlank();
+				} else {
+					cell.setString(sharedStrings.get(Integer.parseInt(value)));
+				}
+				break;
+			case "inlineStr":
+				cell.setString((inlineString != null) ? inlineString : "");
+				break;
+			case "str":
+			case "d":
+				cell.setString((value != null) ? value : "");
+				break;
+			case "b":
+				if (value == null || value.isEmpty()) {
+					cell.setBlank();
+				} else {
+					cell.setBoolean(value.equals("1") || value.equalsIgnoreCase("true"));
+				}
+				break;
+			case "e":
+				if (value == null || value.isEmpty()) {
+					cell.setBlank();
+				} else {
+					cell.setError(FormulaError.forString(value).getCode());
+				}
+				break;
+			default:
+				throw new IllegalStateException(MessageFormat.format("unsupported cell type t={0}", cellType));
+			}
+		}
+	}
+
+	// "AB12" -> 27
+	static int toColumnIndex(String ref) {
+		int n = 0;
+		for (int i = 0; i < ref.length(); i++) {
+			char c = ref.charAt(i);
+			if ('A' <= c && c <= 'Z') {
+				n = n * 26 + (c - 'A' + 1);
+			} else if ('a' <= c && c <= 'z') {
+				n = n * 26 + (c - 'a' + 1);
+			} else {
+				break;
+			}
+		}
+		return n - 1;
+	}
+}
@@ -1,8 +1,9 @@
 package org.embulk.parser.poi_excel.visitor;
 
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedHashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
@@ -11,25 +12,34 @@ import java.util.TreeSet;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.Color;
 import org.embulk.parser.poi_excel.bean.PoiExcelColumnBean;
+import org.embulk.parser.poi_excel.visitor.PoiExcelWorkbookCache.AttributeCache;
 import org.embulk.parser.poi_excel.visitor.embulk.CellVisitor;
 import org.embulk.spi.Column;
 import org.embulk.spi.PageBuilder;
 import org.embulk.spi.type.StringType;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 public abstract class AbstractPoiExcelCellAttributeVisitor<A> {
 
 	protected final PoiExcelVisitorValue visitorValue;
 	protected final PageBuilder pageBuilder;
 
+	private final Map<PoiExcelColumnBean, AttributeCache> cacheMap = new IdentityHashMap<>();
+	private final Map<PoiExcelColumnBean, AttributeList<A>> attributeListMap = new IdentityHashMap<>();
+	private AttributeList<A> allAttributeList;
+
 	public AbstractPoiExcelCellAttributeVisitor(PoiExcelVisitorValue visitorValue) {
 		this.visitorValue = visitorValue;
 		this.pageBuilder = visitorValue.getPageBuilder();
 	}
 
 	public void visit(PoiExcelColumnBean bean, Cell cell, CellVisitor visitor) {
+		int cacheIndex = getCacheIndex(cell);
+		if (cacheIndex >= 0) {
+			visitCache(bean, cell, cacheIndex, visitor);
+			return;
+		}
+
 		A source = getAttributeSource(bean, cell);
 		if (source == null) {
 			Column column = bean.getColumn();
@@ -37,19 +47,120 @@ public abstract class AbstractPoiExcelCellAttributeVisitor<A> {
 			return;
 		}
 
+		Object value = getValue(bean, cell, source);
+		visitValue(bean.getColumn(), source, value, visitor);
+	}
+
+	protected abstract A getAttributeSource(PoiExcelColumnBean bean, Cell cell);
+
+	/**
+	 * the value is cached per workbook if the attribute source is identified by the index in the workbook.
+	 *
+	 * @param cell
+	 *            cell
+	 * @return index of the attribute source (style index, font index). -1 if the value is not cached
+	 */
+	protected int getCacheIndex(Cell cell) {
+		return -1;
+	}
+
+	private void visitCache(PoiExcelColumnBean bean, Cell cell, int cacheIndex, CellVisitor visitor) {
+		AttributeCache cache = cacheMap.get(bean);
+		if (cache == null) {
+			cache = visitorValue.getWorkbookCache().getAttributeCache(getCacheName(bean));
+			cacheMap.put(bean, cache);
+		}
+
+		Object value = cache.get(cacheIndex);
+		if (value == null) {
+			A source = getAttributeSource(bean, cell);
+			value = (source != null) ? getValue(bean, cell, source) : null;
+			value = cache.put(cacheIndex, value);
+		}
+		visitValue(bean.getColumn(), cell, (value != AttributeCache.NULL) ? value : null, visitor);
+	}
+
+	private String getCacheName(PoiExcelColumnBean bean) {
+		// the value depends on the attribute names and the column type (e.g. color is string or long)
+		StringBuilder sb = new StringBuilder(64);
+		sb.append(bean.getValueType().name().toLowerCase());
 		String suffix = bean.getValueTypeSuffix();
 		if (suffix != null) {
-			visitKey(bean, suffix, cell, source, visitor);
+			sb.append('.').append(suffix);
 		} else {
-			visitJson(bean, cell, source, visitor);
+			sb.append(bean.getAttributeName());
 		}
+		sb.append(':').append(bean.getColumn().getType());
+		return sb.toString();
 	}
 
-	protected abstract A getAttributeSource(PoiExcelColumnBean bean, Cell cell);
-
-	private void visitKey(PoiExcelColumnBean bean, String key, Cell cell, A source, CellVisitor visitor) {
+	private Object getValue(PoiExcelColumnBean bean, Cell cell, A source) {
 		Column column = bean.getColumn();
-		Object value = getAttributeValue(column, cell, source, key);
+		String suffix = bean.getValueTypeSuffix();
+		if (suffix != null) {
+			Object value = getAttributeValue(column, cell, source, suffix);
+			if (value instanceof Map) {
+				return convertJsonString((Map<?, ?>) value);
+			}
+			return value;
+		}
+
+		AttributeList<A> list = attributeListMap.get(bean);
+		if (list == null) {
+			List<String> names = bean.getAttributeName();
+			list = !names.isEmpty() ? newAttributeList(names) : getAllAttributeList();
+			attributeListMap.put(bean, list);
+		}
+
+		PoiExcelJsonWriter writer = visitorValue.getWorkbookCache().getJsonWriter();
+		writer.writeStartObject();
+		for (int i = 0; i < list.size(); i++) {
+			Object value = getAttributeValue(column, cell, source, list.suppliers.get(i));
+			writer.writeField(list.keys.get(i), value);
+		}
+		return writer.writeEndObject();
+	}
+
+	/**
+	 * keys and suppliers in the output order.
+	 */
+	protected static final class AttributeList<A> {
+		private final List<String> keys = new ArrayList<>();
+		private final List<AttributeSupplier<A>> suppliers = new ArrayList<>();
+
+		public int size() {
+			return keys.size();
+		}
+	}
+
+	private AttributeList<A> newAttributeList(List<String> names) {
+		// same order as LinkedHashMap: the first occurrence of the key
+		AttributeList<A> list = new AttributeList<>();
+		for (String key : names) {
+			if (!list.keys.contains(key)) {
+				list.keys.add(key);
+				list.suppliers.add(getAttributeSupplier(key));
+			}
+		}
+		return list;
+	}
+
+	private AttributeList<A> getAllAttributeList() {
+		if (allAttributeList == null) {
+			AttributeList<A> list = new AttributeList<>();
+			Map<String, AttributeSupplier<A>> map = getAttributeSupplierMap();
+			for (String key : new TreeSet<>(map.keySet())) {
+				if (acceptKey(key)) {
+					list.keys.add(key);
+					list.suppliers.add(map.get(key));
+				}
+			}
+			this.allAttributeList = list;
+		}
+		return allAttributeList;
+	}
+
+	private void visitValue(Column column, Object source, Object value, CellVisitor visitor) {
 		if (value == null) {
 			pageBuilder.setNull(column);
 		} else if (value instanceof String) {
@@ -60,41 +171,12 @@ public abstract class AbstractPoiExcelCellAttributeVisitor<A> {
 			visitor.visitCellValueBoolean(column, source, (Boolean) value);
 		} else if (value instanceof Double) {
 			visitor.visitCellValueNumeric(column, source, (Double) value);
-		} else if (value instanceof Map) {
-			visitor.visitCellValueString(column, source, convertJsonString(value));
 		} else {
 			throw new IllegalStateException(MessageFormat.format("unsupported conversion. type={0}, value={1}", value
 					.getClass().getName(), value));
 		}
 	}
 
-	private void visitJson(PoiExcelColumnBean bean, Cell cell, A source, CellVisitor visitor) {
-		Column column = bean.getColumn();
-
-		Map<String, Object> result;
-
-		List<String> list = bean.getAttributeName();
-		if (!list.isEmpty()) {
-			result = getSpecifiedValues(column, cell, source, list);
-		} else {
-			result = getAllValues(column, cell, source);
-		}
-
-		String json = convertJsonString(result);
-		visitor.visitCellValueString(column, cell, json);
-	}
-
-	protected final Map<String, Object> getSpecifiedValues(Column column, Cell cell, A source, List<String> keyList) {
-		Map<String, Object> result = new LinkedHashMap<>();
-
-		for (String key : keyList) {
-			Object value = getAttributeValue(column, cell, source, key);
-			result.put(key, value);
-		}
-
-		return result;
-	}
-
 	protected final Map<String, Object> getAllValues(Column column, Cell cell, A source) {
 		Map<String, Object> result = new TreeMap<>();
 
@@ -114,12 +196,20 @@ public abstract class AbstractPoiExcelCellAttributeVisitor<A> {
 	}
 
 	protected final Object getAttributeValue(Column column, Cell cell, A source, String key) {
+		return getAttributeValue(column, cell, source, getAttributeSupplier(key));
+	}
+
+	private AttributeSupplier<A> getAttributeSupplier(String key) {
 		Map<String, AttributeSupplier<A>> map = getAttributeSupplierMap();
 		AttributeSupplier<A> supplier = map.get(key.toLowerCase());
 		if (supplier == null) {
 			throw new UnsupportedOperationException(MessageFormat.format(
 					"unsupported attribute name={0}, choose in {1}", key, new TreeSet<>(map.keySet())));
 		}
+		return supplier;
+	}
+
+	private Object getAttributeValue(Column column, Cell cell, A source, AttributeSupplier<A> supplier) {
 		Object value = supplier.get(column, cell, source);
 
 		if (value instanceof Color) {
@@ -143,12 +233,7 @@ public abstract class AbstractPoiExcelCellAttributeVisitor<A> {
 
 	protected abstract Map<String, AttributeSupplier<A>> getAttributeSupplierMap();
 
-	protected final String convertJsonString(Object result) {
-		try {
-			ObjectMapper mapper = new ObjectMapper();
-			return mapper.writeValueAsString(result);
-		} catch (JsonProcessingException e) {
-			throw new RuntimeException(e);
-		}
+	protected final String convertJsonString(Map<?, ?> result) {
+		return visitorValue.getWorkbookCache().getJsonWriter().toJsonString(result);
 	}
 }
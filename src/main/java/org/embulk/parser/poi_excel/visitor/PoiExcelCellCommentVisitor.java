@@ -8,6 +8,7 @@ import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.ClientAnchor;
 import org.apache.poi.ss.usermodel.Comment;
 import org.apache.poi.ss.usermodel.RichTextString;
+import org.apache.poi.ss.usermodel.Sheet;
 import org.embulk.parser.poi_excel.bean.PoiExcelColumnBean;
 import org.embulk.spi.Column;
 
@@ -19,7 +20,13 @@ public class PoiExcelCellCommentVisitor extends AbstractPoiExcelCellAttributeVis
 
 	@Override
 	protected Comment getAttributeSource(PoiExcelColumnBean bean, Cell cell) {
-		return cell.getCellComment();
+		Sheet sheet = visitorValue.getSheet();
+		// created when the first cell_comment column is visited (or before the sheets are read in parallel)
+		PoiExcelCommentIndex index = (sheet != null) ? visitorValue.getWorkbookCache().getCommentIndex(sheet) : null;
+		if (index == null) {
+			return cell.getCellComment();
+		}
+		return index.get(cell.getRowIndex(), cell.getColumnIndex());
 	}
 
 	protected boolean acceptKey(String key) {
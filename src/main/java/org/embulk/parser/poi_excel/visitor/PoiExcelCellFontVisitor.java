@@ -8,6 +8,7 @@ import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.Font;
 import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
 import org.apache.poi.xssf.usermodel.XSSFFont;
 import org.embulk.parser.poi_excel.bean.PoiExcelColumnBean;
 import org.embulk.spi.Column;
@@ -21,18 +22,33 @@ public class PoiExcelCellFontVisitor extends AbstractPoiExcelCellAttributeVisito
 	@Override
 	protected Font getAttributeSource(PoiExcelColumnBean bean, Cell cell) {
 		CellStyle style = cell.getCellStyle();
+		if (style == null) {
+			return null;
+		}
+		if (style instanceof XSSFCellStyle) {
+			return ((XSSFCellStyle) style).getFont();
+		}
 		short index = style.getFontIndex();
-		Workbook book = visitorValue.getSheet().getWorkbook();
+		Workbook book = visitorValue.getWorkbookCache().getStyleWorkbook();
 		return book.getFontAt(index);
 	}
 
+	@Override
+	protected int getCacheIndex(Cell cell) {
+		CellStyle style = cell.getCellStyle();
+		if (style == null) {
+			return -1;
+		}
+		return style.getFontIndex() & 0xffff;
+	}
+
 	@Override
 	protected Map<String, AttributeSupplier<Font>> getAttributeSupplierMap() {
 		return SUPPLIER_MAP;
 	}
 
-	private static final Map<String, AttributeSupplier<Font>> SUPPLIER_MAP;
-	static {
+	private final Map<String, AttributeSupplier<Font>> SUPPLIER_MAP;
+	{
 		Map<String, AttributeSupplier<Font>> map = new HashMap<>(32);
 		map.put("font_name", new AttributeSupplier<Font>() {
 			@Override
@@ -70,7 +86,7 @@ public class PoiExcelCellFontVisitor extends AbstractPoiExcelCellAttributeVisito
 				if (font instanceof XSSFFont) {
 					return ((XSSFFont) font).getXSSFColor();
 				} else {
-					Workbook book = cell.getSheet().getWorkbook();
+					Workbook book = visitorValue.getWorkbookCache().getStyleWorkbook();
 					short color = font.getColor();
 					return PoiExcelColorVisitor.getHssfColor(book, color);
 				}
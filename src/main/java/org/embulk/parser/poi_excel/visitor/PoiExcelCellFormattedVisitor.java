@@ -0,0 +1,50 @@
+package org.embulk.parser.poi_excel.visitor;
+
+import java.text.MessageFormat;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.embulk.parser.poi_excel.bean.PoiExcelColumnBean;
+import org.embulk.parser.poi_excel.visitor.embulk.CellVisitor;
+import org.embulk.spi.Column;
+
+public class PoiExcelCellFormattedVisitor {
+	protected final PoiExcelVisitorValue visitorValue;
+
+	public PoiExcelCellFormattedVisitor(PoiExcelVisitorValue visitorValue) {
+		this.visitorValue = visitorValue;
+	}
+
+	public void visit(PoiExcelColumnBean bean, Cell cell, CellVisitor visitor) {
+		assert cell != null;
+
+		Column column = bean.getColumn();
+		int cellType = cell.getCellType();
+		if (cellType == Cell.CELL_TYPE_FORMULA) {
+			// formatted value of the cached result (same as Excel shows)
+			cellType = cell.getCachedFormulaResultType();
+		}
+
+		switch (cellType) {
+		case Cell.CELL_TYPE_NUMERIC:
+			PoiExcelDataFormatter formatter = visitorValue.getWorkbookCache().getDataFormatter();
+			visitor.visitCellValueString(column, cell, formatter.format(cell, cell.getNumericCellValue()));
+			return;
+		case Cell.CELL_TYPE_STRING:
+			visitor.visitCellValueString(column, cell, cell.getStringCellValue());
+			return;
+		case Cell.CELL_TYPE_BOOLEAN:
+			visitor.visitCellValueString(column, cell, String.valueOf(cell.getBooleanCellValue()));
+			return;
+		case Cell.CELL_TYPE_ERROR:
+			FormulaError error = FormulaError.forInt(cell.getErrorCellValue());
+			visitor.visitCellValueString(column, cell, error.getString());
+			return;
+		case Cell.CELL_TYPE_BLANK:
+			visitor.visitCellValueBlank(column, cell);
+			return;
+		default:
+			throw new IllegalStateException(MessageFormat.format("unsupported POI cellType={0}", cellType));
+		}
+	}
+}
@@ -23,6 +23,16 @@ public class PoiExcelCellStyleVisitor extends AbstractPoiExcelCellAttributeVisit
 		return cell.getCellStyle();
 	}
 
+	@Override
+	protected int getCacheIndex(Cell cell) {
+		CellStyle style = cell.getCellStyle();
+		if (style == null) {
+			return -1;
+		}
+		// HSSF index is unsigned short
+		return style.getIndex() & 0xffff;
+	}
+
 	protected boolean acceptKey(String key) {
 		if (key.equals("border")) {
 			return false;
@@ -35,8 +45,8 @@ public class PoiExcelCellStyleVisitor extends AbstractPoiExcelCellAttributeVisit
 		return SUPPLIER_MAP;
 	}
 
-	private static final Map<String, AttributeSupplier<CellStyle>> SUPPLIER_MAP;
-	static {
+	private final Map<String, AttributeSupplier<CellStyle>> SUPPLIER_MAP;
+	{
 		Map<String, AttributeSupplier<CellStyle>> map = new HashMap<>(32);
 		map.put("alignment", new AttributeSupplier<CellStyle>() {
 			@Override
@@ -87,7 +97,7 @@ public class PoiExcelCellStyleVisitor extends AbstractPoiExcelCellAttributeVisit
 				if (style instanceof XSSFCellStyle) {
 					return ((XSSFCellStyle) style).getBottomBorderXSSFColor();
 				} else {
-					Workbook book = cell.getSheet().getWorkbook();
+					Workbook book = visitorValue.getWorkbookCache().getStyleWorkbook();
 					short color = style.getBottomBorderColor();
 					return PoiExcelColorVisitor.getHssfColor(book, color);
 				}
@@ -99,7 +109,7 @@ public class PoiExcelCellStyleVisitor extends AbstractPoiExcelCellAttributeVisit
 				if (style instanceof XSSFCellStyle) {
 					return ((XSSFCellStyle) style).getLeftBorderXSSFColor();
 				} else {
-					Workbook book = cell.getSheet().getWorkbook();
+					Workbook book = visitorValue.getWorkbookCache().getStyleWorkbook();
 					short color = style.getLeftBorderColor();
 					return PoiExcelColorVisitor.getHssfColor(book, color);
 				}
@@ -111,7 +121,7 @@ public class PoiExcelCellStyleVisitor extends AbstractPoiExcelCellAttributeVisit
 				if (style instanceof XSSFCellStyle) {
 					return ((XSSFCellStyle) style).getRightBorderXSSFColor();
 				} else {
-					Workbook book = cell.getSheet().getWorkbook();
+					Workbook book = visitorValue.getWorkbookCache().getStyleWorkbook();
 					short color = style.getRightBorderColor();
 					return PoiExcelColorVisitor.getHssfColor(book, color);
 				}
@@ -123,7 +133,7 @@ public class PoiExcelCellStyleVisitor extends AbstractPoiExcelCellAttributeVisit
 				if (style instanceof XSSFCellStyle) {
 					return ((XSSFCellStyle) style).getTopBorderXSSFColor();
 				} else {
-					Workbook book = cell.getSheet().getWorkbook();
+					Workbook book = visitorValue.getWorkbookCache().getStyleWorkbook();
 					short color = style.getTopBorderColor();
 					return PoiExcelColorVisitor.getHssfColor(book, color);
 				}
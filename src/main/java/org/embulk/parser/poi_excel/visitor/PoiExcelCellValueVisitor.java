@@ -1,26 +1,18 @@
 package org.embulk.parser.poi_excel.visitor;
 
 import java.text.MessageFormat;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
 
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellValue;
-import org.apache.poi.ss.usermodel.CreationHelper;
 import org.apache.poi.ss.usermodel.FormulaError;
-import org.apache.poi.ss.usermodel.FormulaEvaluator;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.ss.util.CellRangeAddress;
 import org.embulk.parser.poi_excel.PoiExcelColumnValueType;
-import org.embulk.parser.poi_excel.PoiExcelParserPlugin.FormulaReplaceTask;
 import org.embulk.parser.poi_excel.bean.PoiExcelColumnBean;
 import org.embulk.parser.poi_excel.bean.PoiExcelColumnBean.ErrorStrategy;
 import org.embulk.parser.poi_excel.bean.PoiExcelColumnBean.FormulaHandling;
+import org.embulk.parser.poi_excel.bean.PoiExcelFormulaReplacer;
 import org.embulk.parser.poi_excel.visitor.embulk.CellVisitor;
 import org.embulk.spi.Column;
 import org.embulk.spi.Exec;
@@ -72,62 +64,31 @@ public class PoiExcelCellValueVisitor {
 			throw new IllegalStateException(MessageFormat.format("unsupported POI cellType={0}", cellType));
 		}
 	}
-	private static class CellRangeAddgessMap {
-		private final Logger log = Exec.getLogger(getClass());
-		private final Map<String, Map<Integer, Map<Integer, CellRangeAddress>>> cache = new HashMap<>();
 
-		private Map<Integer, Map<Integer, CellRangeAddress>> getCache(Cell cell) {
+	// built at the first blank cell, released with this visitor (i.e. when the sheet is done)
+	private PoiExcelMergedRegionIndex mergedRegionIndex;
 
-			Sheet sheet = cell.getSheet();
-			Map<Integer, Map<Integer, CellRangeAddress>> map = cache.get(sheet.getSheetName());
-			if (map != null) {
-				return map;
-			}
-			log.debug("Generate Cache... this={}, sheet={}, ThreadId={}", this, cell.getSheet().getSheetName(), Thread.currentThread().getId());
-			int size = sheet.getNumMergedRegions();
-			map = new TreeMap<>();
-			cache.put(sheet.getSheetName(), map);
-			for (int i = 0; i < size; i++) {
-				CellRangeAddress range = sheet.getMergedRegion(i);
-				for (int ri = range.getFirstRow(); ri <= range.getLastRow(); ++ri) {
-					Map<Integer, CellRangeAddress> rowMap = map.get(ri);
-					if (rowMap == null) {
-						rowMap = new TreeMap<>();
-						map.put(ri, rowMap);
-					}
-					for (int ci = range.getFirstColumn(); ci <= range.getLastColumn(); ++ci) {
-						CellRangeAddress cellRangeAddress = rowMap.get(ci);
-						if (cellRangeAddress == null) {
-							rowMap.put(ci, range);
-						}
-					}
-				}
-			}
-			return map;
-		}
-
-		public CellRangeAddress get(Cell cell) {
-			int r = cell.getRowIndex();
-			int c = cell.getColumnIndex();
-			return getCache(cell).getOrDefault(r, Collections.<Integer, CellRangeAddress>emptyMap()).getOrDefault(c,
-					null);
+	protected CellRangeAddress getMergedRegion(Cell cell) {
+		if (mergedRegionIndex == null) {
+			Sheet sheet = visitorValue.getSheet();
+			mergedRegionIndex = new PoiExcelMergedRegionIndex(sheet);
+			log.debug("merged region index. sheet={}, size={}", sheet.getSheetName(), mergedRegionIndex.size());
 		}
+		return mergedRegionIndex.get(cell.getRowIndex(), cell.getColumnIndex());
 	}
 
-	private final CellRangeAddgessMap cellRangeAddgessMap = new CellRangeAddgessMap();
-
 	protected void visitCellValueBlank(PoiExcelColumnBean bean, Cell cell, CellVisitor visitor) {
 		assert cell.getCellType() == Cell.CELL_TYPE_BLANK;
 
 		Column column = bean.getColumn();
 
 		boolean search = bean.getSearchMergedCell();
-		if (!search) {
+		if (!search || visitorValue.getSheet() == null) { // streaming engine does not read merged regions
 			visitor.visitCellValueBlank(column, cell);
 			return;
 		}
 
-		CellRangeAddress range = cellRangeAddgessMap.get(cell);
+		CellRangeAddress range = getMergedRegion(cell);
 
 		if (range != null) {
 			Sheet sheet = cell.getSheet();
@@ -153,10 +114,22 @@ public class PoiExcelCellValueVisitor {
 		assert cell.getCellType() == Cell.CELL_TYPE_FORMULA;
 
 		FormulaHandling handling = bean.getFormulaHandling();
+		if (visitorValue.getSheet() == null) {
+			// streaming engine has no workbook to evaluate
+			handling = FormulaHandling.CASHED_VALUE;
+		}
 		switch (handling) {
 		case CASHED_VALUE:
 			visitCellValueFormulaCashedValue(bean, cell, visitor);
 			break;
+		case AUTO:
+			boolean replace = !bean.getFormulaReplacer().isEmpty();
+			if (visitorValue.getWorkbookCache().isAutoEvaluate(cell, replace)) {
+				visitCellValueFormulaEvaluate(bean, cell, visitor);
+			} else {
+				visitCellValueFormulaCashedValue(bean, cell, visitor);
+			}
+			break;
 		default:
 			visitCellValueFormulaEvaluate(bean, cell, visitor);
 			break;
@@ -192,36 +165,24 @@ public class PoiExcelCellValueVisitor {
 	protected void visitCellValueFormulaEvaluate(PoiExcelColumnBean bean, Cell cell, CellVisitor visitor) {
 		Column column = bean.getColumn();
 
-		List<FormulaReplaceTask> list = bean.getFormulaReplace();
-		if (!list.isEmpty()) {
-			String formula = cell.getCellFormula();
-			String old = formula;
-
-			for (FormulaReplaceTask replace : list) {
-				String regex = replace.getRegex();
-				String replacement = replace.getTo();
-
-				replacement = replacement.replace("${row}", Integer.toString(cell.getRowIndex() + 1));
-
-				formula = formula.replaceAll(regex, replacement);
-			}
-
-			if (!formula.equals(old)) {
+		String formula = null;
+		PoiExcelFormulaReplacer replacer = bean.getFormulaReplacer();
+		if (!replacer.isEmpty()) {
+			String old = cell.getCellFormula();
+			formula = replacer.replace(old, cell.getRowIndex());
+			if (formula != null) {
 				log.debug("formula replaced. old=\"{}\", new=\"{}\"", old, formula);
 				try {
-					cell.setCellFormula(formula);
+					visitorValue.getWorkbookCache().setReplacedFormula(cell, formula);
 				} catch (Exception e) {
-					throw new RuntimeException(MessageFormat.format("setCellFormula error. formula={0}", formula), e);
+					throw new RuntimeException(MessageFormat.format("formula_replace error. formula={0}", formula), e);
 				}
 			}
 		}
 
 		CellValue cellValue;
 		try {
-			Workbook book = cell.getSheet().getWorkbook();
-			CreationHelper helper = book.getCreationHelper();
-			FormulaEvaluator evaluator = helper.createFormulaEvaluator();
-			cellValue = evaluator.evaluate(cell);
+			cellValue = visitorValue.getWorkbookCache().evaluate(cell, bean.getFormulaTemplate());
 		} catch (Exception e) {
 			ErrorStrategy strategy = bean.getEvaluateErrorStrategy();
 			switch (strategy.getStrategy()) {
@@ -237,7 +198,8 @@ public class PoiExcelCellValueVisitor {
 				return;
 			}
 
-			throw new RuntimeException(MessageFormat.format("evaluate error. formula={0}", cell.getCellFormula()), e);
+			throw new RuntimeException(MessageFormat.format("evaluate error. formula={0}",
+					(formula != null) ? formula : cell.getCellFormula()), e);
 		}
 
 		int cellType = cellValue.getCellType();
@@ -43,7 +43,7 @@ public class PoiExcelColorVisitor {
 	}
 
 	public Color getHssfColor(short colorIndex) {
-		HSSFWorkbook book = (HSSFWorkbook) visitorValue.getSheet().getWorkbook();
+		HSSFWorkbook book = (HSSFWorkbook) visitorValue.getWorkbookCache().getStyleWorkbook();
 		return getHssfColor(book, colorIndex);
 	}
 
@@ -1,6 +1,7 @@
 package org.embulk.parser.poi_excel.visitor;
 
 import java.text.MessageFormat;
+import java.util.List;
 
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.Row;
@@ -23,6 +24,9 @@ public class PoiExcelColumnVisitor implements ColumnVisitor {
 
 	protected Row currentRow;
 
+	// compiled plan (one reader per Embulk column). created at the first row
+	private ColumnReader[] readers;
+
 	public PoiExcelColumnVisitor(PoiExcelVisitorValue visitorValue) {
 		this.visitorValue = visitorValue;
 		this.pageBuilder = visitorValue.getPageBuilder();
@@ -33,6 +37,210 @@ public class PoiExcelColumnVisitor implements ColumnVisitor {
 		this.currentRow = row;
 	}
 
+	/**
+	 * set all columns of the row to PageBuilder by the compiled plan.
+	 * <p>
+	 * same as {@link #setRow(Row)} and {@code schema.visitColumns(this)}, but without the per-cell lookup of
+	 * the cell visitor.
+	 * </p>
+	 *
+	 * @param row
+	 *            row
+	 */
+	public void visitRow(Row row) {
+		this.currentRow = row;
+		final boolean trace = log.isTraceEnabled();
+		for (ColumnReader reader : getReaders()) {
+			if (trace) {
+				log.trace("{} start", reader.column);
+			}
+			try {
+				visitCell(reader.column, reader.visitor);
+			} catch (Exception e) {
+				throw newCellException(reader.column, e);
+			}
+			if (trace) {
+				log.trace("{} end", reader.column);
+			}
+		}
+	}
+
+	protected final ColumnReader[] getReaders() {
+		if (readers == null) {
+			readers = compile();
+		}
+		return readers;
+	}
+
+	protected ColumnReader[] compile() {
+		List<PoiExcelColumnBean> beans = visitorValue.getSheetBean().getColumnBeans();
+		ColumnReader[] readers = new ColumnReader[beans.size()];
+		for (int i = 0; i < readers.length; i++) {
+			PoiExcelColumnBean bean = beans.get(i);
+			readers[i] = newColumnReader(bean, getCellVisitor(bean.getColumn()));
+		}
+		return readers;
+	}
+
+	protected CellVisitor getCellVisitor(Column column) {
+		final CellVisitor[] result = new CellVisitor[1];
+		column.visit(new ColumnVisitor() {
+
+			@Override
+			public void booleanColumn(Column column) {
+				result[0] = factory.getBooleanCellVisitor();
+			}
+
+			@Override
+			public void longColumn(Column column) {
+				result[0] = factory.getLongCellVisitor();
+			}
+
+			@Override
+			public void doubleColumn(Column column) {
+				result[0] = factory.getDoubleCellVisitor();
+			}
+
+			@Override
+			public void stringColumn(Column column) {
+				result[0] = factory.getStringCellVisitor();
+			}
+
+			@Override
+			public void timestampColumn(Column column) {
+				result[0] = factory.getTimestampCellVisitor();
+			}
+		});
+		return result[0];
+	}
+
+	protected ColumnReader newColumnReader(PoiExcelColumnBean bean, CellVisitor visitor) {
+		PoiExcelColumnValueType valueType = bean.getValueType();
+		switch (valueType) {
+		case SHEET_NAME:
+			return new ColumnReader(bean, visitor) {
+				@Override
+				public void read(Row row, CellVisitor visitor) {
+					visitor.visitSheetName(column);
+				}
+			};
+		case ROW_NUMBER:
+			return new ColumnReader(bean, visitor) {
+				@Override
+				public void read(Row row, CellVisitor visitor) {
+					visitor.visitRowNumber(column, row.getRowNum() + 1);
+				}
+			};
+		case COLUMN_NUMBER:
+			return new ColumnReader(bean, visitor) {
+				@Override
+				public void read(Row row, CellVisitor visitor) {
+					visitor.visitColumnNumber(column, columnIndex + 1);
+				}
+			};
+		case CONSTANT:
+			return new ColumnReader(bean, visitor) {
+				private final String value = bean.getValueTypeSuffix();
+
+				@Override
+				public void read(Row row, CellVisitor visitor) {
+					visitCellConstant(column, value, visitor);
+				}
+			};
+		case CELL_VALUE:
+		case CELL_FORMULA:
+			return new CellReader(bean, visitor) {
+				@Override
+				protected void read(Cell cell, CellVisitor visitor) {
+					visitCellValue(bean, cell, visitor);
+				}
+			};
+		case CELL_STYLE:
+			return new CellReader(bean, visitor) {
+				@Override
+				protected void read(Cell cell, CellVisitor visitor) {
+					visitCellStyle(bean, cell, visitor);
+				}
+			};
+		case CELL_FONT:
+			return new CellReader(bean, visitor) {
+				@Override
+				protected void read(Cell cell, CellVisitor visitor) {
+					visitCellFont(bean, cell, visitor);
+				}
+			};
+		case CELL_FORMATTED:
+			return new CellReader(bean, visitor) {
+				@Override
+				protected void read(Cell cell, CellVisitor visitor) {
+					visitCellFormatted(bean, cell, visitor);
+				}
+			};
+		case CELL_COMMENT:
+			return new CellReader(bean, visitor) {
+				@Override
+				protected void read(Cell cell, CellVisitor visitor) {
+					visitCellComment(bean, cell, visitor);
+				}
+			};
+		case CELL_TYPE:
+			return new CellReader(bean, visitor) {
+				@Override
+				protected void read(Cell cell, CellVisitor visitor) {
+					visitCellType(bean, cell, cell.getCellType(), visitor);
+				}
+			};
+		case CELL_CACHED_TYPE:
+			return new CellReader(bean, visitor) {
+				@Override
+				protected void read(Cell cell, CellVisitor visitor) {
+					int cellType = cell.getCellType();
+					if (cellType == Cell.CELL_TYPE_FORMULA) {
+						cellType = cell.getCachedFormulaResultType();
+					}
+					visitCellType(bean, cell, cellType, visitor);
+				}
+			};
+		default:
+			throw new UnsupportedOperationException(MessageFormat.format("unsupported value_type={0}", valueType));
+		}
+	}
+
+	protected abstract class ColumnReader {
+		protected final PoiExcelColumnBean bean;
+		protected final Column column;
+		protected final int columnIndex;
+		protected final CellVisitor visitor;
+
+		public ColumnReader(PoiExcelColumnBean bean, CellVisitor visitor) {
+			this.bean = bean;
+			this.column = bean.getColumn();
+			this.columnIndex = bean.getColumnIndex();
+			this.visitor = visitor;
+		}
+
+		public abstract void read(Row row, CellVisitor visitor);
+	}
+
+	protected abstract class CellReader extends ColumnReader {
+
+		public CellReader(PoiExcelColumnBean bean, CellVisitor visitor) {
+			super(bean, visitor);
+		}
+
+		@Override
+		public final void read(Row row, CellVisitor visitor) {
+			Cell cell = row.getCell(columnIndex);
+			if (cell == null) {
+				visitCellNull(column);
+				return;
+			}
+			read(cell, visitor);
+		}
+
+		protected abstract void read(Cell cell, CellVisitor visitor);
+	}
+
 	@Override
 	public final void booleanColumn(Column column) {
 		visitCell0(column, factory.getBooleanCellVisitor());
@@ -65,71 +273,24 @@ public class PoiExcelColumnVisitor implements ColumnVisitor {
 		try {
 			visitCell(column, visitor);
 		} catch (Exception e) {
-			String sheetName = visitorValue.getSheet().getSheetName();
-			String ref = new CellReference(currentRow.getRowNum(), visitorValue.getColumnBean(column).getColumnIndex())
-					.formatAsString();
-			throw new RuntimeException(MessageFormat.format("error at {0} cell={1}!{2}. {3}", column, sheetName, ref,
-					e.getMessage()), e);
+			throw newCellException(column, e);
 		}
 		if (log.isTraceEnabled()) {
 			log.trace("{} end", column);
 		}
 	}
 
-	protected void visitCell(Column column, CellVisitor visitor) {
-		PoiExcelColumnBean bean = visitorValue.getColumnBean(column);
-		PoiExcelColumnValueType valueType = bean.getValueType();
-
-		switch (valueType) {
-		case SHEET_NAME:
-			visitor.visitSheetName(column);
-			return;
-		case ROW_NUMBER:
-			visitor.visitRowNumber(column, currentRow.getRowNum() + 1);
-			return;
-		case COLUMN_NUMBER:
-			visitor.visitColumnNumber(column, bean.getColumnIndex() + 1);
-			return;
-		case CONSTANT:
-			visitCellConstant(column, bean.getValueTypeSuffix(), visitor);
-			return;
-		default:
-			break;
-		}
+	protected RuntimeException newCellException(Column column, Exception e) {
+		String sheetName = visitorValue.getSheetName();
+		String ref = new CellReference(currentRow.getRowNum(), visitorValue.getColumnBean(column).getColumnIndex())
+				.formatAsString();
+		return new RuntimeException(MessageFormat.format("error at {0} cell={1}!{2}. {3}", column, sheetName, ref,
+				e.getMessage()), e);
+	}
 
-		assert valueType.useCell();
-		Cell cell = currentRow.getCell(bean.getColumnIndex());
-		if (cell == null) {
-			visitCellNull(column);
-			return;
-		}
-		switch (valueType) {
-		case CELL_VALUE:
-		case CELL_FORMULA:
-			visitCellValue(bean, cell, visitor);
-			return;
-		case CELL_STYLE:
-			visitCellStyle(bean, cell, visitor);
-			return;
-		case CELL_FONT:
-			visitCellFont(bean, cell, visitor);
-			return;
-		case CELL_COMMENT:
-			visitCellComment(bean, cell, visitor);
-			return;
-		case CELL_TYPE:
-			visitCellType(bean, cell, cell.getCellType(), visitor);
-			return;
-		case CELL_CACHED_TYPE:
-			if (cell.getCellType() == Cell.CELL_TYPE_FORMULA) {
-				visitCellType(bean, cell, cell.getCachedFormulaResultType(), visitor);
-			} else {
-				visitCellType(bean, cell, cell.getCellType(), visitor);
-			}
-			return;
-		default:
-			throw new UnsupportedOperationException(MessageFormat.format("unsupported value_type={0}", valueType));
-		}
+	protected void visitCell(Column column, CellVisitor visitor) {
+		ColumnReader reader = getReaders()[column.getIndex()];
+		reader.read(currentRow, visitor);
 	}
 
 	protected void visitCellConstant(Column column, String value, CellVisitor visitor) {
@@ -144,27 +305,32 @@ public class PoiExcelColumnVisitor implements ColumnVisitor {
 		pageBuilder.setNull(column);
 	}
 
-	private void visitCellValue(PoiExcelColumnBean bean, Cell cell, CellVisitor visitor) {
+	protected void visitCellValue(PoiExcelColumnBean bean, Cell cell, CellVisitor visitor) {
 		PoiExcelCellValueVisitor delegator = factory.getPoiExcelCellValueVisitor();
 		delegator.visitCellValue(bean, cell, visitor);
 	}
 
-	private void visitCellStyle(PoiExcelColumnBean bean, Cell cell, CellVisitor visitor) {
+	protected void visitCellStyle(PoiExcelColumnBean bean, Cell cell, CellVisitor visitor) {
 		PoiExcelCellStyleVisitor delegator = factory.getPoiExcelCellStyleVisitor();
 		delegator.visit(bean, cell, visitor);
 	}
 
-	private void visitCellFont(PoiExcelColumnBean bean, Cell cell, CellVisitor visitor) {
+	protected void visitCellFont(PoiExcelColumnBean bean, Cell cell, CellVisitor visitor) {
 		PoiExcelCellFontVisitor delegator = factory.getPoiExcelCellFontVisitor();
 		delegator.visit(bean, cell, visitor);
 	}
 
-	private void visitCellComment(PoiExcelColumnBean bean, Cell cell, CellVisitor visitor) {
+	protected void visitCellFormatted(PoiExcelColumnBean bean, Cell cell, CellVisitor visitor) {
+		PoiExcelCellFormattedVisitor delegator = factory.getPoiExcelCellFormattedVisitor();
+		delegator.visit(bean, cell, visitor);
+	}
+
+	protected void visitCellComment(PoiExcelColumnBean bean, Cell cell, CellVisitor visitor) {
 		PoiExcelCellCommentVisitor delegator = factory.getPoiExcelCellCommentVisitor();
 		delegator.visit(bean, cell, visitor);
 	}
 
-	private void visitCellType(PoiExcelColumnBean bean, Cell cell, int cellType, CellVisitor visitor) {
+	protected void visitCellType(PoiExcelColumnBean bean, Cell cell, int cellType, CellVisitor visitor) {
 		PoiExcelCellTypeVisitor delegator = factory.getPoiExcelCellTypeVisitor();
 		delegator.visit(bean, cell, cellType, visitor);
 	}
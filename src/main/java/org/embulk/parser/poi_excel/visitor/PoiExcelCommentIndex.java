@@ -0,0 +1,195 @@
+package org.embulk.parser.poi_excel.visitor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+import org.apache.poi.POIXMLDocumentPart;
+import org.apache.poi.hssf.usermodel.HSSFComment;
+import org.apache.poi.hssf.usermodel.HSSFPatriarch;
+import org.apache.poi.hssf.usermodel.HSSFShape;
+import org.apache.poi.hssf.usermodel.HSSFShapeContainer;
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.ss.usermodel.Comment;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.model.CommentsTable;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFVMLDrawing;
+import org.apache.poi.xssf.util.EvilUnclosedBRFixingInputStream;
+import org.apache.xmlbeans.XmlException;
+import org.apache.xmlbeans.XmlObject;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTComment;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTCommentList;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTLegacyDrawing;
+import org.w3c.dom.Node;
+
+import schemasMicrosoftComOfficeExcel.CTClientData;
+import schemasMicrosoftComOfficeExcel.STObjectType;
+import schemasMicrosoftComVml.CTShape;
+
+/**
+ * comments of a sheet by row and column.
+ * <p>
+ * Cell#getCellComment searches the drawing (xls) or the VML shapes (xlsx) for each cell. the index is built by one
+ * scan of the sheet (and one parse of the VML shapes), and cells without comment are answered without allocation.
+ * </p>
+ */
+public class PoiExcelCommentIndex {
+
+	private static final QName QNAME_COMMENT = new QName(CTCommentList.type.getName().getNamespaceURI(), "comment");
+	private static final QName QNAME_SHAPE = new QName("urn:schemas-microsoft-com:vml", "shape");
+
+	private final BitSet rows = new BitSet();
+	private final Map<Long, Comment> map = new HashMap<>();
+
+	/**
+	 * @param sheet
+	 *            sheet
+	 * @return index. null if the sheet is not supported
+	 */
+	public static PoiExcelCommentIndex create(Sheet sheet) {
+		if (sheet instanceof XSSFSheet) {
+			PoiExcelCommentIndex index = new PoiExcelCommentIndex();
+			index.addXssf((XSSFSheet) sheet);
+			return index;
+		}
+		if (sheet instanceof HSSFSheet) {
+			PoiExcelCommentIndex index = new PoiExcelCommentIndex();
+			HSSFPatriarch patriarch = ((HSSFSheet) sheet).getDrawingPatriarch();
+			if (patriarch != null) {
+				index.addHssf(patriarch);
+			}
+			return index;
+		}
+		return null;
+	}
+
+	private void addXssf(XSSFSheet sheet) {
+		CommentsTable comments = null;
+		for (POIXMLDocumentPart part : sheet.getRelations()) {
+			if (part instanceof CommentsTable) {
+				comments = (CommentsTable) part;
+				break;
+			}
+		}
+		if (comments == null) {
+			return;
+		}
+
+		CTCommentList list = comments.getCTComments().getCommentList();
+		if (list == null) {
+			return;
+		}
+		Map<Long, CTShape> shapeMap = readCommentShapes(sheet);
+		// CTCommentList#getCommentArray(int) searches the children from the first
+		for (XmlObject obj : list.selectChildren(QNAME_COMMENT)) {
+			CTComment ct = (CTComment) obj;
+			CellReference ref = new CellReference(ct.getRef());
+			int row = ref.getRow();
+			int column = ref.getCol();
+			if (!contains(row, column)) {
+				if (shapeMap != null) {
+					put(row, column, new XSSFComment(comments, ct, shapeMap.get(key(row, column))));
+				} else {
+					// XSSFSheet resolves the VML shape of the comment
+					put(row, column, sheet.getCellComment(row, column));
+				}
+			}
+		}
+	}
+
+	// same as XSSFVMLDrawing (XSSFSheet#getCellComment searches all shapes for each comment)
+	private static Map<Long, CTShape> readCommentShapes(XSSFSheet sheet) {
+		CTLegacyDrawing legacyDrawing = sheet.getCTWorksheet().getLegacyDrawing();
+		Map<Long, CTShape> map = new HashMap<>();
+		if (legacyDrawing == null) {
+			return map;
+		}
+		for (POIXMLDocumentPart part : sheet.getRelations()) {
+			if (part instanceof XSSFVMLDrawing
+					&& part.getPackageRelationship().getId().equals(legacyDrawing.getId())) {
+				try (InputStream is = part.getPackagePart().getInputStream()) {
+					XmlObject root = XmlObject.Factory.parse(new EvilUnclosedBRFixingInputStream(is));
+					for (XmlObject obj : root.selectPath("$this/xml/*")) {
+						Node node = obj.getDomNode();
+						if (!QNAME_SHAPE.equals(new QName(node.getNamespaceURI(), node.getLocalName()))) {
+							continue;
+						}
+						CTShape shape = CTShape.Factory.parse(obj.xmlText());
+						if (shape.sizeOfClientDataArray() > 0) {
+							CTClientData data = shape.getClientDataArray(0);
+							if (data.getObjectType() == STObjectType.NOTE) {
+								long key = key(data.getRowArray(0).intValue(), data.getColumnArray(0).intValue());
+								// the first shape is used, same as XSSFVMLDrawing
+								if (!map.containsKey(key)) {
+									map.put(key, shape);
+								}
+							}
+						}
+					}
+				} catch (IOException | XmlException e) {
+					// the shapes are resolved by XSSFSheet
+					return null;
+				}
+				break;
+			}
+		}
+		return map;
+	}
+
+	private void addHssf(HSSFShapeContainer container) {
+		for (HSSFShape shape : container.getChildren()) {
+			if (shape instanceof HSSFShapeContainer) {
+				addHssf((HSSFShapeContainer) shape);
+				continue;
+			}
+			if (shape instanceof HSSFComment) {
+				HSSFComment comment = (HSSFComment) shape;
+				// the first comment is used, same as HSSFSheet
+				if (comment.hasPosition() && !contains(comment.getRow(), comment.getColumn())) {
+					put(comment.getRow(), comment.getColumn(), comment);
+				}
+			}
+		}
+	}
+
+	private static long key(int row, int column) {
+		return ((long) row << 32) | (column & 0xffffffffL);
+	}
+
+	private boolean contains(int row, int column) {
+		return rows.get(row) && map.containsKey(key(row, column));
+	}
+
+	private void put(int row, int column, Comment comment) {
+		if (comment == null) {
+			return;
+		}
+		rows.set(row);
+		map.put(key(row, column), comment);
+	}
+
+	/**
+	 * @param row
+	 *            row index (0 origin)
+	 * @param column
+	 *            column index (0 origin)
+	 * @return comment. null if the cell has no comment
+	 */
+	public Comment get(int row, int column) {
+		if (!rows.get(row)) {
+			return null;
+		}
+		return map.get(key(row, column));
+	}
+
+	public int size() {
+		return map.size();
+	}
+}
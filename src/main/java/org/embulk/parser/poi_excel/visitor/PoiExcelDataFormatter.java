@@ -0,0 +1,166 @@
+package org.embulk.parser.poi_excel.visitor;
+
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.Format;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.usermodel.ExcelStyleDateFormatter;
+import org.apache.poi.ss.util.NumberToTextConverter;
+import org.apache.poi.util.LocaleUtil;
+import org.embulk.parser.poi_excel.visitor.PoiExcelWorkbookCache.AttributeCache;
+
+/**
+ * formats numeric values by the data format of the cell style (what Excel shows).
+ * <p>
+ * the result is same as {@link DataFormatter#formatRawCellContents(double, int, String, boolean)}. DataFormatter
+ * resolves the format string and checks whether it is a date format for each value; here they are compiled once
+ * per data format and looked up by the style index.
+ * </p>
+ */
+public class PoiExcelDataFormatter {
+
+	// formats registered by DataFormatter itself
+	private static final Set<String> DATA_FORMATTER_FORMATS = new HashSet<>(Arrays.asList("00000\\-0000",
+			"00000-0000", "[<=9999999]###\\-####;\\(###\\)\\ ###\\-####", "[<=9999999]###-####;(###) ###-####",
+			"###\\-####;\\(###\\)\\ ###\\-####", "###-####;(###) ###-####", "000\\-00\\-0000", "000-00-0000"));
+
+	private final boolean date1904;
+	private final AttributeCache styleCache;
+
+	private final DataFormatter formatter = new DataFormatter();
+	private final Format generalWholeNumFormat;
+	private final Format generalDecimalNumFormat;
+
+	private final Map<Integer, CompiledFormat> formatMap = new HashMap<>();
+	// same as the cache of DataFormatter: the format created first is used for the format string
+	private final Map<String, Format> formats = new HashMap<>();
+
+	private final CompiledFormat general = new CompiledFormat(0, "General");
+
+	/**
+	 * @param date1904
+	 *            true if the workbook uses 1904 date system
+	 * @param styleCache
+	 *            cache by style index
+	 */
+	public PoiExcelDataFormatter(boolean date1904, AttributeCache styleCache) {
+		this.date1904 = date1904;
+		this.styleCache = styleCache;
+
+		DecimalFormatSymbols decimalSymbols = DecimalFormatSymbols.getInstance(LocaleUtil.getUserLocale());
+		this.generalWholeNumFormat = new DecimalFormat("#", decimalSymbols);
+		this.generalDecimalNumFormat = new DecimalFormat("#.##########", decimalSymbols);
+	}
+
+	protected final class CompiledFormat {
+		private final int formatIndex;
+		private final String formatString;
+		private final boolean date;
+		private final boolean general;
+		// positive;negative;zero etc. and the formats of DataFormatter are formatted by DataFormatter
+		private final boolean delegate;
+
+		private Format format;
+
+		public CompiledFormat(int formatIndex, String formatString) {
+			this.formatIndex = formatIndex;
+			this.formatString = formatString;
+			this.general = formatString == null || formatString.trim().isEmpty()
+					|| "General".equalsIgnoreCase(formatString) || "@".equals(formatString);
+			this.date = !general && DateUtil.isADateFormat(formatIndex, formatString);
+
+			int firstAt = general ? -1 : formatString.indexOf(';');
+			this.delegate = (firstAt >= 0 && firstAt != formatString.lastIndexOf(';'))
+					|| DATA_FORMATTER_FORMATS.contains(formatString);
+		}
+
+		private Format getFormat(Cell cell, double value) {
+			if (general) {
+				return (value == Math.floor(value)) ? generalWholeNumFormat : generalDecimalNumFormat;
+			}
+			if (format == null) {
+				format = formats.get(formatString);
+				if (format == null) {
+					// null is not cached (created again by the next value)
+					format = formatter.createFormat(cell);
+					if (format != null) {
+						formats.put(formatString, format);
+					}
+				}
+			}
+			return format;
+		}
+	}
+
+	/**
+	 * @param cell
+	 *            cell (numeric, or formula of numeric result)
+	 * @param value
+	 *            numeric value of the cell
+	 * @return formatted value
+	 */
+	public String format(Cell cell, double value) {
+		CompiledFormat compiled = getCompiledFormat(cell.getCellStyle());
+		if (compiled.delegate) {
+			return formatter.formatRawCellContents(value, compiled.formatIndex, compiled.formatString, date1904);
+		}
+
+		if (compiled.date && DateUtil.isValidExcelDate(value)) {
+			Format dateFormat = compiled.getFormat(cell, value);
+			if (dateFormat instanceof ExcelStyleDateFormatter) {
+				((ExcelStyleDateFormatter) dateFormat).setDateToBeFormatted(value);
+			}
+			Date date = DateUtil.getJavaDate(value, date1904);
+			return (dateFormat != null) ? dateFormat.format(date) : date.toString();
+		}
+
+		Format numberFormat = compiled.getFormat(cell, value);
+		if (numberFormat == null) {
+			return String.valueOf(value);
+		}
+		// same as DataFormatter
+		String result;
+		String text = NumberToTextConverter.toText(value);
+		if (text.indexOf('E') > -1) {
+			result = numberFormat.format(value);
+		} else {
+			result = numberFormat.format(new BigDecimal(text));
+		}
+		if (result.indexOf('E') > -1 && !result.contains("E-")) {
+			result = result.replaceFirst("E", "E+");
+		}
+		return result;
+	}
+
+	protected CompiledFormat getCompiledFormat(CellStyle style) {
+		if (style == null) {
+			return general;
+		}
+
+		int index = style.getIndex() & 0xffff;
+		Object cached = styleCache.get(index);
+		if (cached != null) {
+			return (CompiledFormat) cached;
+		}
+
+		int formatIndex = style.getDataFormat();
+		CompiledFormat compiled = formatMap.get(formatIndex);
+		if (compiled == null) {
+			compiled = new CompiledFormat(formatIndex, style.getDataFormatString());
+			formatMap.put(formatIndex, compiled);
+		}
+		styleCache.put(index, compiled);
+		return compiled;
+	}
+}
@@ -0,0 +1,229 @@
+package org.embulk.parser.poi_excel.visitor;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.poi.hssf.usermodel.HSSFEvaluationWorkbook;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.formula.EvaluationCell;
+import org.apache.poi.ss.formula.EvaluationName;
+import org.apache.poi.ss.formula.EvaluationSheet;
+import org.apache.poi.ss.formula.EvaluationWorkbook;
+import org.apache.poi.ss.formula.FormulaParser;
+import org.apache.poi.ss.formula.FormulaParsingWorkbook;
+import org.apache.poi.ss.formula.FormulaType;
+import org.apache.poi.ss.formula.SheetIdentifier;
+import org.apache.poi.ss.formula.ptg.NamePtg;
+import org.apache.poi.ss.formula.ptg.NameXPtg;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.formula.udf.UDFFinder;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.AreaReference;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.usermodel.XSSFEvaluationWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * evaluation workbook which returns the replaced formula (formula_replace) instead of the formula of the cell.
+ * <p>
+ * the formula of the cell is not changed, so the workbook is not modified by formula_replace.
+ * </p>
+ */
+public class PoiExcelEvaluationWorkbook implements EvaluationWorkbook, FormulaParsingWorkbook {
+
+	private static final int PARSED_FORMULA_CACHE_SIZE = 1024;
+
+	private final Workbook workbook;
+	private final EvaluationWorkbook evaluationWorkbook;
+	private final FormulaParsingWorkbook parsingWorkbook;
+
+	private EvaluationSheet[] sheets = new EvaluationSheet[0];
+	// key: identity key of the evaluation cell (same as usermodel cell)
+	private final Map<Object, Ptg[]> replacedFormulaMap = new HashMap<>();
+	// key: sheet index and replaced formula (the references without sheet name depend on the sheet)
+	private final Map<String, Ptg[]> parsedFormulaMap = new LinkedHashMap<String, Ptg[]>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Entry<String, Ptg[]> eldest) {
+			return size() > PARSED_FORMULA_CACHE_SIZE;
+		}
+	};
+
+	public PoiExcelEvaluationWorkbook(Workbook workbook) {
+		this.workbook = workbook;
+		if (workbook instanceof XSSFWorkbook) {
+			XSSFEvaluationWorkbook book = XSSFEvaluationWorkbook.create((XSSFWorkbook) workbook);
+			this.evaluationWorkbook = book;
+			this.parsingWorkbook = book;
+		} else if (workbook instanceof HSSFWorkbook) {
+			HSSFEvaluationWorkbook book = HSSFEvaluationWorkbook.create((HSSFWorkbook) workbook);
+			this.evaluationWorkbook = book;
+			this.parsingWorkbook = book;
+		} else {
+			throw new UnsupportedOperationException("unsupported workbook=" + workbook.getClass().getName());
+		}
+	}
+
+	/**
+	 * @param cell
+	 *            usermodel cell
+	 * @return evaluation cell. null if the cell is not found
+	 */
+	public EvaluationCell getEvaluationCell(Cell cell) {
+		int sheetIndex = workbook.getSheetIndex(cell.getSheet());
+		return getSheet(sheetIndex).getCell(cell.getRowIndex(), cell.getColumnIndex());
+	}
+
+	/**
+	 * @param cell
+	 *            formula cell
+	 * @param formula
+	 *            replaced formula
+	 * @return evaluation cell of the cell. null if the same formula has been set to the cell
+	 */
+	public EvaluationCell setReplacedFormula(Cell cell, String formula) {
+		int sheetIndex = workbook.getSheetIndex(cell.getSheet());
+		// the tokens are not modified by the evaluator, so the cells of the same formula share them
+		String key = sheetIndex + "!" + formula;
+		Ptg[] ptgs = parsedFormulaMap.get(key);
+		if (ptgs == null) {
+			ptgs = FormulaParser.parse(formula, parsingWorkbook, FormulaType.CELL, sheetIndex);
+			parsedFormulaMap.put(key, ptgs);
+		}
+		EvaluationCell evaluationCell = getSheet(sheetIndex).getCell(cell.getRowIndex(), cell.getColumnIndex());
+		if (replacedFormulaMap.put(evaluationCell.getIdentityKey(), ptgs) == ptgs) {
+			return null;
+		}
+		return evaluationCell;
+	}
+
+	/**
+	 * @param cell
+	 *            formula cell
+	 * @return true if the replaced formula is set
+	 */
+	public boolean isReplaced(Cell cell) {
+		return !replacedFormulaMap.isEmpty() && replacedFormulaMap.containsKey(cell);
+	}
+
+	@Override
+	public Ptg[] getFormulaTokens(EvaluationCell cell) {
+		if (!replacedFormulaMap.isEmpty()) {
+			Ptg[] ptgs = replacedFormulaMap.get(cell.getIdentityKey());
+			if (ptgs != null) {
+				return ptgs;
+			}
+		}
+		return evaluationWorkbook.getFormulaTokens(cell);
+	}
+
+	@Override
+	public EvaluationSheet getSheet(int sheetIndex) {
+		if (sheetIndex >= sheets.length) {
+			EvaluationSheet[] array = new EvaluationSheet[workbook.getNumberOfSheets()];
+			System.arraycopy(sheets, 0, array, 0, sheets.length);
+			sheets = array;
+		}
+		EvaluationSheet sheet = sheets[sheetIndex];
+		if (sheet == null) {
+			sheet = evaluationWorkbook.getSheet(sheetIndex);
+			sheets[sheetIndex] = sheet;
+		}
+		return sheet;
+	}
+
+	@Override
+	public String getSheetName(int sheetIndex) {
+		return evaluationWorkbook.getSheetName(sheetIndex);
+	}
+
+	@Override
+	public int getSheetIndex(EvaluationSheet sheet) {
+		return evaluationWorkbook.getSheetIndex(sheet);
+	}
+
+	@Override
+	public int getSheetIndex(String sheetName) {
+		return evaluationWorkbook.getSheetIndex(sheetName);
+	}
+
+	@Override
+	public ExternalSheet getExternalSheet(int externSheetIndex) {
+		return evaluationWorkbook.getExternalSheet(externSheetIndex);
+	}
+
+	@Override
+	public ExternalSheet getExternalSheet(String firstSheetName, String lastSheetName, int externalWorkbookNumber) {
+		return evaluationWorkbook.getExternalSheet(firstSheetName, lastSheetName, externalWorkbookNumber);
+	}
+
+	@Override
+	public int convertFromExternSheetIndex(int externSheetIndex) {
+		return evaluationWorkbook.convertFromExternSheetIndex(externSheetIndex);
+	}
+
+	@Override
+	public ExternalName getExternalName(int externSheetIndex, int externNameIndex) {
+		return evaluationWorkbook.getExternalName(externSheetIndex, externNameIndex);
+	}
+
+	@Override
+	public ExternalName getExternalName(String nameName, String sheetName, int externalWorkbookNumber) {
+		return evaluationWorkbook.getExternalName(nameName, sheetName, externalWorkbookNumber);
+	}
+
+	@Override
+	public EvaluationName getName(NamePtg namePtg) {
+		return evaluationWorkbook.getName(namePtg);
+	}
+
+	@Override
+	public EvaluationName getName(String name, int sheetIndex) {
+		return evaluationWorkbook.getName(name, sheetIndex);
+	}
+
+	@Override
+	public String resolveNameXText(NameXPtg ptg) {
+		return evaluationWorkbook.resolveNameXText(ptg);
+	}
+
+	@Override
+	public UDFFinder getUDFFinder() {
+		return evaluationWorkbook.getUDFFinder();
+	}
+
+	@Override
+	public Ptg getNameXPtg(String name, SheetIdentifier sheet) {
+		return parsingWorkbook.getNameXPtg(name, sheet);
+	}
+
+	@Override
+	public Ptg get3DReferencePtg(CellReference cell, SheetIdentifier sheet) {
+		return parsingWorkbook.get3DReferencePtg(cell, sheet);
+	}
+
+	@Override
+	public Ptg get3DReferencePtg(AreaReference area, SheetIdentifier sheet) {
+		return parsingWorkbook.get3DReferencePtg(area, sheet);
+	}
+
+	@Override
+	public int getExternalSheetIndex(String sheetName) {
+		return parsingWorkbook.getExternalSheetIndex(sheetName);
+	}
+
+	@Override
+	public int getExternalSheetIndex(String workbookName, String sheetName) {
+		return parsingWorkbook.getExternalSheetIndex(workbookName, sheetName);
+	}
+
+	@Override
+	public SpreadsheetVersion getSpreadsheetVersion() {
+		return parsingWorkbook.getSpreadsheetVersion();
+	}
+}
@@ -0,0 +1,392 @@
+package org.embulk.parser.poi_excel.visitor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.poi.ss.formula.EvaluationSheet;
+import org.apache.poi.ss.formula.ptg.AreaPtg;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.formula.ptg.RefPtg;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellValue;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.embulk.parser.poi_excel.PoiExcelColumnValueType;
+import org.embulk.parser.poi_excel.bean.PoiExcelColumnBean;
+import org.embulk.parser.poi_excel.bean.PoiExcelColumnBean.FormulaHandling;
+import org.embulk.parser.poi_excel.bean.PoiExcelRowRange;
+import org.embulk.parser.poi_excel.bean.PoiExcelSheetBean;
+import org.embulk.spi.Exec;
+import org.embulk.spi.ExecAction;
+import org.embulk.spi.ExecSession;
+import org.slf4j.Logger;
+
+import com.google.common.base.Throwables;
+
+/**
+ * evaluates the formula cells of a sheet before the rows are read (formula_batch).
+ * <p>
+ * the formula cells are grouped into the connected components of the dependency graph (the references to the formula
+ * cells of the same sheet), and the components are evaluated in parallel by the fork-join pool. each task has its own
+ * evaluator (FormulaEvaluator is not thread-safe), so the references which are not in the graph (other sheets, names,
+ * INDIRECT, OFFSET) are evaluated again by each task, and do not change the results.
+ * </p>
+ * <p>
+ * the workbook is shared by the tasks. POI reads the records (xls) and the XML beans (xlsx, synchronized by XMLBeans)
+ * without modification while the formulas are evaluated, except the objects created at the first use (created by
+ * {@link PoiExcelWorkbookCache#prepareConcurrentRead(Workbook)} before the tasks start) and the link table of an
+ * unknown external workbook (added by the formula parser of xlsx). the formulas of the sheet are parsed before the
+ * tasks start to build the graph, so the links are added by the calling thread.
+ * </p>
+ */
+public class PoiExcelFormulaBatch {
+	private final Logger log = Exec.getLogger(getClass());
+
+	// minimum number of the cells evaluated by a task
+	private static final int TASK_CELLS = 256;
+
+	private final Sheet sheet;
+	private final PoiExcelSheetBean sheetBean;
+	private final int threads;
+
+	// formula cells of the sheet in row-major order
+	private final List<Cell> cells = new ArrayList<>();
+	// union-find of the formula cells
+	private int[] parents;
+
+	private final Map<Cell, Object> resultMap = new IdentityHashMap<>();
+
+	public PoiExcelFormulaBatch(Sheet sheet, PoiExcelSheetBean sheetBean, int threads) {
+		this.sheet = sheet;
+		this.sheetBean = sheetBean;
+		this.threads = threads;
+	}
+
+	/**
+	 * evaluates the formula cells which are read by the columns of formula_handling=evaluate.
+	 */
+	public void evaluate() {
+		long start = System.nanoTime();
+
+		BitSet columns = new BitSet();
+		boolean template = true;
+		for (PoiExcelColumnBean bean : sheetBean.getColumnBeans()) {
+			if (bean.getValueType() != PoiExcelColumnValueType.CELL_VALUE) {
+				continue;
+			}
+			FormulaHandling handling = bean.getFormulaHandling();
+			if (handling == FormulaHandling.CASHED_VALUE) {
+				continue;
+			}
+			if (!bean.getFormulaReplacer().isEmpty()) {
+				// the replaced formulas are set while the rows are read (auto also evaluates the replaced formulas)
+				log.info("formula batch is skipped (formula_replace). sheet={}", sheet.getSheetName());
+				return;
+			}
+			if (handling == FormulaHandling.EVALUATE) {
+				columns.set(bean.getColumnIndex());
+				template &= bean.getFormulaTemplate();
+			}
+		}
+
+		BitSet targets = collectCells(columns);
+		if (targets.isEmpty()) {
+			return;
+		}
+		parents = new int[cells.size()];
+		for (int i = 0; i < parents.length; i++) {
+			parents[i] = i;
+		}
+		linkReferences();
+
+		List<int[]> tasks = createTasks(targets);
+		Object[] results = new Object[cells.size()];
+		PoiExcelWorkbookCache.prepareConcurrentRead(sheet.getWorkbook());
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			pool.invoke(new BatchTask(Exec.session(), tasks, 0, tasks.size(), template, results));
+		} finally {
+			pool.shutdownNow();
+		}
+
+		for (int i = targets.nextSetBit(0); i >= 0; i = targets.nextSetBit(i + 1)) {
+			resultMap.put(cells.get(i), results[i]);
+		}
+		log.info("formula batch evaluate count={}, task count={}, threads={}, time={}ms", resultMap.size(),
+				tasks.size(), threads, (System.nanoTime() - start) / 1000000);
+	}
+
+	// same rows as PoiExcelParserPlugin#runSheet
+	private BitSet collectCells(BitSet columns) {
+		PoiExcelRowRange range = sheetBean.getRowRange();
+		BitSet targets = new BitSet();
+		long rows = 0;
+		for (Row row : sheet) {
+			int rowIndex = row.getRowNum();
+			boolean read = false;
+			if (rowIndex >= range.getFirstRowIndex() && rowIndex <= range.getLastRowIndex()
+					&& rows < range.getMaxRows()) {
+				read = true;
+				rows++;
+			}
+			for (Cell cell : row) {
+				if (cell.getCellType() == Cell.CELL_TYPE_FORMULA) {
+					if (read && columns.get(cell.getColumnIndex())) {
+						targets.set(cells.size());
+					}
+					cells.add(cell);
+				}
+			}
+		}
+		return targets;
+	}
+
+	// links the formula cells and the formula cells referred by them
+	private void linkReferences() {
+		// formula cells per column
+		int lastColumn = 0;
+		for (Cell cell : cells) {
+			lastColumn = Math.max(lastColumn, cell.getColumnIndex());
+		}
+		int[] counts = new int[lastColumn + 1];
+		for (Cell cell : cells) {
+			counts[cell.getColumnIndex()]++;
+		}
+		ColumnCells[] columnCells = new ColumnCells[lastColumn + 1];
+		for (int c = 0; c <= lastColumn; c++) {
+			if (counts[c] != 0) {
+				columnCells[c] = new ColumnCells(counts[c]);
+			}
+		}
+		for (int i = 0; i < cells.size(); i++) {
+			Cell cell = cells.get(i);
+			columnCells[cell.getColumnIndex()].add(cell.getRowIndex(), i);
+		}
+
+		Workbook workbook = sheet.getWorkbook();
+		PoiExcelEvaluationWorkbook evaluationWorkbook = new PoiExcelEvaluationWorkbook(workbook);
+		EvaluationSheet evaluationSheet = evaluationWorkbook.getSheet(workbook.getSheetIndex(sheet));
+		for (int i = 0; i < cells.size(); i++) {
+			Cell cell = cells.get(i);
+			Ptg[] ptgs;
+			try {
+				ptgs = evaluationWorkbook.getFormulaTokens(evaluationSheet.getCell(cell.getRowIndex(),
+						cell.getColumnIndex()));
+			} catch (RuntimeException e) {
+				// the error is thrown again when the cell is evaluated
+				continue;
+			}
+			for (Ptg ptg : ptgs) {
+				if (ptg instanceof RefPtg) {
+					RefPtg ref = (RefPtg) ptg;
+					link(i, columnCells, ref.getRow(), ref.getRow(), ref.getColumn(), ref.getColumn());
+				} else if (ptg instanceof AreaPtg) {
+					AreaPtg area = (AreaPtg) ptg;
+					link(i, columnCells, area.getFirstRow(), area.getLastRow(), area.getFirstColumn(),
+							area.getLastColumn());
+				}
+			}
+		}
+	}
+
+	private void link(int index, ColumnCells[] columnCells, int firstRow, int lastRow, int firstColumn,
+			int lastColumn) {
+		for (int c = firstColumn; c <= Math.min(lastColumn, columnCells.length - 1); c++) {
+			ColumnCells column = columnCells[c];
+			if (column == null) {
+				continue;
+			}
+			int first = column.indexOf(firstRow);
+			int last = column.indexOf(lastRow + 1) - 1;
+			if (first > last) {
+				continue;
+			}
+			union(index, column.ids[first]);
+			// the adjacent cells which have been linked are skipped
+			for (int k = column.nextUnlinked(first); k < last; k = column.nextUnlinked(k + 1)) {
+				union(column.ids[k], column.ids[k + 1]);
+				column.linked[k] = k + 1;
+			}
+		}
+	}
+
+	private int find(int index) {
+		int root = index;
+		while (parents[root] != root) {
+			root = parents[root];
+		}
+		while (parents[index] != root) {
+			int next = parents[index];
+			parents[index] = root;
+			index = next;
+		}
+		return root;
+	}
+
+	private void union(int index1, int index2) {
+		int root1 = find(index1);
+		int root2 = find(index2);
+		if (root1 != root2) {
+			// the smaller index is the root (the first cell of the component)
+			if (root1 < root2) {
+				parents[root2] = root1;
+			} else {
+				parents[root1] = root2;
+			}
+		}
+	}
+
+	// the components in the order of the first cell. the small components are packed into a task
+	private List<int[]> createTasks(BitSet targets) {
+		int[] sizes = new int[cells.size()];
+		for (int i = targets.nextSetBit(0); i >= 0; i = targets.nextSetBit(i + 1)) {
+			sizes[find(i)]++;
+		}
+		int[] offsets = new int[cells.size()];
+		int[] order = new int[targets.cardinality()];
+		for (int i = 0, offset = 0; i < sizes.length; i++) {
+			offsets[i] = offset;
+			offset += sizes[i];
+		}
+		int[] filled = new int[cells.size()];
+		for (int i = targets.nextSetBit(0); i >= 0; i = targets.nextSetBit(i + 1)) {
+			int root = find(i);
+			order[offsets[root] + filled[root]++] = i;
+		}
+
+		List<int[]> tasks = new ArrayList<>();
+		int taskStart = 0;
+		int taskCells = Math.max(TASK_CELLS, order.length / (threads * 4));
+		for (int root = 0; root < sizes.length; root++) {
+			int end = offsets[root] + sizes[root];
+			if (sizes[root] != 0 && end - taskStart >= taskCells) {
+				tasks.add(Arrays.copyOfRange(order, taskStart, end));
+				taskStart = end;
+			}
+		}
+		if (taskStart < order.length) {
+			tasks.add(Arrays.copyOfRange(order, taskStart, order.length));
+		}
+		return tasks;
+	}
+
+	/**
+	 * @param cell
+	 *            formula cell
+	 * @return result of the formula. null if the cell is not evaluated by the batch
+	 * @throws RuntimeException
+	 *             the exception thrown by the evaluation
+	 */
+	public CellValue getResult(Cell cell) {
+		Object result = resultMap.get(cell);
+		if (result instanceof RuntimeException) {
+			throw (RuntimeException) result;
+		}
+		return (CellValue) result;
+	}
+
+	// formula cells of a column
+	private static final class ColumnCells {
+		private final int[] rows;
+		private final int[] ids;
+		// index of the next cell which is not linked to the following cell
+		private final int[] linked;
+		private int size;
+
+		public ColumnCells(int capacity) {
+			this.rows = new int[capacity];
+			this.ids = new int[capacity];
+			this.linked = new int[capacity];
+			for (int i = 0; i < capacity; i++) {
+				linked[i] = i;
+			}
+		}
+
+		public void add(int rowIndex, int id) {
+			rows[size] = rowIndex;
+			ids[size] = id;
+			size++;
+		}
+
+		// index of the first cell of the row or the following rows
+		public int indexOf(int rowIndex) {
+			int index = Arrays.binarySearch(rows, 0, size, rowIndex);
+			return (index >= 0) ? index : -index - 1;
+		}
+
+		public int nextUnlinked(int index) {
+			int next = index;
+			while (next < size && linked[next] != next) {
+				next = linked[next];
+			}
+			while (index < size && linked[index] != index) {
+				int n = linked[index];
+				linked[index] = next;
+				index = n;
+			}
+			return next;
+		}
+	}
+
+	// evaluates the tasks [from, to)
+	private final class BatchTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final ExecSession session;
+		private final List<int[]> tasks;
+		private final int from;
+		private final int to;
+		private final boolean template;
+		private final Object[] results;
+
+		public BatchTask(ExecSession session, List<int[]> tasks, int from, int to, boolean template,
+				Object[] results) {
+			this.session = session;
+			this.tasks = tasks;
+			this.from = from;
+			this.to = to;
+			this.template = template;
+			this.results = results;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new BatchTask(session, tasks, from, mid, template, results), new BatchTask(session,
+						tasks, mid, to, template, results));
+				return;
+			}
+
+			try {
+				Exec.doWith(session, new ExecAction<Void>() {
+
+					@Override
+					public Void run() throws Exception {
+						// FormulaEvaluator is not thread-safe
+						PoiExcelWorkbookCache workbookCache = new PoiExcelWorkbookCache(sheet.getWorkbook());
+						for (int index : tasks.get(from)) {
+							try {
+								results[index] = workbookCache.evaluate(cells.get(index), template);
+							} catch (RuntimeException e) {
+								// thrown when the cell is read
+								results[index] = e;
+							}
+						}
+						return null;
+					}
+				});
+			} catch (ExecutionException e) {
+				throw Throwables.propagate(e.getCause());
+			}
+		}
+	}
+}
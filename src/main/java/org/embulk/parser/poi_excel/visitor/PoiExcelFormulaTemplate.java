@@ -0,0 +1,810 @@
+package org.embulk.parser.poi_excel.visitor;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.formula.SheetRange;
+import org.apache.poi.ss.formula.WorkbookEvaluator;
+import org.apache.poi.ss.formula.eval.AreaEval;
+import org.apache.poi.ss.formula.eval.AreaEvalBase;
+import org.apache.poi.ss.formula.eval.BlankEval;
+import org.apache.poi.ss.formula.eval.BoolEval;
+import org.apache.poi.ss.formula.eval.ConcatEval;
+import org.apache.poi.ss.formula.eval.ErrorEval;
+import org.apache.poi.ss.formula.eval.EvaluationException;
+import org.apache.poi.ss.formula.eval.FunctionEval;
+import org.apache.poi.ss.formula.eval.NumberEval;
+import org.apache.poi.ss.formula.eval.NumericValueEval;
+import org.apache.poi.ss.formula.eval.OperandResolver;
+import org.apache.poi.ss.formula.eval.PercentEval;
+import org.apache.poi.ss.formula.eval.RefEvalBase;
+import org.apache.poi.ss.formula.eval.RelationalOperationEval;
+import org.apache.poi.ss.formula.eval.StringEval;
+import org.apache.poi.ss.formula.eval.TwoOperandNumericOperation;
+import org.apache.poi.ss.formula.eval.UnaryMinusEval;
+import org.apache.poi.ss.formula.eval.UnaryPlusEval;
+import org.apache.poi.ss.formula.eval.ValueEval;
+import org.apache.poi.ss.formula.function.FunctionMetadataRegistry;
+import org.apache.poi.ss.formula.functions.Function;
+import org.apache.poi.ss.formula.functions.IfFunc;
+import org.apache.poi.ss.formula.functions.NotImplementedFunction;
+import org.apache.poi.ss.formula.ptg.AbstractFunctionPtg;
+import org.apache.poi.ss.formula.ptg.AddPtg;
+import org.apache.poi.ss.formula.ptg.AreaErrPtg;
+import org.apache.poi.ss.formula.ptg.AreaI;
+import org.apache.poi.ss.formula.ptg.AreaPtg;
+import org.apache.poi.ss.formula.ptg.AttrPtg;
+import org.apache.poi.ss.formula.ptg.BoolPtg;
+import org.apache.poi.ss.formula.ptg.ConcatPtg;
+import org.apache.poi.ss.formula.ptg.DividePtg;
+import org.apache.poi.ss.formula.ptg.EqualPtg;
+import org.apache.poi.ss.formula.ptg.ErrPtg;
+import org.apache.poi.ss.formula.ptg.FuncVarPtg;
+import org.apache.poi.ss.formula.ptg.GreaterEqualPtg;
+import org.apache.poi.ss.formula.ptg.GreaterThanPtg;
+import org.apache.poi.ss.formula.ptg.IntPtg;
+import org.apache.poi.ss.formula.ptg.LessEqualPtg;
+import org.apache.poi.ss.formula.ptg.LessThanPtg;
+import org.apache.poi.ss.formula.ptg.MultiplyPtg;
+import org.apache.poi.ss.formula.ptg.NotEqualPtg;
+import org.apache.poi.ss.formula.ptg.NumberPtg;
+import org.apache.poi.ss.formula.ptg.OperationPtg;
+import org.apache.poi.ss.formula.ptg.ParenthesisPtg;
+import org.apache.poi.ss.formula.ptg.PercentPtg;
+import org.apache.poi.ss.formula.ptg.PowerPtg;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.formula.ptg.RefErrorPtg;
+import org.apache.poi.ss.formula.ptg.RefPtg;
+import org.apache.poi.ss.formula.ptg.StringPtg;
+import org.apache.poi.ss.formula.ptg.SubtractPtg;
+import org.apache.poi.ss.formula.ptg.UnaryMinusPtg;
+import org.apache.poi.ss.formula.ptg.UnaryPlusPtg;
+import org.apache.poi.ss.util.CellReference;
+
+/**
+ * formula compiled into an evaluation tree, which is evaluated for each cell of the copied-down formula.
+ * <p>
+ * the references are kept relative to the cell (R1C1) and moved by the offset of the evaluated cell, in the same way
+ * as the shared formula of POI. the operators and functions are the implementations of POI, so the result is same as
+ * {@link WorkbookEvaluator}. only the references to the same sheet are supported (3D references, names and
+ * INDIRECT are evaluated by POI).
+ * </p>
+ */
+public class PoiExcelFormulaTemplate {
+
+	/**
+	 * referenced cells of the sheet of the evaluated cell.
+	 */
+	public interface Context extends SheetRange {
+
+		/**
+		 * @return value of the cell (result of the formula if the cell is a formula cell)
+		 */
+		public ValueEval getCellValue(int rowIndex, int columnIndex);
+
+		/**
+		 * @return true if the cell is a formula cell of SUBTOTAL
+		 */
+		public boolean isSubTotal(int rowIndex, int columnIndex);
+
+		/**
+		 * @param column
+		 *            true if the lookup range is a column
+		 * @param fixedIndex
+		 *            column index (column) or row index (row) of the lookup range
+		 * @param firstIndex
+		 *            first row index (column) or first column index (row)
+		 * @param lastIndex
+		 *            last row index (column) or last column index (row)
+		 * @return index of the lookup range. null if the range is not indexed (searched by POI)
+		 */
+		public PoiExcelLookupIndex getLookupIndex(boolean column, int fixedIndex, int firstIndex, int lastIndex);
+	}
+
+	private static final int FUNCTION_INDEX_MATCH = 64;
+	private static final int FUNCTION_INDEX_HLOOKUP = 101;
+	private static final int FUNCTION_INDEX_VLOOKUP = 102;
+
+	private final Node root;
+	private final int baseRowIndex;
+	private final int baseColumnIndex;
+	private final int rowMask;
+	private final int columnMask;
+
+	private PoiExcelFormulaTemplate(Node root, int baseRowIndex, int baseColumnIndex, SpreadsheetVersion version) {
+		this.root = root;
+		this.baseRowIndex = baseRowIndex;
+		this.baseColumnIndex = baseColumnIndex;
+		this.rowMask = version.getLastRowIndex();
+		this.columnMask = version.getLastColumnIndex();
+	}
+
+	/**
+	 * @param ptgs
+	 *            formula tokens of the cell
+	 * @param rowIndex
+	 *            row index of the cell
+	 * @param columnIndex
+	 *            column index of the cell
+	 * @param version
+	 *            spreadsheet version (wraps the moved references)
+	 * @return template. null if the formula has unsupported tokens
+	 */
+	public static PoiExcelFormulaTemplate compile(Ptg[] ptgs, int rowIndex, int columnIndex,
+			SpreadsheetVersion version) {
+		Deque<Node> stack = new ArrayDeque<>();
+		for (Ptg ptg : ptgs) {
+			if (ptg instanceof AttrPtg) {
+				AttrPtg attr = (AttrPtg) ptg;
+				if (attr.isSum()) {
+					// same as WorkbookEvaluator
+					ptg = FuncVarPtg.SUM;
+				} else if (isIgnored(attr)) {
+					continue;
+				} else {
+					return null;
+				}
+			}
+			if (ptg instanceof ParenthesisPtg) {
+				continue;
+			}
+
+			Node node;
+			if (ptg instanceof AbstractFunctionPtg) {
+				AbstractFunctionPtg func = (AbstractFunctionPtg) ptg;
+				int n = func.getNumberOfOperands();
+				if (stack.size() < n) {
+					return null;
+				}
+				Node[] args = new Node[n];
+				for (int i = n - 1; i >= 0; i--) {
+					args[i] = stack.pop();
+				}
+				int index = func.getFunctionIndex();
+				if (index == FunctionMetadataRegistry.FUNCTION_INDEX_IF && (n == 2 || n == 3)) {
+					node = new IfNode(args[0], args[1], (n == 3) ? args[2] : null);
+				} else {
+					Function function = getFunction(index);
+					if (function == null) {
+						return null;
+					}
+					if (index == FUNCTION_INDEX_VLOOKUP || index == FUNCTION_INDEX_HLOOKUP) {
+						node = new LookupNode(function, args, index == FUNCTION_INDEX_VLOOKUP);
+					} else if (index == FUNCTION_INDEX_MATCH) {
+						node = new MatchNode(function, args);
+					} else {
+						node = new OperationNode(function, args);
+					}
+				}
+			} else {
+				Function operator = getOperator(ptg);
+				if (operator != null) {
+					int n = ((OperationPtg) ptg).getNumberOfOperands();
+					if (stack.size() < n) {
+						return null;
+					}
+					Node[] args = new Node[n];
+					for (int i = n - 1; i >= 0; i--) {
+						args[i] = stack.pop();
+					}
+					node = new OperationNode(operator, args);
+				} else {
+					node = getOperand(ptg);
+					if (node == null) {
+						return null;
+					}
+				}
+			}
+			stack.push(node);
+		}
+		if (stack.size() != 1) {
+			return null;
+		}
+		return new PoiExcelFormulaTemplate(stack.pop(), rowIndex, columnIndex, version);
+	}
+
+	/**
+	 * @param ptgs
+	 *            formula tokens of the cell
+	 * @param rowIndex
+	 *            row index of the cell
+	 * @param columnIndex
+	 *            column index of the cell
+	 * @return R1C1 form of the tokens (same for the cells of a copied-down formula). null if the formula has
+	 *         unsupported tokens
+	 */
+	public static String getKey(Ptg[] ptgs, int rowIndex, int columnIndex) {
+		StringBuilder sb = new StringBuilder(ptgs.length * 8);
+		for (Ptg ptg : ptgs) {
+			if (ptg instanceof RefPtg) {
+				RefPtg ref = (RefPtg) ptg;
+				sb.append('R');
+				appendIndex(sb, ref.getRow(), ref.isRowRelative(), rowIndex);
+				sb.append('C');
+				appendIndex(sb, ref.getColumn(), ref.isColRelative(), columnIndex);
+			} else if (ptg instanceof AreaPtg) {
+				AreaPtg area = (AreaPtg) ptg;
+				sb.append('R');
+				appendIndex(sb, area.getFirstRow(), area.isFirstRowRelative(), rowIndex);
+				sb.append('C');
+				appendIndex(sb, area.getFirstColumn(), area.isFirstColRelative(), columnIndex);
+				sb.append(":R");
+				appendIndex(sb, area.getLastRow(), area.isLastRowRelative(), rowIndex);
+				sb.append('C');
+				appendIndex(sb, area.getLastColumn(), area.isLastColRelative(), columnIndex);
+			} else if (ptg instanceof AbstractFunctionPtg) {
+				AbstractFunctionPtg func = (AbstractFunctionPtg) ptg;
+				sb.append('F').append(func.getFunctionIndex()).append('(').append(func.getNumberOfOperands()).append(')');
+			} else if (ptg instanceof AttrPtg) {
+				AttrPtg attr = (AttrPtg) ptg;
+				if (attr.isSum()) {
+					sb.append("SUM");
+				} else if (isIgnored(attr)) {
+					continue;
+				} else {
+					return null;
+				}
+			} else if (ptg instanceof NumberPtg) {
+				sb.append('N').append(Double.doubleToLongBits(((NumberPtg) ptg).getValue()));
+			} else if (ptg instanceof StringPtg) {
+				String s = ((StringPtg) ptg).getValue();
+				sb.append('"').append(s.length()).append(':').append(s);
+			} else if (ptg instanceof ParenthesisPtg) {
+				continue;
+			} else if (ptg instanceof IntPtg || ptg instanceof BoolPtg || ptg instanceof ErrPtg) {
+				sb.append(ptg.getClass().getSimpleName()).append(':').append(ptg.toFormulaString());
+			} else if (ptg instanceof AreaErrPtg || ptg instanceof RefErrorPtg || getOperator(ptg) != null) {
+				sb.append(ptg.getClass().getSimpleName());
+			} else {
+				return null;
+			}
+			sb.append(' ');
+		}
+		return sb.toString();
+	}
+
+	// IF is compiled from FuncVarPtg (the jumps of the optimized IF are not needed)
+	private static boolean isIgnored(AttrPtg attr) {
+		return attr.isSpace() || attr.isSemiVolatile() || attr.isOptimizedIf() || attr.isSkip();
+	}
+
+	private static void appendIndex(StringBuilder sb, int index, boolean relative, int base) {
+		if (relative) {
+			sb.append('[').append(index - base).append(']');
+		} else {
+			sb.append(index);
+		}
+	}
+
+	private static Function getOperator(Ptg ptg) {
+		// same as OperationEvaluatorFactory
+		if (ptg instanceof AddPtg) {
+			return TwoOperandNumericOperation.AddEval;
+		}
+		if (ptg instanceof SubtractPtg) {
+			return TwoOperandNumericOperation.SubtractEval;
+		}
+		if (ptg instanceof MultiplyPtg) {
+			return TwoOperandNumericOperation.MultiplyEval;
+		}
+		if (ptg instanceof DividePtg) {
+			return TwoOperandNumericOperation.DivideEval;
+		}
+		if (ptg instanceof PowerPtg) {
+			return TwoOperandNumericOperation.PowerEval;
+		}
+		if (ptg instanceof ConcatPtg) {
+			return ConcatEval.instance;
+		}
+		if (ptg instanceof EqualPtg) {
+			return RelationalOperationEval.EqualEval;
+		}
+		if (ptg instanceof NotEqualPtg) {
+			return RelationalOperationEval.NotEqualEval;
+		}
+		if (ptg instanceof LessThanPtg) {
+			return RelationalOperationEval.LessThanEval;
+		}
+		if (ptg instanceof LessEqualPtg) {
+			return RelationalOperationEval.LessEqualEval;
+		}
+		if (ptg instanceof GreaterThanPtg) {
+			return RelationalOperationEval.GreaterThanEval;
+		}
+		if (ptg instanceof GreaterEqualPtg) {
+			return RelationalOperationEval.GreaterEqualEval;
+		}
+		if (ptg instanceof UnaryMinusPtg) {
+			return UnaryMinusEval.instance;
+		}
+		if (ptg instanceof UnaryPlusPtg) {
+			return UnaryPlusEval.instance;
+		}
+		if (ptg instanceof PercentPtg) {
+			return PercentEval.instance;
+		}
+		return null;
+	}
+
+	private static Function getFunction(int functionIndex) {
+		if (functionIndex == FunctionMetadataRegistry.FUNCTION_INDEX_INDIRECT
+				|| functionIndex == FunctionMetadataRegistry.FUNCTION_INDEX_EXTERNAL) {
+			return null;
+		}
+		Function function;
+		try {
+			function = FunctionEval.getBasicFunction(functionIndex);
+		} catch (RuntimeException e) {
+			return null;
+		}
+		if (function instanceof NotImplementedFunction) {
+			return null;
+		}
+		return function;
+	}
+
+	private static Node getOperand(Ptg ptg) {
+		// same as WorkbookEvaluator#getEvalForPtg
+		if (ptg instanceof IntPtg) {
+			return new ConstantNode(new NumberEval(((IntPtg) ptg).getValue()));
+		}
+		if (ptg instanceof NumberPtg) {
+			return new ConstantNode(new NumberEval(((NumberPtg) ptg).getValue()));
+		}
+		if (ptg instanceof StringPtg) {
+			return new ConstantNode(new StringEval(((StringPtg) ptg).getValue()));
+		}
+		if (ptg instanceof BoolPtg) {
+			return new ConstantNode(BoolEval.valueOf(((BoolPtg) ptg).getValue()));
+		}
+		if (ptg instanceof ErrPtg) {
+			return new ConstantNode(ErrorEval.valueOf(((ErrPtg) ptg).getErrorCode()));
+		}
+		if (ptg instanceof AreaErrPtg || ptg instanceof RefErrorPtg) {
+			return new ConstantNode(ErrorEval.REF_INVALID);
+		}
+		if (ptg instanceof RefPtg) {
+			RefPtg ref = (RefPtg) ptg;
+			return new RefNode(ref.getRow(), ref.isRowRelative(), ref.getColumn(), ref.isColRelative());
+		}
+		if (ptg instanceof AreaPtg) {
+			return new AreaNode((AreaPtg) ptg);
+		}
+		return null;
+	}
+
+	/**
+	 * @param context
+	 *            sheet of the cell
+	 * @param rowIndex
+	 *            row index of the cell
+	 * @param columnIndex
+	 *            column index of the cell
+	 * @return result of the formula (same as {@link WorkbookEvaluator#evaluate})
+	 */
+	public ValueEval evaluate(Context context, int rowIndex, int columnIndex) {
+		Frame frame = new Frame(context, rowIndex, columnIndex);
+		ValueEval result = root.evaluate(frame);
+		if (result == null) {
+			throw new RuntimeException("Evaluation result must not be null");
+		}
+		return WorkbookEvaluator.dereferenceResult(result, rowIndex, columnIndex);
+	}
+
+	private final class Frame {
+		final Context context;
+		final int rowIndex;
+		final int columnIndex;
+		final int rowOffset;
+		final int columnOffset;
+
+		Frame(Context context, int rowIndex, int columnIndex) {
+			this.context = context;
+			this.rowIndex = rowIndex;
+			this.columnIndex = columnIndex;
+			this.rowOffset = rowIndex - baseRowIndex;
+			this.columnOffset = columnIndex - baseColumnIndex;
+		}
+
+		// same as SharedFormula
+		int getRow(int row, boolean relative) {
+			return relative ? (row + rowOffset) & rowMask : row;
+		}
+
+		int getColumn(int column, boolean relative) {
+			return relative ? (column + columnOffset) & columnMask : column;
+		}
+	}
+
+	private static abstract class Node {
+		abstract ValueEval evaluate(Frame frame);
+	}
+
+	private static final class ConstantNode extends Node {
+		private final ValueEval value;
+
+		ConstantNode(ValueEval value) {
+			this.value = value;
+		}
+
+		@Override
+		ValueEval evaluate(Frame frame) {
+			return value;
+		}
+	}
+
+	private static final class RefNode extends Node {
+		private final int row;
+		private final boolean rowRelative;
+		private final int column;
+		private final boolean columnRelative;
+
+		RefNode(int row, boolean rowRelative, int column, boolean columnRelative) {
+			this.row = row;
+			this.rowRelative = rowRelative;
+			this.column = column;
+			this.columnRelative = columnRelative;
+		}
+
+		@Override
+		ValueEval evaluate(Frame frame) {
+			return new TemplateRefEval(frame.context, frame.getRow(row, rowRelative), frame.getColumn(column,
+					columnRelative));
+		}
+	}
+
+	private static final class AreaNode extends Node {
+		private final AreaPtg area;
+
+		AreaNode(AreaPtg area) {
+			this.area = area;
+		}
+
+		@Override
+		ValueEval evaluate(Frame frame) {
+			return new TemplateAreaEval(frame.context, frame.getRow(area.getFirstRow(), area.isFirstRowRelative()),
+					frame.getColumn(area.getFirstColumn(), area.isFirstColRelative()), frame.getRow(area.getLastRow(),
+							area.isLastRowRelative()), frame.getColumn(area.getLastColumn(),
+							area.isLastColRelative()));
+		}
+	}
+
+	private static final class OperationNode extends Node {
+		private final Function function;
+		private final Node[] args;
+
+		OperationNode(Function function, Node[] args) {
+			this.function = function;
+			this.args = args;
+		}
+
+		@Override
+		ValueEval evaluate(Frame frame) {
+			ValueEval[] values = new ValueEval[args.length];
+			for (int i = 0; i < args.length; i++) {
+				values[i] = args[i].evaluate(frame);
+			}
+			return function.evaluate(values, frame.rowIndex, (short) frame.columnIndex);
+		}
+	}
+
+	// evaluates only the selected argument (same as the optimized IF of WorkbookEvaluator)
+	private static final class IfNode extends Node {
+		private final Node condition;
+		private final Node trueNode;
+		private final Node falseNode;
+
+		IfNode(Node condition, Node trueNode, Node falseNode) {
+			this.condition = condition;
+			this.trueNode = trueNode;
+			this.falseNode = falseNode;
+		}
+
+		@Override
+		ValueEval evaluate(Frame frame) {
+			boolean predicate;
+			try {
+				predicate = IfFunc.evaluateFirstArg(condition.evaluate(frame), frame.rowIndex, frame.columnIndex);
+			} catch (EvaluationException e) {
+				return e.getErrorEval();
+			}
+			if (predicate) {
+				return trueNode.evaluate(frame);
+			}
+			if (falseNode == null) {
+				return BoolEval.FALSE;
+			}
+			return falseNode.evaluate(frame);
+		}
+	}
+
+	// VLOOKUP and HLOOKUP of the exact match (range_lookup=FALSE) by the hash index.
+	// the approximate match is evaluated by POI (binary search)
+	private static final class LookupNode extends Node {
+		private final Function function;
+		private final Node[] args;
+		private final boolean vertical;
+
+		LookupNode(Function function, Node[] args, boolean vertical) {
+			this.function = function;
+			this.args = args;
+			this.vertical = vertical;
+		}
+
+		@Override
+		ValueEval evaluate(Frame frame) {
+			ValueEval[] values = new ValueEval[args.length];
+			for (int i = 0; i < args.length; i++) {
+				values[i] = args[i].evaluate(frame);
+			}
+			ValueEval result = null;
+			if (values.length == 4) {
+				result = lookup(frame, values);
+			}
+			if (result == null) {
+				result = function.evaluate(values, frame.rowIndex, (short) frame.columnIndex);
+			}
+			return result;
+		}
+
+		// same as Vlookup and Hlookup. null if evaluated by POI
+		private ValueEval lookup(Frame frame, ValueEval[] values) {
+			int srcRowIndex = frame.rowIndex;
+			int srcColumnIndex = frame.columnIndex;
+			try {
+				ValueEval lookupValue = OperandResolver.getSingleValue(values[0], srcRowIndex, srcColumnIndex);
+				if (!(values[1] instanceof TemplateAreaEval)) {
+					return null;
+				}
+				TemplateAreaEval table = (TemplateAreaEval) values[1];
+				Boolean isRangeLookup = resolveRangeLookupArg(values[3], srcRowIndex, srcColumnIndex);
+				if (isRangeLookup == null || isRangeLookup) {
+					return null;
+				}
+
+				PoiExcelLookupIndex index;
+				if (vertical) {
+					index = frame.context.getLookupIndex(true, table.getFirstColumn(), table.getFirstRow(),
+							table.getLastRow());
+				} else {
+					index = frame.context.getLookupIndex(false, table.getFirstRow(), table.getFirstColumn(),
+							table.getLastColumn());
+				}
+				if (index == null) {
+					return null;
+				}
+				int found = index.findExact(lookupValue);
+				if (found == PoiExcelLookupIndex.UNSUPPORTED) {
+					return null;
+				}
+				if (found == PoiExcelLookupIndex.NOT_FOUND) {
+					throw new EvaluationException(ErrorEval.NA);
+				}
+
+				int resultIndex = resolveRowOrColIndexArg(values[2], srcRowIndex, srcColumnIndex);
+				if (vertical) {
+					if (resultIndex >= table.getWidth()) {
+						throw EvaluationException.invalidRef();
+					}
+					return table.getValue(found, resultIndex);
+				} else {
+					if (resultIndex >= table.getHeight()) {
+						throw EvaluationException.invalidRef();
+					}
+					return table.getValue(resultIndex, found);
+				}
+			} catch (EvaluationException e) {
+				return e.getErrorEval();
+			}
+		}
+
+		// same as LookupUtils#resolveRangeLookupArg. null if resolved by POI (string)
+		private static Boolean resolveRangeLookupArg(ValueEval arg, int srcRowIndex, int srcColumnIndex)
+				throws EvaluationException {
+			ValueEval value = OperandResolver.getSingleValue(arg, srcRowIndex, srcColumnIndex);
+			if (value instanceof BlankEval) {
+				return false;
+			}
+			if (value instanceof BoolEval) {
+				return ((BoolEval) value).getBooleanValue();
+			}
+			if (value instanceof NumericValueEval) {
+				return 0.0 != ((NumericValueEval) value).getNumberValue();
+			}
+			return null;
+		}
+
+		// same as LookupUtils#resolveRowOrColIndexArg
+		private static int resolveRowOrColIndexArg(ValueEval arg, int srcRowIndex, int srcColumnIndex)
+				throws EvaluationException {
+			ValueEval value;
+			try {
+				value = OperandResolver.getSingleValue(arg, srcRowIndex, srcColumnIndex);
+			} catch (EvaluationException e) {
+				throw EvaluationException.invalidRef();
+			}
+			if (value instanceof StringEval) {
+				if (OperandResolver.parseDouble(((StringEval) value).getStringValue()) == null) {
+					throw EvaluationException.invalidRef();
+				}
+			}
+			int oneBasedIndex = OperandResolver.coerceValueToInt(value);
+			if (oneBasedIndex < 1) {
+				throw EvaluationException.invalidValue();
+			}
+			return oneBasedIndex - 1;
+		}
+	}
+
+	// MATCH by the hash index (match_type=0) or the sorted index (match_type=1,-1)
+	private static final class MatchNode extends Node {
+		private final Function function;
+		private final Node[] args;
+
+		MatchNode(Function function, Node[] args) {
+			this.function = function;
+			this.args = args;
+		}
+
+		@Override
+		ValueEval evaluate(Frame frame) {
+			ValueEval[] values = new ValueEval[args.length];
+			for (int i = 0; i < args.length; i++) {
+				values[i] = args[i].evaluate(frame);
+			}
+			ValueEval result = null;
+			if (values.length == 2 || values.length == 3) {
+				result = match(frame, values);
+			}
+			if (result == null) {
+				result = function.evaluate(values, frame.rowIndex, (short) frame.columnIndex);
+			}
+			return result;
+		}
+
+		// same as Match. null if evaluated by POI
+		private ValueEval match(Frame frame, ValueEval[] values) {
+			int srcRowIndex = frame.rowIndex;
+			int srcColumnIndex = frame.columnIndex;
+			double matchType = 1;
+			if (values.length == 3) {
+				ValueEval value;
+				try {
+					value = OperandResolver.getSingleValue(values[2], srcRowIndex, srcColumnIndex);
+				} catch (EvaluationException e) {
+					return ErrorEval.REF_INVALID;
+				}
+				if (!(value instanceof NumericValueEval)) {
+					return null;
+				}
+				matchType = ((NumericValueEval) value).getNumberValue();
+			}
+
+			try {
+				ValueEval lookupValue = OperandResolver.getSingleValue(values[0], srcRowIndex, srcColumnIndex);
+				if (!(values[1] instanceof TemplateAreaEval)) {
+					return null;
+				}
+				TemplateAreaEval range = (TemplateAreaEval) values[1];
+				PoiExcelLookupIndex index;
+				if (range.isColumn()) {
+					index = frame.context.getLookupIndex(true, range.getFirstColumn(), range.getFirstRow(),
+							range.getLastRow());
+				} else if (range.isRow()) {
+					index = frame.context.getLookupIndex(false, range.getFirstRow(), range.getFirstColumn(),
+							range.getLastColumn());
+				} else {
+					return null;
+				}
+				if (index == null) {
+					return null;
+				}
+
+				int found;
+				if (matchType == 0) {
+					found = index.findExact(lookupValue);
+				} else if (matchType > 0) {
+					found = index.findLargestLessThanOrEqual(lookupValue);
+				} else {
+					found = index.findSmallestGreaterThanOrEqual(lookupValue);
+				}
+				if (found == PoiExcelLookupIndex.UNSUPPORTED) {
+					return null;
+				}
+				if (found == PoiExcelLookupIndex.NOT_FOUND) {
+					throw new EvaluationException(ErrorEval.NA);
+				}
+				return new NumberEval(found + 1);
+			} catch (EvaluationException e) {
+				return e.getErrorEval();
+			}
+		}
+	}
+
+	private static final class TemplateRefEval extends RefEvalBase {
+		private final Context context;
+
+		TemplateRefEval(Context context, int rowIndex, int columnIndex) {
+			super(context, rowIndex, columnIndex);
+			this.context = context;
+		}
+
+		@Override
+		public ValueEval getInnerValueEval(int sheetIndex) {
+			return context.getCellValue(getRow(), getColumn());
+		}
+
+		@Override
+		public AreaEval offset(int relFirstRowIx, int relLastRowIx, int relFirstColIx, int relLastColIx) {
+			AreaI area = new AreaI.OffsetArea(getRow(), getColumn(), relFirstRowIx, relLastRowIx, relFirstColIx,
+					relLastColIx);
+			return new TemplateAreaEval(context, area.getFirstRow(), area.getFirstColumn(), area.getLastRow(),
+					area.getLastColumn());
+		}
+
+		@Override
+		public String toString() {
+			return getClass().getName() + "[" + new CellReference(getRow(), getColumn()).formatAsString() + "]";
+		}
+	}
+
+	private static final class TemplateAreaEval extends AreaEvalBase {
+		private final Context context;
+
+		TemplateAreaEval(Context context, int firstRowIndex, int firstColumnIndex, int lastRowIndex,
+				int lastColumnIndex) {
+			super(context, firstRowIndex, firstColumnIndex, lastRowIndex, lastColumnIndex);
+			this.context = context;
+		}
+
+		@Override
+		public ValueEval getRelativeValue(int relativeRowIndex, int relativeColumnIndex) {
+			return context.getCellValue(getFirstRow() + relativeRowIndex, getFirstColumn() + relativeColumnIndex);
+		}
+
+		@Override
+		public ValueEval getRelativeValue(int sheetIndex, int relativeRowIndex, int relativeColumnIndex) {
+			return getRelativeValue(relativeRowIndex, relativeColumnIndex);
+		}
+
+		@Override
+		public AreaEval offset(int relFirstRowIx, int relLastRowIx, int relFirstColIx, int relLastColIx) {
+			AreaI area = new AreaI.OffsetArea(getFirstRow(), getFirstColumn(), relFirstRowIx, relLastRowIx,
+					relFirstColIx, relLastColIx);
+			return new TemplateAreaEval(context, area.getFirstRow(), area.getFirstColumn(), area.getLastRow(),
+					area.getLastColumn());
+		}
+
+		@Override
+		public TemplateAreaEval getRow(int rowIndex) {
+			if (rowIndex >= getHeight()) {
+				throw new IllegalArgumentException("Invalid rowIndex " + rowIndex + ".  Allowable range is (0.."
+						+ getHeight() + ").");
+			}
+			int row = getFirstRow() + rowIndex;
+			return new TemplateAreaEval(context, row, getFirstColumn(), row, getLastColumn());
+		}
+
+		@Override
+		public TemplateAreaEval getColumn(int columnIndex) {
+			if (columnIndex >= getWidth()) {
+				throw new IllegalArgumentException("Invalid columnIndex " + columnIndex
+						+ ".  Allowable range is (0.." + getWidth() + ").");
+			}
+			int column = getFirstColumn() + columnIndex;
+			return new TemplateAreaEval(context, getFirstRow(), column, getLastRow(), column);
+		}
+
+		@Override
+		public boolean isSubTotal(int rowIndex, int columnIndex) {
+			return context.isSubTotal(getFirstRow() + rowIndex, getFirstColumn() + columnIndex);
+		}
+
+		@Override
+		public String toString() {
+			return getClass().getName() + "[" + new CellReference(getFirstRow(), getFirstColumn()).formatAsString()
+					+ ":" + new CellReference(getLastRow(), getLastColumn()).formatAsString() + "]";
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package org.embulk.parser.poi_excel.visitor;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * writes JSON objects of attribute values into a reused buffer.
+ * <p>
+ * one generator is used for all values, so only the result string is allocated per value.
+ * </p>
+ */
+public class PoiExcelJsonWriter {
+
+	private static final JsonFactory FACTORY = new JsonFactory();
+
+	private final CharArrayWriter buffer = new CharArrayWriter(256);
+	private JsonGenerator generator;
+
+	public PoiExcelJsonWriter() {
+		this.generator = createGenerator();
+	}
+
+	private JsonGenerator createGenerator() {
+		try {
+			JsonGenerator generator = FACTORY.createGenerator(buffer);
+			// values are written one by one, not as a sequence
+			generator.setRootValueSeparator(null);
+			return generator;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void writeStartObject() {
+		buffer.reset();
+		if (!generator.getOutputContext().inRoot()) {
+			// the previous value was not completed (an exception was thrown)
+			this.generator = createGenerator();
+		}
+		try {
+			generator.writeStartObject();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @param key
+	 *            field name
+	 * @param value
+	 *            null, String, Long, Boolean, Double or Map
+	 */
+	public void writeField(String key, Object value) {
+		try {
+			generator.writeFieldName(key);
+			writeValue(value);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return JSON string
+	 */
+	public String writeEndObject() {
+		try {
+			generator.writeEndObject();
+			generator.flush();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return buffer.toString();
+	}
+
+	/**
+	 * @param map
+	 *            map of attribute values
+	 * @return JSON string
+	 */
+	public String toJsonString(Map<?, ?> map) {
+		writeStartObject();
+		for (Entry<?, ?> entry : map.entrySet()) {
+			writeField(String.valueOf(entry.getKey()), entry.getValue());
+		}
+		return writeEndObject();
+	}
+
+	private void writeValue(Object value) throws IOException {
+		if (value == null) {
+			generator.writeNull();
+		} else if (value instanceof String) {
+			generator.writeString((String) value);
+		} else if (value instanceof Long) {
+			generator.writeNumber((Long) value);
+		} else if (value instanceof Integer) {
+			generator.writeNumber((Integer) value);
+		} else if (value instanceof Boolean) {
+			generator.writeBoolean((Boolean) value);
+		} else if (value instanceof Double) {
+			generator.writeNumber((Double) value);
+		} else if (value instanceof Map) {
+			generator.writeStartObject();
+			for (Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				generator.writeFieldName(String.valueOf(entry.getKey()));
+				writeValue(entry.getValue());
+			}
+			generator.writeEndObject();
+		} else {
+			throw new IllegalStateException(MessageFormat.format("unsupported json value. type={0}, value={1}",
+					value.getClass().getName(), value));
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package org.embulk.parser.poi_excel.visitor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.poi.ss.formula.eval.BlankEval;
+import org.apache.poi.ss.formula.eval.BoolEval;
+import org.apache.poi.ss.formula.eval.NumberEval;
+import org.apache.poi.ss.formula.eval.StringEval;
+import org.apache.poi.ss.formula.eval.ValueEval;
+import org.apache.poi.ss.formula.functions.Countif;
+
+/**
+ * index of the lookup range (a row or a column) of VLOOKUP, HLOOKUP and MATCH.
+ * <p>
+ * the values are compared in the same way as LookupUtils of POI (the values of the different types are not matched,
+ * the strings are compared ignoring case). the hash index (exact match) and the sorted index (approximate match) are
+ * created at the first lookup.
+ * </p>
+ */
+public class PoiExcelLookupIndex {
+
+	/** the value is not found */
+	public static final int NOT_FOUND = -1;
+	/** the lookup value is not supported by the index (evaluated by POI) */
+	public static final int UNSUPPORTED = -2;
+
+	// Double, String(case folded) or Boolean. null if the value is not matched with any lookup value
+	private final Comparable<Object>[] keys;
+
+	// key: first index of the key
+	private Map<Object, Integer> hashIndex;
+	// key: class of the key
+	private Map<Class<?>, SortedIndex> sortedIndexMap;
+
+	/**
+	 * @param size
+	 *            size of the lookup range
+	 */
+	@SuppressWarnings("unchecked")
+	public PoiExcelLookupIndex(int size) {
+		this.keys = (Comparable<Object>[]) new Comparable<?>[size];
+	}
+
+	/**
+	 * @param index
+	 *            index in the lookup range
+	 * @param value
+	 *            value of the cell
+	 */
+	public void set(int index, ValueEval value) {
+		keys[index] = getKey(value);
+	}
+
+	public int getSize() {
+		return keys.length;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Comparable<Object> getKey(ValueEval value) {
+		Comparable<?> key;
+		if (value instanceof NumberEval) {
+			key = ((NumberEval) value).getNumberValue();
+		} else if (value instanceof StringEval) {
+			key = fold(((StringEval) value).getStringValue());
+		} else if (value instanceof BoolEval) {
+			key = ((BoolEval) value).getBooleanValue();
+		} else {
+			key = null;
+		}
+		return (Comparable<Object>) key;
+	}
+
+	// same as String#compareToIgnoreCase (the folded strings are compared by String#compareTo)
+	private static String fold(String s) {
+		char[] cs = s.toCharArray();
+		for (int i = 0; i < cs.length; i++) {
+			cs[i] = Character.toLowerCase(Character.toUpperCase(cs[i]));
+		}
+		return new String(cs);
+	}
+
+	// same as LookupUtils#createLookupComparer
+	private static Comparable<Object> getLookupKey(ValueEval lookupValue) {
+		if (lookupValue == BlankEval.instance) {
+			return getKey(NumberEval.ZERO);
+		}
+		if (lookupValue instanceof StringEval) {
+			if (Countif.StringMatcher.getWildCardPattern(((StringEval) lookupValue).getStringValue()) != null) {
+				// wildcard
+				return null;
+			}
+		} else if (!(lookupValue instanceof NumberEval) && !(lookupValue instanceof BoolEval)) {
+			return null;
+		}
+		return getKey(lookupValue);
+	}
+
+	/**
+	 * same as the exact match of VLOOKUP, HLOOKUP and MATCH.
+	 *
+	 * @param lookupValue
+	 *            lookup value
+	 * @return first index of the value. {@link #NOT_FOUND} or {@link #UNSUPPORTED}
+	 */
+	public int findExact(ValueEval lookupValue) {
+		Comparable<Object> key = getLookupKey(lookupValue);
+		if (key == null) {
+			return UNSUPPORTED;
+		}
+		if (hashIndex == null) {
+			hashIndex = new HashMap<>();
+			for (int i = keys.length - 1; i >= 0; i--) {
+				if (keys[i] != null) {
+					hashIndex.put(keys[i], i);
+				}
+			}
+		}
+		Integer index = hashIndex.get(key);
+		return (index != null) ? index : NOT_FOUND;
+	}
+
+	/**
+	 * same as MATCH of match_type=1.
+	 *
+	 * @param lookupValue
+	 *            lookup value
+	 * @return last index of the value which is less than or equal to the lookup value. {@link #NOT_FOUND} or
+	 *         {@link #UNSUPPORTED}
+	 */
+	public int findLargestLessThanOrEqual(ValueEval lookupValue) {
+		Comparable<Object> key = getLookupKey(lookupValue);
+		if (key == null) {
+			return UNSUPPORTED;
+		}
+		SortedIndex sorted = getSortedIndex(key);
+		int count = sorted.countLessThanOrEqual(key);
+		if (count == 0) {
+			return NOT_FOUND;
+		}
+		return sorted.maxIndexes[count - 1];
+	}
+
+	/**
+	 * same as MATCH of match_type=-1.
+	 *
+	 * @param lookupValue
+	 *            lookup value
+	 * @return index of the value which is found by the linear search of POI. {@link #NOT_FOUND} or
+	 *         {@link #UNSUPPORTED}
+	 */
+	public int findSmallestGreaterThanOrEqual(ValueEval lookupValue) {
+		Comparable<Object> key = getLookupKey(lookupValue);
+		if (key == null) {
+			return UNSUPPORTED;
+		}
+		SortedIndex sorted = getSortedIndex(key);
+		int count = sorted.countLessThanOrEqual(key);
+		if (count == 0) {
+			// POI returns the last index if no value is less than or equal to the lookup value
+			return keys.length - 1;
+		}
+		// POI stops at the first value which is less than or equal to the lookup value
+		int index = sorted.minIndexes[count - 1];
+		if (key.compareTo(keys[index]) == 0) {
+			return index;
+		}
+		return (index < 1) ? NOT_FOUND : index - 1;
+	}
+
+	private SortedIndex getSortedIndex(Comparable<Object> key) {
+		if (sortedIndexMap == null) {
+			sortedIndexMap = new HashMap<>();
+		}
+		Class<?> type = key.getClass();
+		SortedIndex sorted = sortedIndexMap.get(type);
+		if (sorted == null) {
+			sorted = new SortedIndex(type);
+			sortedIndexMap.put(type, sorted);
+		}
+		return sorted;
+	}
+
+	private final class SortedIndex {
+		// keys of the type in ascending order
+		private final Comparable<Object>[] sortedKeys;
+		// max/min of the indexes of sortedKeys[0..i]
+		private final int[] maxIndexes;
+		private final int[] minIndexes;
+
+		@SuppressWarnings("unchecked")
+		public SortedIndex(Class<?> type) {
+			List<Integer> list = new ArrayList<>();
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] != null && keys[i].getClass() == type) {
+					list.add(i);
+				}
+			}
+			Integer[] indexes = list.toArray(new Integer[list.size()]);
+			Arrays.sort(indexes, new Comparator<Integer>() {
+
+				@Override
+				public int compare(Integer o1, Integer o2) {
+					return keys[o1].compareTo(keys[o2]);
+				}
+			});
+
+			int size = indexes.length;
+			this.sortedKeys = (Comparable<Object>[]) new Comparable<?>[size];
+			this.maxIndexes = new int[size];
+			this.minIndexes = new int[size];
+			for (int i = 0; i < size; i++) {
+				int index = indexes[i];
+				sortedKeys[i] = keys[index];
+				maxIndexes[i] = (i == 0) ? index : Math.max(maxIndexes[i - 1], index);
+				minIndexes[i] = (i == 0) ? index : Math.min(minIndexes[i - 1], index);
+			}
+		}
+
+		public int countLessThanOrEqual(Comparable<Object> key) {
+			int low = 0;
+			int high = sortedKeys.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (sortedKeys[mid].compareTo(key) <= 0) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+	}
+}
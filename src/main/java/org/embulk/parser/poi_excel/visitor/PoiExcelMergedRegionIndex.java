@@ -0,0 +1,115 @@
+package org.embulk.parser.poi_excel.visitor;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+
+/**
+ * interval index of the merged regions of a sheet.
+ * <p>
+ * the regions are sorted by the first row, and the sorted array is treated as an implicit balanced tree whose nodes
+ * keep the max last row of their subtree. memory is O(n). a lookup prunes the subtrees which end before the row or
+ * start after it, so it visits the regions which contain the row (k regions, in any column) and is O(log n + k log n)
+ * at worst, O(log n) if no region contains the row.
+ * </p>
+ */
+public class PoiExcelMergedRegionIndex {
+	private final CellRangeAddress[] regions; // sorted by first row
+	private final int[] order; // index in the sheet. the first region wins if regions overlap
+	private final int[] maxLastRow;
+
+	public PoiExcelMergedRegionIndex(Sheet sheet) {
+		this(getMergedRegions(sheet));
+	}
+
+	/**
+	 * @param list
+	 *            merged regions in the order of the sheet
+	 */
+	public PoiExcelMergedRegionIndex(final CellRangeAddress[] list) {
+		int size = list.length;
+		Integer[] sort = new Integer[size];
+		for (int i = 0; i < size; i++) {
+			sort[i] = i;
+		}
+		Arrays.sort(sort, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				int c = Integer.compare(list[o1].getFirstRow(), list[o2].getFirstRow());
+				if (c != 0) {
+					return c;
+				}
+				return Integer.compare(o1, o2);
+			}
+		});
+
+		this.regions = new CellRangeAddress[size];
+		this.order = new int[size];
+		for (int i = 0; i < size; i++) {
+			regions[i] = list[sort[i]];
+			order[i] = sort[i];
+		}
+		this.maxLastRow = new int[size];
+		initializeMaxLastRow(0, size);
+	}
+
+	private static CellRangeAddress[] getMergedRegions(Sheet sheet) {
+		CellRangeAddress[] list = new CellRangeAddress[sheet.getNumMergedRegions()];
+		for (int i = 0; i < list.length; i++) {
+			list[i] = sheet.getMergedRegion(i);
+		}
+		return list;
+	}
+
+	private int initializeMaxLastRow(int from, int to) {
+		if (from >= to) {
+			return -1;
+		}
+		int mid = (from + to) >>> 1;
+		int max = regions[mid].getLastRow();
+		max = Math.max(max, initializeMaxLastRow(from, mid));
+		max = Math.max(max, initializeMaxLastRow(mid + 1, to));
+		maxLastRow[mid] = max;
+		return max;
+	}
+
+	/**
+	 * @param rowIndex
+	 *            row index
+	 * @param columnIndex
+	 *            column index
+	 * @return the first region (in the order of the sheet) which contains the cell. null if not found
+	 */
+	public CellRangeAddress get(int rowIndex, int columnIndex) {
+		int found = search(0, regions.length, rowIndex, columnIndex, -1);
+		return (found >= 0) ? regions[found] : null;
+	}
+
+	private int search(int from, int to, int r, int c, int found) {
+		if (from >= to) {
+			return found;
+		}
+		int mid = (from + to) >>> 1;
+		if (maxLastRow[mid] < r) {
+			return found;
+		}
+		found = search(from, mid, r, c, found);
+
+		CellRangeAddress range = regions[mid];
+		if (range.getFirstRow() > r) {
+			return found; // the right subtree starts after r too
+		}
+		if (r <= range.getLastRow() && range.getFirstColumn() <= c && c <= range.getLastColumn()) {
+			if (found < 0 || order[mid] < order[found]) {
+				found = mid;
+			}
+		}
+		return search(mid + 1, to, r, c, found);
+	}
+
+	public int size() {
+		return regions.length;
+	}
+}
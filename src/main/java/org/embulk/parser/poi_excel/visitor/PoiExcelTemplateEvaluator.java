@@ -0,0 +1,324 @@
+package org.embulk.parser.poi_excel.visitor;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.formula.EvaluationCell;
+import org.apache.poi.ss.formula.EvaluationSheet;
+import org.apache.poi.ss.formula.FormulaParser;
+import org.apache.poi.ss.formula.FormulaType;
+import org.apache.poi.ss.formula.WorkbookEvaluator;
+import org.apache.poi.ss.formula.eval.BlankEval;
+import org.apache.poi.ss.formula.eval.BoolEval;
+import org.apache.poi.ss.formula.eval.ErrorEval;
+import org.apache.poi.ss.formula.eval.NumberEval;
+import org.apache.poi.ss.formula.eval.StringEval;
+import org.apache.poi.ss.formula.eval.ValueEval;
+import org.apache.poi.ss.formula.ptg.FuncVarPtg;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTCellFormula;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.STCellFormulaType;
+
+import com.google.common.base.Optional;
+
+/**
+ * evaluates the copied-down formulas by {@link PoiExcelFormulaTemplate}.
+ * <p>
+ * xlsx: the shared formula is parsed once per shared formula group (instead of parsing the formula of each cell).<br>
+ * xls and the other formulas of xlsx: the template is looked up by the R1C1 form of the formula tokens of the cell.<br>
+ * the referenced formula cells are evaluated by POI (the results are cached by POI).<br>
+ * the lookup range of VLOOKUP, HLOOKUP and MATCH is indexed by {@link PoiExcelLookupIndex} when the range is looked
+ * up twice (the moving range of the relative reference is searched by POI).
+ * </p>
+ */
+public class PoiExcelTemplateEvaluator {
+
+	private static final int CACHE_SIZE = 1024;
+	private static final int LOOKUP_INDEX_CACHE_SIZE = 64;
+
+	private final Workbook workbook;
+	private final PoiExcelEvaluationWorkbook evaluationWorkbook;
+	private final WorkbookEvaluator evaluator;
+	private final SpreadsheetVersion version;
+
+	// key: sheet index and shared formula index
+	private final Map<Long, Optional<PoiExcelFormulaTemplate>> sharedTemplateMap = new HashMap<>();
+	// key: R1C1 form
+	private final Map<String, Optional<PoiExcelFormulaTemplate>> templateMap = new LinkedHashMap<String, Optional<PoiExcelFormulaTemplate>>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Entry<String, Optional<PoiExcelFormulaTemplate>> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private SheetContext[] contexts = new SheetContext[0];
+
+	private long templateCount;
+	private long lookupIndexCount;
+
+	public PoiExcelTemplateEvaluator(Workbook workbook, PoiExcelEvaluationWorkbook evaluationWorkbook,
+			WorkbookEvaluator evaluator) {
+		this.workbook = workbook;
+		this.evaluationWorkbook = evaluationWorkbook;
+		this.evaluator = evaluator;
+		this.version = evaluationWorkbook.getSpreadsheetVersion();
+	}
+
+	/**
+	 * @param cell
+	 *            formula cell
+	 * @return result of the formula. null if the formula is not supported by the template
+	 */
+	public ValueEval evaluate(Cell cell) {
+		if (evaluationWorkbook.isReplaced(cell)) {
+			return null;
+		}
+
+		int sheetIndex = workbook.getSheetIndex(cell.getSheet());
+		PoiExcelFormulaTemplate template;
+		CTCellFormula f = (cell instanceof XSSFCell) ? ((XSSFCell) cell).getCTCell().getF() : null;
+		if (f != null && f.getT() == STCellFormulaType.SHARED && f.isSetSi()) {
+			template = getSharedTemplate((XSSFCell) cell, f, sheetIndex);
+		} else {
+			template = getTemplate(cell, sheetIndex);
+		}
+		if (template == null) {
+			return null;
+		}
+
+		ValueEval result = template.evaluate(getContext(sheetIndex), cell.getRowIndex(), cell.getColumnIndex());
+		templateCount++;
+		return result;
+	}
+
+	private PoiExcelFormulaTemplate getSharedTemplate(XSSFCell cell, CTCellFormula f, int sheetIndex) {
+		long key = ((long) sheetIndex << 32) | f.getSi();
+		Optional<PoiExcelFormulaTemplate> template = sharedTemplateMap.get(key);
+		if (template == null) {
+			template = Optional.absent();
+			CTCellFormula master = cell.getSheet().getSharedFormula((int) f.getSi());
+			if (master != null && master.getRef() != null) {
+				try {
+					// same as XSSFCell#convertSharedFormula
+					CellRangeAddress ref = CellRangeAddress.valueOf(master.getRef());
+					Ptg[] ptgs = FormulaParser.parse(master.getStringValue(), evaluationWorkbook, FormulaType.CELL,
+							sheetIndex);
+					template = Optional.fromNullable(PoiExcelFormulaTemplate.compile(ptgs, ref.getFirstRow(),
+							ref.getFirstColumn(), version));
+				} catch (RuntimeException e) {
+					// evaluated by POI
+				}
+			}
+			sharedTemplateMap.put(key, template);
+		}
+		return template.orNull();
+	}
+
+	private PoiExcelFormulaTemplate getTemplate(Cell cell, int sheetIndex) {
+		int rowIndex = cell.getRowIndex();
+		int columnIndex = cell.getColumnIndex();
+		EvaluationCell evaluationCell = getContext(sheetIndex).sheet.getCell(rowIndex, columnIndex);
+		Ptg[] ptgs = evaluationWorkbook.getFormulaTokens(evaluationCell);
+		String key = PoiExcelFormulaTemplate.getKey(ptgs, rowIndex, columnIndex);
+		if (key == null) {
+			return null;
+		}
+
+		Optional<PoiExcelFormulaTemplate> template = templateMap.get(key);
+		if (template == null) {
+			template = Optional.fromNullable(PoiExcelFormulaTemplate.compile(ptgs, rowIndex, columnIndex, version));
+			templateMap.put(key, template);
+		}
+		return template.orNull();
+	}
+
+	private SheetContext getContext(int sheetIndex) {
+		if (sheetIndex >= contexts.length) {
+			SheetContext[] array = new SheetContext[workbook.getNumberOfSheets()];
+			System.arraycopy(contexts, 0, array, 0, contexts.length);
+			contexts = array;
+		}
+		SheetContext context = contexts[sheetIndex];
+		if (context == null) {
+			context = new SheetContext(sheetIndex, evaluationWorkbook.getSheet(sheetIndex));
+			contexts[sheetIndex] = context;
+		}
+		return context;
+	}
+
+	/**
+	 * removes the lookup indexes of the ranges which contain the formula cells (the formula of a cell is replaced by
+	 * formula_replace). the values of the other cells are not changed, so the indexes of them are kept.
+	 */
+	public void invalidateLookupIndex() {
+		for (SheetContext context : contexts) {
+			if (context != null) {
+				context.invalidateLookupIndex();
+			}
+		}
+	}
+
+	private static <V> Map<Long, V> createLruMap(final int maxSize) {
+		return new LinkedHashMap<Long, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Entry<Long, V> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	private final class SheetContext implements PoiExcelFormulaTemplate.Context {
+		private final int sheetIndex;
+		private final EvaluationSheet sheet;
+
+		// key: lookup range
+		private final Map<Long, Boolean> lookupRangeMap = createLruMap(CACHE_SIZE);
+		private final Map<Long, LookupRange> lookupIndexMap = createLruMap(LOOKUP_INDEX_CACHE_SIZE);
+
+		public SheetContext(int sheetIndex, EvaluationSheet sheet) {
+			this.sheetIndex = sheetIndex;
+			this.sheet = sheet;
+		}
+
+		@Override
+		public int getFirstSheetIndex() {
+			return sheetIndex;
+		}
+
+		@Override
+		public int getLastSheetIndex() {
+			return sheetIndex;
+		}
+
+		@Override
+		public ValueEval getCellValue(int rowIndex, int columnIndex) {
+			EvaluationCell cell = sheet.getCell(rowIndex, columnIndex);
+			if (cell == null) {
+				return BlankEval.instance;
+			}
+			// same as WorkbookEvaluator#getValueFromNonFormulaCell
+			int cellType = cell.getCellType();
+			switch (cellType) {
+			case Cell.CELL_TYPE_NUMERIC:
+				return new NumberEval(cell.getNumericCellValue());
+			case Cell.CELL_TYPE_STRING:
+				return new StringEval(cell.getStringCellValue());
+			case Cell.CELL_TYPE_BOOLEAN:
+				return BoolEval.valueOf(cell.getBooleanCellValue());
+			case Cell.CELL_TYPE_BLANK:
+				return BlankEval.instance;
+			case Cell.CELL_TYPE_ERROR:
+				return ErrorEval.valueOf(cell.getErrorCellValue());
+			case Cell.CELL_TYPE_FORMULA:
+				return evaluator.evaluate(cell);
+			default:
+				throw new RuntimeException("Unexpected cell type (" + cellType + ")");
+			}
+		}
+
+		@Override
+		public boolean isSubTotal(int rowIndex, int columnIndex) {
+			// same as SheetRefEvaluator
+			EvaluationCell cell = sheet.getCell(rowIndex, columnIndex);
+			if (cell != null && cell.getCellType() == Cell.CELL_TYPE_FORMULA) {
+				for (Ptg ptg : evaluationWorkbook.getFormulaTokens(cell)) {
+					if (ptg instanceof FuncVarPtg && "SUBTOTAL".equals(((FuncVarPtg) ptg).getName())) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public PoiExcelLookupIndex getLookupIndex(boolean column, int fixedIndex, int firstIndex, int lastIndex) {
+			long key = ((column ? 1L : 0L) << 62) | ((long) fixedIndex << 42) | ((long) firstIndex << 21) | lastIndex;
+			LookupRange range = lookupIndexMap.get(key);
+			if (range == null) {
+				// the range looked up only once (e.g. moved by the relative reference) is not indexed
+				if (lookupRangeMap.put(key, Boolean.TRUE) == null) {
+					return null;
+				}
+				lookupRangeMap.remove(key);
+				range = new LookupRange(column, fixedIndex, firstIndex, lastIndex);
+				createLookupIndex(range);
+				lookupIndexMap.put(key, range);
+			}
+			return range.index.orNull();
+		}
+
+		private void createLookupIndex(LookupRange range) {
+			PoiExcelLookupIndex index = new PoiExcelLookupIndex(range.lastIndex - range.firstIndex + 1);
+			try {
+				for (int i = 0; i < index.getSize(); i++) {
+					int rowIndex = range.column ? range.firstIndex + i : range.fixedIndex;
+					int columnIndex = range.column ? range.fixedIndex : range.firstIndex + i;
+					EvaluationCell cell = sheet.getCell(rowIndex, columnIndex);
+					if (cell != null && cell.getCellType() == Cell.CELL_TYPE_FORMULA) {
+						range.formula = true;
+					}
+					index.set(i, getCellValue(rowIndex, columnIndex));
+				}
+			} catch (RuntimeException e) {
+				// searched by POI
+				return;
+			}
+			lookupIndexCount++;
+			range.index = Optional.of(index);
+		}
+
+		public void invalidateLookupIndex() {
+			for (Iterator<LookupRange> i = lookupIndexMap.values().iterator(); i.hasNext();) {
+				// the replaced cell or the formula cells which depend on it
+				if (i.next().formula) {
+					i.remove();
+				}
+			}
+		}
+	}
+
+	private static final class LookupRange {
+		private final boolean column;
+		private final int fixedIndex;
+		private final int firstIndex;
+		private final int lastIndex;
+
+		private Optional<PoiExcelLookupIndex> index = Optional.absent();
+		// the range contains the formula cells
+		private boolean formula;
+
+		public LookupRange(boolean column, int fixedIndex, int firstIndex, int lastIndex) {
+			this.column = column;
+			this.fixedIndex = fixedIndex;
+			this.firstIndex = firstIndex;
+			this.lastIndex = lastIndex;
+		}
+	}
+
+	/**
+	 * @return number of the cells evaluated by the templates
+	 */
+	public long getTemplateCount() {
+		return templateCount;
+	}
+
+	/**
+	 * @return number of the created lookup indexes
+	 */
+	public long getLookupIndexCount() {
+		return lookupIndexCount;
+	}
+}
@@ -145,6 +145,20 @@ public class PoiExcelVisitorFactory {
 		return new PoiExcelCellFontVisitor(visitorValue);
 	}
 
+	// cell formatted
+	private PoiExcelCellFormattedVisitor poiExcelCellFormattedVisitor;
+
+	public final PoiExcelCellFormattedVisitor getPoiExcelCellFormattedVisitor() {
+		if (poiExcelCellFormattedVisitor == null) {
+			poiExcelCellFormattedVisitor = newPoiExcelCellFormattedVisitor();
+		}
+		return poiExcelCellFormattedVisitor;
+	}
+
+	protected PoiExcelCellFormattedVisitor newPoiExcelCellFormattedVisitor() {
+		return new PoiExcelCellFormattedVisitor(visitorValue);
+	}
+
 	// cell comment
 	private PoiExcelCellCommentVisitor poiExcelCellCommentVisitor;
 
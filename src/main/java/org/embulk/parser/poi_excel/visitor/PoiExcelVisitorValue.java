@@ -11,25 +11,63 @@ import org.embulk.spi.Schema;
 public class PoiExcelVisitorValue {
 	private final PluginTask task;
 	private final Sheet sheet;
+	private final String sheetName;
+	private final int sheetIndex;
+	private final PoiExcelWorkbookCache workbookCache;
 	private final PageBuilder pageBuilder;
 	private final PoiExcelSheetBean sheetBean;
 	private PoiExcelVisitorFactory factory;
 
 	public PoiExcelVisitorValue(PluginTask task, Schema schema, Sheet sheet, PageBuilder pageBuilder) {
+		this(task, schema, sheet, new PoiExcelWorkbookCache(sheet.getWorkbook()), pageBuilder);
+	}
+
+	public PoiExcelVisitorValue(PluginTask task, Schema schema, Sheet sheet, PoiExcelWorkbookCache workbookCache,
+			PageBuilder pageBuilder) {
 		this.task = task;
 		this.sheet = sheet;
+		this.sheetName = sheet.getSheetName();
+		this.sheetIndex = sheet.getWorkbook().getSheetIndex(sheet);
+		this.workbookCache = workbookCache;
+		this.pageBuilder = pageBuilder;
+		this.sheetBean = new PoiExcelSheetBean(task, schema, sheetName);
+	}
+
+	// streaming engine (no usermodel sheet)
+	public PoiExcelVisitorValue(PluginTask task, Schema schema, String sheetName, int sheetIndex,
+			PoiExcelWorkbookCache workbookCache, PageBuilder pageBuilder) {
+		this.task = task;
+		this.sheet = null;
+		this.sheetName = sheetName;
+		this.sheetIndex = sheetIndex;
+		this.workbookCache = workbookCache;
 		this.pageBuilder = pageBuilder;
-		this.sheetBean = new PoiExcelSheetBean(task, schema, sheet);
+		this.sheetBean = new PoiExcelSheetBean(task, schema, sheetName);
 	}
 
 	public PluginTask getPluginTask() {
 		return task;
 	}
 
+	/**
+	 * @return usermodel sheet. null when the sheet is read by the streaming engine
+	 */
 	public Sheet getSheet() {
 		return sheet;
 	}
 
+	public String getSheetName() {
+		return sheetName;
+	}
+
+	public int getSheetIndex() {
+		return sheetIndex;
+	}
+
+	public PoiExcelWorkbookCache getWorkbookCache() {
+		return workbookCache;
+	}
+
 	public PageBuilder getPageBuilder() {
 		return pageBuilder;
 	}
@@ -0,0 +1,524 @@
+package org.embulk.parser.poi_excel.visitor;
+
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.formula.EvaluationCell;
+import org.apache.poi.ss.formula.WorkbookEvaluator;
+import org.apache.poi.ss.formula.eval.BoolEval;
+import org.apache.poi.ss.formula.eval.ErrorEval;
+import org.apache.poi.ss.formula.eval.NumericValueEval;
+import org.apache.poi.ss.formula.eval.StringValueEval;
+import org.apache.poi.ss.formula.eval.ValueEval;
+import org.apache.poi.ss.formula.ptg.AbstractFunctionPtg;
+import org.apache.poi.ss.formula.ptg.AttrPtg;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellValue;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.embulk.parser.poi_excel.bean.PoiExcelSheetBean;
+import org.embulk.spi.Exec;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTCellFormula;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.STCellFormulaType;
+import org.slf4j.Logger;
+
+import com.google.common.base.Optional;
+
+/**
+ * objects shared by all sheets of a workbook.
+ */
+public class PoiExcelWorkbookCache {
+	private final Logger log = Exec.getLogger(getClass());
+
+	private static final int VOLATILE_CACHE_SIZE = 1024;
+
+	// the functions whose results are changed without the change of the arguments
+	private static final Set<String> VOLATILE_FUNCTIONS = new HashSet<>(Arrays.asList("NOW", "TODAY", "RAND",
+			"RANDBETWEEN", "INDIRECT", "OFFSET", "CELL", "INFO"));
+
+	private final Workbook workbook;
+	private final Workbook styleWorkbook;
+	private Boolean date1904;
+
+	private final Map<String, AttributeCache> attributeCacheMap = new LinkedHashMap<>();
+
+	private PoiExcelJsonWriter jsonWriter;
+	private PoiExcelDataFormatter dataFormatter;
+
+	private PoiExcelEvaluationWorkbook evaluationWorkbook;
+	private WorkbookEvaluator evaluator;
+	private PoiExcelTemplateEvaluator templateEvaluator;
+	private PoiExcelFormulaBatch formulaBatch;
+	private final Map<Sheet, Optional<PoiExcelCommentIndex>> commentIndexMap = new IdentityHashMap<>();
+	private long batchResultCount;
+	private long evaluateCount;
+	private long evaluateNanos;
+	private long formulaChangeCount;
+	private long templateErrorCount;
+
+	// key: formula (xlsx)
+	private final Map<String, Boolean> volatileMap = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Entry<String, Boolean> eldest) {
+			return size() > VOLATILE_CACHE_SIZE;
+		}
+	};
+	private long autoCachedCount;
+	private long autoNoCachedCount;
+	private long autoVolatileCount;
+	private long autoReplaceCount;
+
+	/**
+	 * @param workbook
+	 *            usermodel workbook. null when the workbook is read by the streaming engine
+	 */
+	public PoiExcelWorkbookCache(Workbook workbook) {
+		this.workbook = workbook;
+		this.styleWorkbook = workbook;
+	}
+
+	/**
+	 * @param workbook
+	 *            usermodel workbook. null when the workbook is read by the streaming engine
+	 * @param date1904
+	 *            true if the workbook uses 1904 date system
+	 */
+	public PoiExcelWorkbookCache(Workbook workbook, boolean date1904) {
+		this(workbook, workbook, date1904);
+	}
+
+	/**
+	 * @param workbook
+	 *            usermodel workbook. null when the workbook is read by the streaming engine
+	 * @param styleWorkbook
+	 *            workbook of the cell styles (fonts, palette). null if the cell styles are not read
+	 * @param date1904
+	 *            true if the workbook uses 1904 date system
+	 */
+	public PoiExcelWorkbookCache(Workbook workbook, Workbook styleWorkbook, boolean date1904) {
+		this.workbook = workbook;
+		this.styleWorkbook = styleWorkbook;
+		this.date1904 = date1904;
+	}
+
+	private static boolean isDate1904(Workbook workbook) {
+		if (workbook instanceof XSSFWorkbook) {
+			return ((XSSFWorkbook) workbook).isDate1904();
+		}
+		if (workbook instanceof HSSFWorkbook) {
+			// HSSFWorkbook does not expose the date system, but HSSFCell#getDateCellValue uses it
+			for (Sheet sheet : workbook) {
+				for (Row row : sheet) {
+					for (Cell cell : row) {
+						int type = cell.getCellType();
+						if (type == Cell.CELL_TYPE_FORMULA) {
+							type = cell.getCachedFormulaResultType();
+						}
+						if (type == Cell.CELL_TYPE_NUMERIC) {
+							double value = cell.getNumericCellValue();
+							if (DateUtil.isValidExcelDate(value)) {
+								Date date = DateUtil.getJavaDate(value, true);
+								return date.equals(cell.getDateCellValue());
+							}
+						}
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	public Workbook getWorkbook() {
+		return workbook;
+	}
+
+	/**
+	 * @return workbook which resolves the fonts and the palette of the cell styles (xls). the stub workbook of the
+	 *         reader for the streaming engine
+	 */
+	public Workbook getStyleWorkbook() {
+		return styleWorkbook;
+	}
+
+	/**
+	 * creates the objects which POI initializes lazily in the workbook, so that the sheets are read by several
+	 * threads (sheet_threads, formula_batch).
+	 *
+	 * @param workbook
+	 *            usermodel workbook
+	 */
+	public static void prepareConcurrentRead(Workbook workbook) {
+		if (workbook instanceof HSSFWorkbook) {
+			HSSFWorkbook book = (HSSFWorkbook) workbook;
+			// the palette record is added if the workbook has no palette
+			book.getCustomPalette();
+			// the fonts are cached by HSSFWorkbook
+			for (short i = 0; i < book.getNumCellStyles(); i++) {
+				book.getCellStyleAt(i).getFont(book);
+			}
+		}
+	}
+
+	/**
+	 * @param sheet
+	 *            usermodel sheet
+	 * @return comments of the sheet (created at the first call). null if the sheet is not supported
+	 */
+	public PoiExcelCommentIndex getCommentIndex(Sheet sheet) {
+		Optional<PoiExcelCommentIndex> index = commentIndexMap.get(sheet);
+		if (index == null) {
+			index = Optional.fromNullable(PoiExcelCommentIndex.create(sheet));
+			commentIndexMap.put(sheet, index);
+		}
+		return index.orNull();
+	}
+
+	/**
+	 * @return true if the workbook uses 1904 date system
+	 */
+	public boolean isDate1904() {
+		if (date1904 == null) {
+			date1904 = isDate1904(workbook);
+		}
+		return date1904;
+	}
+
+	/**
+	 * @return evaluator (the results are cached while the workbook is processed)
+	 */
+	protected WorkbookEvaluator getWorkbookEvaluator() {
+		if (evaluator == null) {
+			evaluationWorkbook = new PoiExcelEvaluationWorkbook(workbook);
+			// same as the evaluator created by CreationHelper
+			evaluator = new WorkbookEvaluator(evaluationWorkbook, null, null);
+		}
+		return evaluator;
+	}
+
+	/**
+	 * @param cell
+	 *            formula cell
+	 * @return result of the formula (replaced formula if {@link #setReplacedFormula(Cell, String)} is called)
+	 */
+	public CellValue evaluate(Cell cell) {
+		return evaluate(cell, false);
+	}
+
+	/**
+	 * @param cell
+	 *            formula cell
+	 * @param template
+	 *            true if the copied-down formula is evaluated by the template (formula_template)
+	 * @return result of the formula (replaced formula if {@link #setReplacedFormula(Cell, String)} is called)
+	 */
+	public CellValue evaluate(Cell cell, boolean template) {
+		if (formulaBatch != null) {
+			CellValue result = formulaBatch.getResult(cell);
+			if (result != null) {
+				batchResultCount++;
+				return result;
+			}
+		}
+
+		WorkbookEvaluator evaluator = getWorkbookEvaluator();
+		long start = System.nanoTime();
+		try {
+			if (template) {
+				if (templateEvaluator == null) {
+					templateEvaluator = new PoiExcelTemplateEvaluator(workbook, evaluationWorkbook, evaluator);
+				}
+				ValueEval result;
+				try {
+					result = templateEvaluator.evaluate(cell);
+				} catch (RuntimeException e) {
+					// evaluated again by POI (same exception or result as POI)
+					log.debug("template evaluate error", e);
+					templateErrorCount++;
+					result = null;
+				}
+				if (result != null) {
+					return toCellValue(result);
+				}
+			}
+			EvaluationCell evaluationCell = evaluationWorkbook.getEvaluationCell(cell);
+			return toCellValue(evaluator.evaluate(evaluationCell));
+		} finally {
+			evaluateNanos += System.nanoTime() - start;
+			evaluateCount++;
+		}
+	}
+
+	/**
+	 * formula_handling=auto.
+	 *
+	 * @param cell
+	 *            formula cell
+	 * @param replace
+	 *            true if formula_replace is specified
+	 * @return true if the formula is evaluated (the cell has no cached value, the formula has volatile functions, or
+	 *         the formula is replaced). false if the cached value is used
+	 */
+	public boolean isAutoEvaluate(Cell cell, boolean replace) {
+		if (replace) {
+			autoReplaceCount++;
+			return true;
+		}
+		if (cell instanceof XSSFCell && !((XSSFCell) cell).getCTCell().isSetV()) {
+			// the file is not saved by Excel
+			autoNoCachedCount++;
+			return true;
+		}
+		if (isVolatile(cell)) {
+			autoVolatileCount++;
+			return true;
+		}
+		autoCachedCount++;
+		return false;
+	}
+
+	private boolean isVolatile(Cell cell) {
+		String key = null;
+		if (cell instanceof XSSFCell) {
+			CTCellFormula f = ((XSSFCell) cell).getCTCell().getF();
+			if (f == null) {
+				return false;
+			}
+			if (f.getT() == STCellFormulaType.SHARED && f.isSetSi()) {
+				key = MessageFormat.format("{0}!shared{1}", cell.getSheet().getSheetName(), f.getSi());
+			} else {
+				key = f.getStringValue();
+			}
+			Boolean result = volatileMap.get(key);
+			if (result != null) {
+				return result;
+			}
+		}
+
+		// xls: the tokens are stored in the record
+		getWorkbookEvaluator();
+		boolean result = false;
+		for (Ptg ptg : evaluationWorkbook.getFormulaTokens(evaluationWorkbook.getEvaluationCell(cell))) {
+			if (ptg instanceof AttrPtg && ((AttrPtg) ptg).isSemiVolatile()) {
+				result = true;
+				break;
+			}
+			if (ptg instanceof AbstractFunctionPtg
+					&& VOLATILE_FUNCTIONS.contains(((AbstractFunctionPtg) ptg).getName())) {
+				result = true;
+				break;
+			}
+		}
+		if (key != null) {
+			volatileMap.put(key, result);
+		}
+		return result;
+	}
+
+	// same as HSSFFormulaEvaluator
+	private static CellValue toCellValue(ValueEval eval) {
+		if (eval instanceof BoolEval) {
+			return CellValue.valueOf(((BoolEval) eval).getBooleanValue());
+		}
+		if (eval instanceof NumericValueEval) {
+			return new CellValue(((NumericValueEval) eval).getNumberValue());
+		}
+		if (eval instanceof StringValueEval) {
+			return new CellValue(((StringValueEval) eval).getStringValue());
+		}
+		if (eval instanceof ErrorEval) {
+			return CellValue.getError(((ErrorEval) eval).getErrorCode());
+		}
+		throw new RuntimeException(MessageFormat.format("unexpected eval class={0}", eval.getClass().getName()));
+	}
+
+	/**
+	 * evaluate the formula instead of the formula of the cell. the cell is not changed.
+	 *
+	 * @param cell
+	 *            formula cell
+	 * @param formula
+	 *            replaced formula
+	 */
+	public void setReplacedFormula(Cell cell, String formula) {
+		WorkbookEvaluator evaluator = getWorkbookEvaluator();
+		EvaluationCell evaluationCell = evaluationWorkbook.setReplacedFormula(cell, formula);
+		if (evaluationCell == null) {
+			// the tokens are not changed
+			return;
+		}
+		// clears the result only if the cell has been evaluated as a reference
+		evaluator.notifyUpdateCell(evaluationCell);
+		if (templateEvaluator != null) {
+			templateEvaluator.invalidateLookupIndex();
+		}
+		// the results of formula_batch may depend on the cell
+		formulaBatch = null;
+		formulaChangeCount++;
+	}
+
+	/**
+	 * evaluate the formula cells of the sheet in parallel (formula_batch). the results are returned by
+	 * {@link #evaluate(Cell, boolean)} until {@link #clearBatch()} is called.
+	 *
+	 * @param sheet
+	 *            sheet
+	 * @param sheetBean
+	 *            columns and rows which are read
+	 * @param threads
+	 *            number of threads
+	 */
+	public void evaluateBatch(Sheet sheet, PoiExcelSheetBean sheetBean, int threads) {
+		PoiExcelFormulaBatch batch = new PoiExcelFormulaBatch(sheet, sheetBean, threads);
+		batch.evaluate();
+		this.formulaBatch = batch;
+	}
+
+	public void clearBatch() {
+		formulaBatch = null;
+	}
+
+	public PoiExcelJsonWriter getJsonWriter() {
+		if (jsonWriter == null) {
+			jsonWriter = new PoiExcelJsonWriter();
+		}
+		return jsonWriter;
+	}
+
+	/**
+	 * @return formatter of cell_formatted (the data formats are compiled per workbook)
+	 */
+	public PoiExcelDataFormatter getDataFormatter() {
+		if (dataFormatter == null) {
+			dataFormatter = new PoiExcelDataFormatter(isDate1904(), getAttributeCache("cell_formatted"));
+		}
+		return dataFormatter;
+	}
+
+	/**
+	 * @param name
+	 *            value type and attribute names
+	 * @return cache of the attribute values (cell_style, cell_font) per style or font index
+	 */
+	public AttributeCache getAttributeCache(String name) {
+		AttributeCache cache = attributeCacheMap.get(name);
+		if (cache == null) {
+			cache = new AttributeCache(name);
+			attributeCacheMap.put(name, cache);
+		}
+		return cache;
+	}
+
+	public static class AttributeCache {
+		// cached null
+		public static final Object NULL = new Object();
+
+		private final String name;
+		private Object[] values = new Object[64];
+		private long hitCount;
+		private long missCount;
+
+		public AttributeCache(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @param index
+		 *            style index or font index
+		 * @return value. {@link #NULL} if the cached value is null. null if not cached
+		 */
+		public Object get(int index) {
+			if (index < values.length) {
+				Object value = values[index];
+				if (value != null) {
+					hitCount++;
+					return value;
+				}
+			}
+			missCount++;
+			return null;
+		}
+
+		/**
+		 * @return the value stored ({@link #NULL} if the value is null)
+		 */
+		public Object put(int index, Object value) {
+			if (index >= values.length) {
+				values = Arrays.copyOf(values, Math.max(values.length * 2, index + 1));
+			}
+			Object v = (value != null) ? value : NULL;
+			values[index] = v;
+			return v;
+		}
+
+		@Override
+		public String toString() {
+			long count = hitCount + missCount;
+			return MessageFormat.format("{0}: hit={1}, miss={2}, hit ratio={3}%", name, hitCount, missCount,
+					(count > 0) ? hitCount * 100 / count : 0);
+		}
+	}
+
+	/**
+	 * @return number of the cells of formula_handling=auto which use the cached value
+	 */
+	public long getAutoCachedCount() {
+		return autoCachedCount;
+	}
+
+	/**
+	 * @return number of the cells of formula_handling=auto which are evaluated because of no cached value
+	 */
+	public long getAutoNoCachedCount() {
+		return autoNoCachedCount;
+	}
+
+	/**
+	 * @return number of the cells of formula_handling=auto which are evaluated because of the volatile functions
+	 */
+	public long getAutoVolatileCount() {
+		return autoVolatileCount;
+	}
+
+	/**
+	 * @return number of the cells of formula_handling=auto which are evaluated because of formula_replace
+	 */
+	public long getAutoReplaceCount() {
+		return autoReplaceCount;
+	}
+
+	public void logStatistics() {
+		if (evaluateCount != 0 || formulaChangeCount != 0) {
+			log.info("formula evaluate count={}, time={}ms, replaced formula count={}", evaluateCount,
+					evaluateNanos / 1000000, formulaChangeCount);
+		}
+		if (autoCachedCount != 0 || autoNoCachedCount != 0 || autoVolatileCount != 0 || autoReplaceCount != 0) {
+			log.info("formula auto cached value count={}, evaluate count(no cached value={}, volatile={}, "
+					+ "formula_replace={})", autoCachedCount, autoNoCachedCount, autoVolatileCount, autoReplaceCount);
+		}
+		if (batchResultCount != 0) {
+			log.info("formula batch result count={}", batchResultCount);
+		}
+		if (templateEvaluator != null) {
+			log.info("formula template evaluate count={}, template error count={}, lookup index count={}",
+					templateEvaluator.getTemplateCount(), templateErrorCount, templateEvaluator.getLookupIndexCount());
+		}
+		for (AttributeCache cache : attributeCacheMap.values()) {
+			log.info("attribute cache {}", cache);
+		}
+	}
+}
@@ -1,6 +1,5 @@
 package org.embulk.parser.poi_excel.visitor.embulk;
 
-import org.apache.poi.ss.usermodel.Sheet;
 import org.embulk.parser.poi_excel.visitor.PoiExcelVisitorValue;
 import org.embulk.spi.Column;
 
@@ -44,8 +43,7 @@ public class DoubleCellVisitor extends CellVisitor {
 
 	@Override
 	public void visitSheetName(Column column) {
-		Sheet sheet = visitorValue.getSheet();
-		int index = sheet.getWorkbook().getSheetIndex(sheet);
+		int index = visitorValue.getSheetIndex();
 		pageBuilder.setDouble(column, index);
 	}
 
@@ -0,0 +1,100 @@
+package org.embulk.parser.poi_excel.visitor.embulk;
+
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.apache.poi.ss.usermodel.DateUtil;
+
+/**
+ * converts Excel serial date to epoch milliseconds by arithmetic.
+ * <p>
+ * the result is same as {@link DateUtil#getJavaDate(double, boolean, TimeZone)}. the offset of the time zone is
+ * cached per day, and the days near an offset transition are converted by DateUtil.
+ * </p>
+ */
+public class ExcelDateConverter {
+
+	private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+	// epoch day of 1900-01-01 and 1904-01-01
+	private static final long EPOCH_DAY_1900 = -25567;
+	private static final long EPOCH_DAY_1904 = -24107;
+
+	// 9999-12-31
+	private static final int MAX_WHOLE_DAYS = 2958465;
+
+	private final TimeZone timeZone;
+	private final boolean date1904;
+
+	private long cachedDay = Long.MIN_VALUE;
+	private int cachedOffset;
+	private boolean cachedOffsetValid;
+
+	public ExcelDateConverter(TimeZone timeZone, boolean date1904) {
+		this.timeZone = timeZone;
+		this.date1904 = date1904;
+	}
+
+	/**
+	 * @param date
+	 *            Excel serial date
+	 * @return epoch milliseconds
+	 * @throws IllegalArgumentException
+	 *             if the value is not a valid Excel date
+	 */
+	public long toEpochMilli(double date) {
+		if (!(date >= 0) || date > MAX_WHOLE_DAYS) {
+			return toEpochMilliByDateUtil(date);
+		}
+
+		// same calculation as DateUtil
+		int wholeDays = (int) Math.floor(date);
+		int millisecondsInDay = (int) ((date - wholeDays) * DateUtil.DAY_MILLISECONDS + 0.5);
+
+		long epochDay;
+		if (date1904) {
+			epochDay = EPOCH_DAY_1904 + wholeDays;
+		} else if (wholeDays < 61) {
+			// 1900-01-00 to 1900-02-29 (Excel thinks 1900 is a leap year): serial 60 becomes 1900-03-01
+			epochDay = EPOCH_DAY_1900 + wholeDays - 1;
+		} else {
+			epochDay = EPOCH_DAY_1900 + wholeDays - 2;
+		}
+		long wall = epochDay * DAY_MILLIS + millisecondsInDay;
+
+		long day = floorDiv(wall, DAY_MILLIS);
+		if (day != cachedDay) {
+			cachedDay = day;
+			cacheOffset(day * DAY_MILLIS);
+		}
+		if (!cachedOffsetValid) {
+			return toEpochMilliByDateUtil(date);
+		}
+		return wall - cachedOffset;
+	}
+
+	private void cacheOffset(long dayStart) {
+		// the offset is constant from the day before to the day after (UTC), so the local day has no transition
+		int offset = timeZone.getOffset(dayStart);
+		this.cachedOffset = offset;
+		this.cachedOffsetValid = timeZone.getOffset(dayStart - DAY_MILLIS) == offset
+				&& timeZone.getOffset(dayStart + DAY_MILLIS) == offset
+				&& timeZone.getOffset(dayStart + 2 * DAY_MILLIS) == offset;
+	}
+
+	protected long toEpochMilliByDateUtil(double date) {
+		Date d = DateUtil.getJavaDate(date, date1904, timeZone);
+		if (d == null) {
+			throw new IllegalArgumentException("invalid Excel date=" + date);
+		}
+		return d.getTime();
+	}
+
+	private static long floorDiv(long x, long y) {
+		long r = x / y;
+		if ((x % y != 0) && ((x ^ y) < 0)) {
+			r--;
+		}
+		return r;
+	}
+}
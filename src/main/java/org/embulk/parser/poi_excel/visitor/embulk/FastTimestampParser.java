@@ -0,0 +1,276 @@
+package org.embulk.parser.poi_excel.visitor.embulk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.embulk.spi.time.Timestamp;
+import org.joda.time.DateTimeZone;
+
+/**
+ * parser of simple strftime formats without JRuby.
+ * <p>
+ * supports %Y, %m, %d, %H, %M, %S, %F, %T, %z (+HH:MM) and literals. the text is parsed only if it has the canonical
+ * form (4 digits year, 1 or 2 digits fields, one space for a space); otherwise {@link #parse(String)} returns null
+ * and the caller uses TimestampParser, so the result is never different from TimestampParser.
+ * </p>
+ */
+public class FastTimestampParser {
+
+	private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+	private static final int YEAR = 0;
+	private static final int MONTH = 1;
+	private static final int DAY = 2;
+	private static final int HOUR = 3;
+	private static final int MINUTE = 4;
+	private static final int SECOND = 5;
+	private static final int ZONE = 6;
+	private static final int LITERAL = 7;
+
+	private final int[] types;
+	private final char[] literals;
+	private final DateTimeZone defaultTimeZone;
+
+	private FastTimestampParser(int[] types, char[] literals, DateTimeZone defaultTimeZone) {
+		this.types = types;
+		this.literals = literals;
+		this.defaultTimeZone = defaultTimeZone;
+	}
+
+	/**
+	 * @param format
+	 *            strftime format
+	 * @param defaultTimeZone
+	 *            time zone used if the text has no zone
+	 * @return parser. null if the format is not supported
+	 */
+	public static FastTimestampParser compile(String format, DateTimeZone defaultTimeZone) {
+		List<Integer> types = new ArrayList<>();
+		StringBuilder literals = new StringBuilder();
+		boolean hasYear = false;
+		for (int i = 0; i < format.length(); i++) {
+			char c = format.charAt(i);
+			if (c != '%') {
+				types.add(LITERAL);
+				literals.append(c);
+				continue;
+			}
+			if (++i >= format.length()) {
+				return null;
+			}
+			switch (format.charAt(i)) {
+			case 'Y':
+				add(types, literals, YEAR);
+				hasYear = true;
+				break;
+			case 'm':
+				add(types, literals, MONTH);
+				break;
+			case 'd':
+				add(types, literals, DAY);
+				break;
+			case 'H':
+				add(types, literals, HOUR);
+				break;
+			case 'M':
+				add(types, literals, MINUTE);
+				break;
+			case 'S':
+				add(types, literals, SECOND);
+				break;
+			case 'z':
+				add(types, literals, ZONE);
+				break;
+			case 'F':
+				add(types, literals, YEAR);
+				addLiteral(types, literals, '-');
+				add(types, literals, MONTH);
+				addLiteral(types, literals, '-');
+				add(types, literals, DAY);
+				hasYear = true;
+				break;
+			case 'T':
+				add(types, literals, HOUR);
+				addLiteral(types, literals, ':');
+				add(types, literals, MINUTE);
+				addLiteral(types, literals, ':');
+				add(types, literals, SECOND);
+				break;
+			case '%':
+				addLiteral(types, literals, '%');
+				break;
+			default:
+				return null;
+			}
+		}
+		// the fields which are omitted are filled by TimestampParser
+		if (!hasYear) {
+			return null;
+		}
+
+		int[] array = new int[types.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = types.get(i);
+		}
+		return new FastTimestampParser(array, literals.toString().toCharArray(), defaultTimeZone);
+	}
+
+	private static void add(List<Integer> types, StringBuilder literals, int type) {
+		types.add(type);
+		literals.append('\0');
+	}
+
+	private static void addLiteral(List<Integer> types, StringBuilder literals, char c) {
+		types.add(LITERAL);
+		literals.append(c);
+	}
+
+	/**
+	 * @param text
+	 *            text
+	 * @return timestamp. null if the text is not in the canonical form of the format
+	 */
+	public Timestamp parse(String text) {
+		int year = 0, month = 1, day = 1, hour = 0, minute = 0, second = 0;
+		boolean hasZone = false;
+		int zoneOffsetMillis = 0;
+
+		int length = text.length();
+		int pos = 0;
+		for (int i = 0; i < types.length; i++) {
+			int type = types[i];
+			if (type == LITERAL) {
+				if (pos >= length || text.charAt(pos) != literals[i]) {
+					return null;
+				}
+				pos++;
+				continue;
+			}
+			if (type == ZONE) {
+				// +HH:MM
+				if (pos + 6 > length) {
+					return null;
+				}
+				char sign = text.charAt(pos);
+				if ((sign != '+' && sign != '-') || text.charAt(pos + 3) != ':') {
+					return null;
+				}
+				int h = digits(text, pos + 1, 2);
+				int m = digits(text, pos + 4, 2);
+				if (h < 0 || m < 0 || h > 23 || m > 59) {
+					return null;
+				}
+				zoneOffsetMillis = (h * 60 + m) * 60 * 1000;
+				if (sign == '-') {
+					zoneOffsetMillis = -zoneOffsetMillis;
+				}
+				hasZone = true;
+				pos += 6;
+				continue;
+			}
+
+			int width = (type == YEAR) ? 4 : 2;
+			int end = pos;
+			while (end < length && end - pos < width && isDigit(text.charAt(end))) {
+				end++;
+			}
+			// TimestampParser reads more digits for the year, and 1 digit fields are allowed except the year
+			if (end == pos || (type == YEAR && end - pos != 4) || (end < length && isDigit(text.charAt(end)))) {
+				return null;
+			}
+			int value = digits(text, pos, end - pos);
+			pos = end;
+
+			switch (type) {
+			case YEAR:
+				year = value;
+				break;
+			case MONTH:
+				month = value;
+				break;
+			case DAY:
+				day = value;
+				break;
+			case HOUR:
+				hour = value;
+				break;
+			case MINUTE:
+				minute = value;
+				break;
+			case SECOND:
+				second = value;
+				break;
+			default:
+				throw new IllegalStateException();
+			}
+		}
+		if (pos != length) {
+			return null;
+		}
+		// out of range values are rejected or carried over by TimestampParser
+		if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month) || hour > 23 || minute > 59
+				|| second > 59) {
+			return null;
+		}
+
+		long localMillis = (epochDay(year, month, day) * DAY_MILLIS) + ((hour * 60 + minute) * 60 + second) * 1000L;
+		long utcMillis;
+		if (hasZone) {
+			utcMillis = localMillis - zoneOffsetMillis;
+		} else {
+			utcMillis = defaultTimeZone.convertLocalToUTC(localMillis, false);
+		}
+		return Timestamp.ofEpochSecond(utcMillis / 1000);
+	}
+
+	private static boolean isDigit(char c) {
+		return '0' <= c && c <= '9';
+	}
+
+	private static int digits(String text, int pos, int width) {
+		int value = 0;
+		for (int i = pos; i < pos + width; i++) {
+			char c = text.charAt(i);
+			if (!isDigit(c)) {
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	private static boolean isLeapYear(int year) {
+		return (year % 4 == 0) && (year % 100 != 0 || year % 400 == 0);
+	}
+
+	private static int daysInMonth(int year, int month) {
+		switch (month) {
+		case 2:
+			return isLeapYear(year) ? 29 : 28;
+		case 4:
+		case 6:
+		case 9:
+		case 11:
+			return 30;
+		default:
+			return 31;
+		}
+	}
+
+	// proleptic Gregorian calendar, same as Ruby's Time
+	private static long epochDay(int year, int month, int day) {
+		long y = year;
+		long total = 365 * y;
+		total += (y + 3) / 4 - (y + 99) / 100 + (y + 399) / 400;
+		total += (367 * month - 362) / 12;
+		total += day - 1;
+		if (month > 2) {
+			total--;
+			if (!isLeapYear(year)) {
+				total--;
+			}
+		}
+		// days from 0000-01-01 to 1970-01-01
+		return total - 719528;
+	}
+}
@@ -0,0 +1,176 @@
+package org.embulk.parser.poi_excel.visitor.embulk;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.DecimalFormatSymbols;
+import java.text.MessageFormat;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * numeric_format compiled once per column.
+ * <p>
+ * a format which has one %f conversion (flags '-' or '0', width, precision) is rendered without
+ * java.util.Formatter; the result is same as String.format. other formats use String.format.
+ * </p>
+ */
+public class NumericFormatter {
+
+	private static final Pattern FLOAT_PATTERN = Pattern.compile("%(-|0)?([1-9][0-9]*)?(?:\\.([0-9]+))?f");
+
+	private final String format;
+
+	// compiled %f
+	private final boolean compiled;
+	private String prefix;
+	private String suffix;
+	private boolean leftJustify;
+	private boolean zeroPad;
+	private int width;
+	private int precision;
+
+	private final StringBuilder buffer = new StringBuilder(32);
+
+	/**
+	 * @param format
+	 *            numeric_format (empty if not specified)
+	 */
+	public NumericFormatter(String format) {
+		this.format = format;
+		this.compiled = !format.isEmpty() && compile(format);
+	}
+
+	private boolean compile(String format) {
+		Locale locale = Locale.getDefault(Locale.Category.FORMAT);
+		DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(locale);
+		if (symbols.getDecimalSeparator() != '.' || symbols.getZeroDigit() != '0') {
+			return false;
+		}
+
+		Matcher matcher = FLOAT_PATTERN.matcher(format);
+		if (!matcher.find()) {
+			return false;
+		}
+		String prefix = unescape(format.substring(0, matcher.start()));
+		String suffix = unescape(format.substring(matcher.end()));
+		if (prefix == null || suffix == null) {
+			return false;
+		}
+
+		String flag = matcher.group(1);
+		String width = matcher.group(2);
+		String precision = matcher.group(3);
+		if ("-".equals(flag) && width == null) {
+			// MissingFormatWidthException
+			return false;
+		}
+		this.prefix = prefix;
+		this.suffix = suffix;
+		this.leftJustify = "-".equals(flag);
+		this.zeroPad = "0".equals(flag);
+		this.width = (width != null) ? Integer.parseInt(width) : 0;
+		this.precision = (precision != null) ? Integer.parseInt(precision) : 6;
+		if (this.zeroPad && width == null) {
+			return false;
+		}
+		return this.precision <= 100;
+	}
+
+	// "%%" to "%". null if the literal has other conversions
+	private static String unescape(String s) {
+		if (s.indexOf('%') < 0) {
+			return s;
+		}
+		StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '%') {
+				if (i + 1 < s.length() && s.charAt(i + 1) == '%') {
+					sb.append('%');
+					i++;
+					continue;
+				}
+				return null;
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	public String format(double value) {
+		if (format.isEmpty()) {
+			return toString(value);
+		}
+		if (!compiled || Double.isNaN(value) || Double.isInfinite(value)) {
+			try {
+				return String.format(format, value);
+			} catch (Exception e) {
+				throw new IllegalArgumentException(MessageFormat.format(
+						"illegal String.format for double. numeric_format=\"{0}\"", format), e);
+			}
+		}
+
+		StringBuilder sb = buffer;
+		sb.setLength(0);
+		sb.append(prefix);
+		int start = sb.length();
+
+		// same as Formatter: -0.0 is negative
+		if (Double.compare(value, 0.0) < 0) {
+			sb.append('-');
+		}
+		double abs = Math.abs(value);
+		if (abs == Math.rint(abs) && abs < 1e15) {
+			sb.append((long) abs);
+			if (precision > 0) {
+				sb.append('.');
+				for (int i = 0; i < precision; i++) {
+					sb.append('0');
+				}
+			}
+		} else {
+			// Formatter rounds the shortest decimal representation by HALF_UP
+			BigDecimal decimal = new BigDecimal(Double.toString(abs)).setScale(precision, RoundingMode.HALF_UP);
+			sb.append(decimal.toPlainString());
+		}
+
+		int pad = width - (sb.length() - start);
+		if (pad > 0) {
+			if (leftJustify) {
+				for (int i = 0; i < pad; i++) {
+					sb.append(' ');
+				}
+			} else if (zeroPad) {
+				int pos = (sb.charAt(start) == '-') ? start + 1 : start;
+				for (int i = 0; i < pad; i++) {
+					sb.insert(pos, '0');
+				}
+			} else {
+				for (int i = 0; i < pad; i++) {
+					sb.insert(start, ' ');
+				}
+			}
+		}
+		sb.append(suffix);
+		return sb.toString();
+	}
+
+	/**
+	 * @param value
+	 *            value
+	 * @return same as Double.toString without ".0"
+	 */
+	public static String toString(double value) {
+		// Double.toString uses the plain notation from 10^-3 to 10^7
+		if (value == (long) value && Math.abs(value) < 1e7 && (value != 0 || Double.doubleToRawLongBits(value) == 0)) {
+			return Long.toString((long) value);
+		}
+
+		String s = Double.toString(value);
+		if (s.endsWith(".0")) {
+			return s.substring(0, s.length() - 2);
+		}
+		return s;
+	}
+}
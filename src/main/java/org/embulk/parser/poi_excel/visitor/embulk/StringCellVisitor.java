@@ -1,9 +1,6 @@
 package org.embulk.parser.poi_excel.visitor.embulk;
 
-import java.text.MessageFormat;
-
 import org.apache.poi.ss.usermodel.FormulaError;
-import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.util.CellReference;
 import org.embulk.parser.poi_excel.bean.PoiExcelColumnBean;
 import org.embulk.parser.poi_excel.visitor.PoiExcelVisitorValue;
@@ -22,21 +19,8 @@ public class StringCellVisitor extends CellVisitor {
 	}
 
 	protected String toString(Column column, Object source, double value) {
-		String format = getNumericFormat(column);
-		if (!format.isEmpty()) {
-			try {
-				return String.format(format, value);
-			} catch (Exception e) {
-				throw new IllegalArgumentException(MessageFormat.format(
-						"illegal String.format for double. numeric_format=\"{0}\"", format), e);
-			}
-		}
-
-		String s = Double.toString(value);
-		if (s.endsWith(".0")) {
-			return s.substring(0, s.length() - 2);
-		}
-		return s;
+		NumericFormatter formatter = getNumericFormatter(column);
+		return formatter.format(value);
 	}
 
 	protected String getNumericFormat(Column column) {
@@ -44,6 +28,20 @@ public class StringCellVisitor extends CellVisitor {
 		return bean.getNumericFormat();
 	}
 
+	private NumericFormatter[] numericFormatters;
+
+	protected final NumericFormatter getNumericFormatter(Column column) {
+		if (numericFormatters == null) {
+			numericFormatters = new NumericFormatter[visitorValue.getPluginTask().getColumns().size()];
+		}
+		NumericFormatter formatter = numericFormatters[column.getIndex()];
+		if (formatter == null) {
+			formatter = new NumericFormatter(getNumericFormat(column));
+			numericFormatters[column.getIndex()] = formatter;
+		}
+		return formatter;
+	}
+
 	@Override
 	public void visitCellValueString(Column column, Object source, String value) {
 		pageBuilder.setString(column, value);
@@ -69,8 +67,7 @@ public class StringCellVisitor extends CellVisitor {
 
 	@Override
 	public void visitSheetName(Column column) {
-		Sheet sheet = visitorValue.getSheet();
-		pageBuilder.setString(column, sheet.getSheetName());
+		pageBuilder.setString(column, visitorValue.getSheetName());
 	}
 
 	@Override
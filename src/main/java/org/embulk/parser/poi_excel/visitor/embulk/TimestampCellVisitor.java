@@ -1,17 +1,19 @@
 package org.embulk.parser.poi_excel.visitor.embulk;
 
-import java.util.Date;
 import java.util.TimeZone;
 
-import org.apache.poi.ss.usermodel.DateUtil;
-import org.apache.poi.ss.usermodel.Sheet;
 import org.embulk.parser.poi_excel.PoiExcelParserPlugin.PluginTask;
 import org.embulk.parser.poi_excel.visitor.PoiExcelVisitorValue;
 import org.embulk.spi.Column;
+import org.embulk.spi.ColumnConfig;
+import org.embulk.spi.SchemaConfig;
 import org.embulk.spi.time.Timestamp;
 import org.embulk.spi.time.TimestampParseException;
 import org.embulk.spi.time.TimestampParser;
+import org.embulk.spi.time.TimestampParser.TimestampColumnOption;
+import org.embulk.spi.type.TimestampType;
 import org.embulk.spi.util.Timestamps;
+import org.joda.time.DateTimeZone;
 
 public class TimestampCellVisitor extends CellVisitor {
 
@@ -21,15 +23,22 @@ public class TimestampCellVisitor extends CellVisitor {
 
 	@Override
 	public void visitCellValueNumeric(Column column, Object source, double value) {
-		TimestampParser parser = getTimestampParser(column);
-		TimeZone tz = parser.getDefaultTimeZone().toTimeZone();
-		Date date = DateUtil.getJavaDate(value, tz);
-		Timestamp t = Timestamp.ofEpochMilli(date.getTime());
+		ExcelDateConverter converter = getDateConverter(column);
+		Timestamp t = Timestamp.ofEpochMilli(converter.toEpochMilli(value));
 		pageBuilder.setTimestamp(column, t);
 	}
 
 	@Override
 	public void visitCellValueString(Column column, Object source, String value) {
+		FastTimestampParser fastParser = getFastTimestampParser(column);
+		if (fastParser != null) {
+			Timestamp t = fastParser.parse(value);
+			if (t != null) {
+				pageBuilder.setTimestamp(column, t);
+				return;
+			}
+		}
+
 		Timestamp t;
 		try {
 			TimestampParser parser = getTimestampParser(column);
@@ -60,8 +69,7 @@ public class TimestampCellVisitor extends CellVisitor {
 
 	@Override
 	public void visitSheetName(Column column) {
-		Sheet sheet = visitorValue.getSheet();
-		doConvertError(column, sheet.getSheetName(), new UnsupportedOperationException(
+		doConvertError(column, visitorValue.getSheetName(), new UnsupportedOperationException(
 				"unsupported conversion sheet_name to Embulk timestamp"));
 	}
 
@@ -84,12 +92,54 @@ public class TimestampCellVisitor extends CellVisitor {
 	}
 
 	private TimestampParser[] timestampParsers;
+	private FastTimestampParser[] fastTimestampParsers;
 
 	protected final TimestampParser getTimestampParser(Column column) {
 		if (timestampParsers == null) {
 			PluginTask task = visitorValue.getPluginTask();
 			timestampParsers = Timestamps.newTimestampColumnParsers(task, task.getColumns());
+			fastTimestampParsers = newFastTimestampParsers(task, task.getColumns());
 		}
 		return timestampParsers[column.getIndex()];
 	}
+
+	/**
+	 * @param column
+	 *            column
+	 * @return parser of the column format without JRuby. null if the format is not supported
+	 */
+	protected final FastTimestampParser getFastTimestampParser(Column column) {
+		getTimestampParser(column);
+		return fastTimestampParsers[column.getIndex()];
+	}
+
+	private static FastTimestampParser[] newFastTimestampParsers(PluginTask task, SchemaConfig schema) {
+		FastTimestampParser[] parsers = new FastTimestampParser[schema.getColumnCount()];
+		for (int i = 0; i < parsers.length; i++) {
+			ColumnConfig column = schema.getColumn(i);
+			if (column.getType() instanceof TimestampType) {
+				TimestampColumnOption option = column.getOption().loadConfig(TimestampColumnOption.class);
+				String format = option.getFormat().or(task.getDefaultTimestampFormat());
+				DateTimeZone timeZone = option.getTimeZone().or(task.getDefaultTimeZone());
+				parsers[i] = FastTimestampParser.compile(format, timeZone);
+			}
+		}
+		return parsers;
+	}
+
+	private ExcelDateConverter[] dateConverters;
+
+	protected final ExcelDateConverter getDateConverter(Column column) {
+		if (dateConverters == null) {
+			dateConverters = new ExcelDateConverter[visitorValue.getPluginTask().getColumns().size()];
+		}
+		ExcelDateConverter converter = dateConverters[column.getIndex()];
+		if (converter == null) {
+			TimeZone tz = getTimestampParser(column).getDefaultTimeZone().toTimeZone();
+			boolean date1904 = visitorValue.getWorkbookCache().isDate1904();
+			converter = new ExcelDateConverter(tz, date1904);
+			dateConverters[column.getIndex()] = converter;
+		}
+		return converter;
+	}
 }
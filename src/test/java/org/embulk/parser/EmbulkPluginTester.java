@@ -6,13 +6,18 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import org.embulk.EmbulkEmbed;
 import org.embulk.EmbulkEmbed.Bootstrap;
+import org.embulk.config.ConfigDiff;
 import org.embulk.config.ConfigLoader;
 import org.embulk.config.ConfigSource;
 import org.embulk.parser.EmbulkTestOutputPlugin.OutputRecord;
 import org.embulk.plugin.InjectedPluginSource;
+import org.embulk.spi.Exec;
+import org.embulk.spi.ExecAction;
+import org.embulk.spi.ExecSession;
 import org.embulk.spi.InputPlugin;
 import org.embulk.spi.OutputPlugin;
 import org.embulk.spi.ParserPlugin;
@@ -167,6 +172,24 @@ public class EmbulkPluginTester implements Closeable {
 		getEmbulkEmbed().run(config);
 	}
 
+	public ConfigDiff guess(ConfigSource config) {
+		return getEmbulkEmbed().guess(config);
+	}
+
+	/**
+	 * runs the action in an Embulk session (e.g. to test the classes which use {@link Exec}).
+	 */
+	public <T> T execute(ExecAction<T> action) {
+		ExecSession session = ExecSession.builder(getEmbulkEmbed().getInjector()).build();
+		try {
+			return Exec.doWith(session, action);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			session.cleanup();
+		}
+	}
+
 	@Override
 	public void close() {
 		if (embulk != null) {
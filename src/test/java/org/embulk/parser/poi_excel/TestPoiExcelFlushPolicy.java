@@ -0,0 +1,123 @@
+package org.embulk.parser.poi_excel;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.embulk.parser.EmbulkPluginTester;
+import org.embulk.parser.poi_excel.PoiExcelParserPlugin.PluginTask;
+import org.embulk.spi.Column;
+import org.embulk.spi.Exec;
+import org.embulk.spi.ExecAction;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.Schema;
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+
+public class TestPoiExcelFlushPolicy {
+
+	@Test
+	public void testDefault() {
+		// flushed by PageBuilder when the page is full
+		List<Integer> flushes = run(null, null, 1000, 0);
+		assertThat(flushes, is(Collections.<Integer> emptyList()));
+	}
+
+	@Test
+	public void testFlushCount() {
+		List<Integer> flushes = run(3, null, 10, 0);
+		assertThat(flushes, is(Arrays.asList(3, 6, 9)));
+	}
+
+	@Test
+	public void testFlushCount_one() {
+		List<Integer> flushes = run(1, null, 3, 0);
+		assertThat(flushes, is(Arrays.asList(1, 2, 3)));
+	}
+
+	@Test
+	public void testFlushMaxLatencyMillis() {
+		// the records before the sleep are flushed together with the first record after it
+		List<Integer> flushes = run(null, 200L, 6, 3);
+		assertThat(flushes, is(Arrays.asList(4)));
+	}
+
+	@Test
+	public void testFlushCountAndMaxLatencyMillis() {
+		// the 3rd record is flushed by flush_count, the 5th by flush_max_latency_millis
+		List<Integer> flushes = run(3, 200L, 5, 4);
+		assertThat(flushes, is(Arrays.asList(3, 5)));
+	}
+
+	/**
+	 * @return number of the records added when the page is flushed
+	 */
+	private List<Integer> run(final Integer flushCount, final Long maxLatencyMillis, final int records,
+			final int sleepAfter) {
+		try (EmbulkPluginTester tester = new EmbulkPluginTester()) {
+			return tester.execute(new ExecAction<List<Integer>>() {
+
+				@Override
+				public List<Integer> run() throws Exception {
+					StubPageBuilder pageBuilder = new StubPageBuilder();
+					PoiExcelFlushPolicy policy = new PoiExcelFlushPolicy(newTask(flushCount, maxLatencyMillis),
+							pageBuilder);
+					for (int i = 0; i < records; i++) {
+						if (i == sleepAfter && sleepAfter > 0) {
+							Thread.sleep(300);
+						}
+						policy.addRecord();
+					}
+					assertThat(pageBuilder.records, is(records));
+					return pageBuilder.flushes;
+				}
+			});
+		}
+	}
+
+	private static PluginTask newTask(final Integer flushCount, final Long maxLatencyMillis) {
+		return (PluginTask) Proxy.newProxyInstance(PluginTask.class.getClassLoader(),
+				new Class<?>[] { PluginTask.class }, new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						switch (method.getName()) {
+						case "getFlushCount":
+							return Optional.fromNullable(flushCount);
+						case "getFlushMaxLatencyMillis":
+							return Optional.fromNullable(maxLatencyMillis);
+						default:
+							throw new UnsupportedOperationException(method.getName());
+						}
+					}
+				});
+	}
+
+	// counts the records instead of building the page
+	private static class StubPageBuilder extends PageBuilder {
+		private int records;
+		private final List<Integer> flushes = new ArrayList<>();
+
+		public StubPageBuilder() {
+			super(Exec.getBufferAllocator(), new Schema(Collections.<Column> emptyList()), null);
+		}
+
+		@Override
+		public void addRecord() {
+			records++;
+		}
+
+		@Override
+		public void flush() {
+			flushes.add(records);
+		}
+	}
+}
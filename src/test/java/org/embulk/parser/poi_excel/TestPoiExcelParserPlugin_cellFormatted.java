@@ -0,0 +1,62 @@
+package org.embulk.parser.poi_excel;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.net.URL;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.embulk.parser.EmbulkPluginTester;
+import org.embulk.parser.EmbulkTestOutputPlugin.OutputRecord;
+import org.embulk.parser.EmbulkTestParserConfig;
+import org.junit.experimental.theories.DataPoints;
+import org.junit.experimental.theories.Theories;
+import org.junit.experimental.theories.Theory;
+import org.junit.runner.RunWith;
+
+@RunWith(Theories.class)
+public class TestPoiExcelParserPlugin_cellFormatted {
+
+	@DataPoints
+	public static String[] FILES = { "test1.xls", "test2.xlsx" };
+
+	@Theory
+	public void testCellFormatted(String excelFile) throws ParseException {
+		try (EmbulkPluginTester tester = new EmbulkPluginTester()) {
+			tester.addParserPlugin(PoiExcelParserPlugin.TYPE, PoiExcelParserPlugin.class);
+
+			EmbulkTestParserConfig parser = tester.newParserConfig(PoiExcelParserPlugin.TYPE);
+			parser.set("sheets", Arrays.asList("test1"));
+			parser.set("skip_header_lines", 1);
+			parser.addColumn("a", "string").set("value", "cell_formatted");
+			parser.addColumn("b", "string").set("value", "cell_formatted");
+			parser.addColumn("c", "string").set("value", "cell_formatted");
+			parser.addColumn("d", "string").set("value", "cell_formatted");
+			parser.addColumn("e", "string").set("value", "cell_formatted");
+
+			URL inFile = getClass().getResource(excelFile);
+			List<OutputRecord> result = tester.runParser(inFile, parser);
+
+			assertThat(result.size(), is(7));
+			check(result, 0, "true", "123", "123.4", "abc", "10/4/15");
+			check(result, 1, "false", "456", "456.7", "def", "10/5/15");
+			check(result, 2, "0", "123", "123", "456", "42283");
+			check(result, 3, "true", "123", "123.4", "abc", "2015/10/07");
+			check(result, 4, "true", "123", "123.4", "abc", "10/4/15");
+			check(result, 5, "true", "true", "true", "true", null);
+			check(result, 6, "#DIV/0!", "#DIV/0!", "#DIV/0!", "#DIV/0!", "#DIV/0!");
+		}
+	}
+
+	private void check(List<OutputRecord> result, int index, String a, String b, String c, String d, String e) {
+		OutputRecord r = result.get(index);
+		// System.out.println(r);
+		assertThat(r.getAsString("a"), is(a));
+		assertThat(r.getAsString("b"), is(b));
+		assertThat(r.getAsString("c"), is(c));
+		assertThat(r.getAsString("d"), is(d));
+		assertThat(r.getAsString("e"), is(e));
+	}
+}
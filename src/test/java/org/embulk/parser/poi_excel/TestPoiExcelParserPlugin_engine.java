@@ -0,0 +1,565 @@
+package org.embulk.parser.poi_excel;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.embulk.parser.EmbulkPluginTester;
+import org.embulk.parser.EmbulkTestOutputPlugin.OutputRecord;
+import org.embulk.parser.EmbulkTestParserConfig;
+import org.embulk.parser.poi_excel.visitor.PoiExcelColumnVisitor;
+import org.embulk.parser.poi_excel.visitor.PoiExcelVisitorFactory;
+import org.embulk.parser.poi_excel.visitor.PoiExcelWorkbookCache;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.Schema;
+import org.embulk.spi.time.Timestamp;
+import org.junit.experimental.theories.DataPoints;
+import org.junit.experimental.theories.Theories;
+import org.junit.experimental.theories.Theory;
+import org.junit.runner.RunWith;
+
+@RunWith(Theories.class)
+public class TestPoiExcelParserPlugin_engine {
+
+	@DataPoints
+	public static String[] FILES = { "test1.xls", "test2.xlsx" };
+
+	@Theory
+	public void testStreaming(String excelFile) throws ParseException {
+		try (EmbulkPluginTester tester = new EmbulkPluginTester()) {
+			tester.addParserPlugin(PoiExcelParserPlugin.TYPE, PoiExcelParserPlugin.class);
+
+			EmbulkTestParserConfig parser = tester.newParserConfig(PoiExcelParserPlugin.TYPE);
+			parser.set("engine", "streaming");
+			parser.set("sheets", Arrays.asList("test1"));
+			parser.set("skip_header_lines", 1);
+			parser.set("default_timezone", "Asia/Tokyo");
+			parser.addColumn("boolean", "boolean");
+			parser.addColumn("long", "long");
+			parser.addColumn("double", "double");
+			parser.addColumn("string", "string");
+			parser.addColumn("timestamp", "timestamp").set("format", "%Y/%m/%d");
+			parser.addColumn("sheet", "string").set("value", "sheet_name");
+			parser.addColumn("row", "long").set("value", "row_number");
+
+			URL inFile = getClass().getResource(excelFile);
+			List<OutputRecord> result = tester.runParser(inFile, parser);
+
+			assertThat(result.size(), is(7));
+			check1(result, 0, true, 123L, 123.4d, "abc", "2015/10/4");
+			check1(result, 1, false, 456L, 456.7d, "def", "2015/10/5");
+			check1(result, 2, false, 123L, 123d, "456", "2015/10/6");
+			check1(result, 3, true, 123L, 123.4d, "abc", "2015/10/7");
+			check1(result, 4, true, 123L, 123.4d, "abc", "2015/10/4");
+			check1(result, 5, true, 1L, 1d, "true", null);
+			check1(result, 6, null, null, null, null, null);
+		}
+	}
+
+	@Theory
+	public void testStreaming_pipeline(String excelFile) throws ParseException {
+		try (EmbulkPluginTester tester = new EmbulkPluginTester()) {
+			tester.addParserPlugin(PoiExcelParserPlugin.TYPE, PoiExcelParserPlugin.class);
+
+			EmbulkTestParserConfig parser = tester.newParserConfig(PoiExcelParserPlugin.TYPE);
+			parser.set("engine", "streaming");
+			parser.set("pipeline", true);
+			parser.set("pipeline_queue_size", 1);
+			parser.set("sheets", Arrays.asList("test1"));
+			parser.set("skip_header_lines", 1);
+			parser.set("default_timezone", "Asia/Tokyo");
+			parser.addColumn("boolean", "boolean");
+			parser.addColumn("long", "long");
+			parser.addColumn("double", "double");
+			parser.addColumn("string", "string");
+			parser.addColumn("timestamp", "timestamp").set("format", "%Y/%m/%d");
+			parser.addColumn("sheet", "string").set("value", "sheet_name");
+			parser.addColumn("row", "long").set("value", "row_number");
+
+			URL inFile = getClass().getResource(excelFile);
+			List<OutputRecord> result = tester.runParser(inFile, parser);
+
+			assertThat(result.size(), is(7));
+			check1(result, 0, true, 123L, 123.4d, "abc", "2015/10/4");
+			check1(result, 1, false, 456L, 456.7d, "def", "2015/10/5");
+			check1(result, 2, false, 123L, 123d, "456", "2015/10/6");
+			check1(result, 3, true, 123L, 123.4d, "abc", "2015/10/7");
+			check1(result, 4, true, 123L, 123.4d, "abc", "2015/10/4");
+			check1(result, 5, true, 1L, 1d, "true", null);
+			check1(result, 6, null, null, null, null, null);
+		}
+	}
+
+	@Theory
+	public void testStreaming_projection(String excelFile) throws ParseException {
+		try (EmbulkPluginTester tester = new EmbulkPluginTester()) {
+			tester.addParserPlugin(PoiExcelParserPlugin.TYPE, PoiExcelParserPlugin.class);
+
+			EmbulkTestParserConfig parser = tester.newParserConfig(PoiExcelParserPlugin.TYPE);
+			parser.set("engine", "streaming");
+			parser.set("sheets", Arrays.asList("test1"));
+			parser.set("skip_header_lines", 1);
+			parser.addColumn("row", "long").set("value", "row_number");
+			parser.addColumn("long", "long").set("column_number", "B");
+			parser.addColumn("string", "string").set("column_number", "D");
+
+			URL inFile = getClass().getResource(excelFile);
+			List<OutputRecord> result = tester.runParser(inFile, parser);
+
+			assertThat(result.size(), is(7));
+			check3(result, 0, 2L, 123L, "abc");
+			check3(result, 1, 3L, 456L, "def");
+			check3(result, 2, 4L, 123L, "456");
+			check3(result, 3, 5L, 123L, "abc");
+			check3(result, 4, 6L, 123L, "abc");
+			check3(result, 5, 7L, 1L, "true");
+			check3(result, 6, 8L, null, null);
+		}
+	}
+
+	private void check3(List<OutputRecord> result, int index, Long row, Long l, String s) {
+		OutputRecord r = result.get(index);
+		// System.out.println(r);
+		assertThat(r.getAsLong("row"), is(row));
+		assertThat(r.getAsLong("long"), is(l));
+		assertThat(r.getAsString("string"), is(s));
+	}
+
+	@Theory
+	public void testStreaming_style(String excelFile) throws ParseException {
+		try (EmbulkPluginTester tester = new EmbulkPluginTester()) {
+			tester.addParserPlugin(PoiExcelParserPlugin.TYPE, PoiExcelParserPlugin.class);
+
+			EmbulkTestParserConfig parser = tester.newParserConfig(PoiExcelParserPlugin.TYPE);
+			parser.set("engine", "streaming");
+			parser.set("sheet", "style");
+			parser.addColumn("color-text", "string");
+			parser.addColumn("color", "string").set("value", "cell_style.fill_foreground_color");
+			parser.addColumn("border-style", "string").set("column_number", "B").set("value", "cell_style");
+			parser.addColumn("font-color", "long").set("column_number", "C").set("value", "cell_font.color");
+			parser.addColumn("font-bold", "boolean").set("value", "cell_font.bold");
+
+			URL inFile = getClass().getResource(excelFile);
+			List<OutputRecord> result = tester.runParser(inFile, parser);
+
+			assertThat(result.size(), is(5));
+			check5(result, 0, "red", "ff0000", CellStyle.BORDER_THIN, 0, null, false);
+			check5(result, 1, "green", "008000", 0, 0, 0xff0000L, true);
+			check5(result, 2, "blue", "0000ff", 0, 0, null, null);
+			check5(result, 3, "white", "ffffff", 0, 0, null, null);
+			check5(result, 4, "black", "000000", 0, CellStyle.BORDER_MEDIUM, null, null);
+		}
+	}
+
+	private void check5(List<OutputRecord> result, int index, String colorText, String color, long top, long bottom,
+			Long fontColor, Boolean fontBold) {
+		OutputRecord r = result.get(index);
+		// System.out.println(r);
+		assertThat(r.getAsString("color-text"), is(colorText));
+		assertThat(r.getAsString("color"), is(color));
+		String border = r.getAsString("border-style");
+		if (!border.contains(String.format("\"border_top\":%d", top))) {
+			fail(border);
+		}
+		if (!border.contains(String.format("\"border_bottom\":%d", bottom))) {
+			fail(border);
+		}
+		assertThat(r.getAsLong("font-color"), is(fontColor));
+		assertThat(r.getAsBoolean("font-bold"), is(fontBold));
+	}
+
+	@Theory
+	public void testSpool(String excelFile) throws ParseException {
+		try (EmbulkPluginTester tester = new EmbulkPluginTester()) {
+			tester.addParserPlugin(PoiExcelParserPlugin.TYPE, PoiExcelParserPlugin.class);
+
+			EmbulkTestParserConfig parser = tester.newParserConfig(PoiExcelParserPlugin.TYPE);
+			parser.set("spool", true);
+			parser.set("sheets", Arrays.asList("test1"));
+			parser.set("skip_header_lines", 1);
+			parser.set("default_timezone", "Asia/Tokyo");
+			parser.addColumn("boolean", "boolean");
+			parser.addColumn("long", "long");
+			parser.addColumn("double", "double");
+			parser.addColumn("string", "string");
+			parser.addColumn("timestamp", "timestamp").set("format", "%Y/%m/%d");
+			parser.addColumn("sheet", "string").set("value", "sheet_name");
+			parser.addColumn("row", "long").set("value", "row_number");
+
+			URL inFile = getClass().getResource(excelFile);
+			List<OutputRecord> result = tester.runParser(inFile, parser);
+
+			assertThat(result.size(), is(7));
+			check1(result, 0, true, 123L, 123.4d, "abc", "2015/10/4");
+			check1(result, 1, false, 456L, 456.7d, "def", "2015/10/5");
+			check1(result, 2, false, 123L, 123d, "456", "2015/10/6");
+			check1(result, 3, true, 123L, 123.4d, "abc", "2015/10/7");
+			check1(result, 4, true, 123L, 123.4d, "abc", "2015/10/4");
+			check1(result, 5, true, 1L, 1d, "true", null);
+			check1(result, 6, null, null, null, null, null);
+		}
+	}
+
+	@Theory
+	public void testReadAhead(String excelFile) throws ParseException {
+		try (EmbulkPluginTester tester = new EmbulkPluginTester()) {
+			tester.addParserPlugin(PoiExcelParserPlugin.TYPE, PoiExcelParserPlugin.class);
+
+			EmbulkTestParserConfig parser = tester.newParserConfig(PoiExcelParserPlugin.TYPE);
+			parser.set("read_ahead", 2);
+			parser.set("sheets", Arrays.asList("test1"));
+			parser.set("skip_header_lines", 1);
+			parser.set("default_timezone", "Asia/Tokyo");
+			parser.addColumn("boolean", "boolean");
+			parser.addColumn("long", "long");
+			parser.addColumn("double", "double");
+			parser.addColumn("string", "string");
+			parser.addColumn("timestamp", "timestamp").set("format", "%Y/%m/%d");
+			parser.addColumn("sheet", "string").set("value", "sheet_name");
+			parser.addColumn("row", "long").set("value", "row_number");
+
+			URL inFile = getClass().getResource(excelFile);
+			List<OutputRecord> result = tester.runParser(inFile, parser);
+
+			assertThat(result.size(), is(7));
+			check1(result, 0, true, 123L, 123.4d, "abc", "2015/10/4");
+			check1(result, 1, false, 456L, 456.7d, "def", "2015/10/5");
+			check1(result, 2, false, 123L, 123d, "456", "2015/10/6");
+			check1(result, 3, true, 123L, 123.4d, "abc", "2015/10/7");
+			check1(result, 4, true, 123L, 123.4d, "abc", "2015/10/4");
+			check1(result, 5, true, 1L, 1d, "true", null);
+			check1(result, 6, null, null, null, null, null);
+		}
+	}
+
+	@Theory
+	public void testReadAhead_bound(String excelFile) throws Exception {
+		Path dir = Files.createTempDirectory("poi_excel");
+		try (EmbulkPluginTester tester = new EmbulkPluginTester()) {
+			tester.addParserPlugin(OpenCountPlugin.TYPE, OpenCountPlugin.class);
+
+			String suffix = excelFile.substring(excelFile.lastIndexOf('.'));
+			for (int i = 1; i <= 4; i++) {
+				try (InputStream is = getClass().getResourceAsStream(excelFile)) {
+					Files.copy(is, dir.resolve("book" + i + suffix));
+				}
+			}
+
+			EmbulkTestParserConfig parser = tester.newParserConfig(OpenCountPlugin.TYPE);
+			parser.set("read_ahead", 1);
+			parser.set("sheets", Arrays.asList("test1"));
+			parser.set("skip_header_lines", 1);
+			parser.addColumn("long", "long").set("column_number", "B");
+
+			OpenCountPlugin.reset();
+			List<OutputRecord> result = tester.runParser(dir.resolve("book").toFile(), parser);
+
+			assertThat(result.size(), is(7 * 4));
+			assertThat(OpenCountPlugin.openCount.get(), is(4));
+			assertThat(OpenCountPlugin.heldCount.get(), is(0));
+			// the current file and one read ahead file
+			assertThat(OpenCountPlugin.maxHeldCount.get(), is(2));
+		} finally {
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+				for (Path file : files) {
+					Files.delete(file);
+				}
+			}
+			Files.delete(dir);
+		}
+	}
+
+	// counts the files which are opened and not closed yet
+	public static class OpenCountPlugin extends PoiExcelParserPlugin {
+		public static final String TYPE = "poi_excel_open_count";
+
+		static final AtomicInteger openCount = new AtomicInteger();
+		static final AtomicInteger heldCount = new AtomicInteger();
+		static final AtomicInteger maxHeldCount = new AtomicInteger();
+
+		static void reset() {
+			openCount.set(0);
+			heldCount.set(0);
+			maxHeldCount.set(0);
+		}
+
+		@Override
+		protected WorkbookFile openFile(PluginTask task, Engine engine, InputStream is) {
+			WorkbookFile file = super.openFile(task, engine, is);
+			openCount.incrementAndGet();
+			int held = heldCount.incrementAndGet();
+			for (;;) {
+				int max = maxHeldCount.get();
+				if (held <= max || maxHeldCount.compareAndSet(max, held)) {
+					break;
+				}
+			}
+			return new WorkbookFile(file.getFile(), file.getWorkbook()) {
+
+				@Override
+				public void close() {
+					heldCount.decrementAndGet();
+					super.close();
+				}
+			};
+		}
+
+		@Override
+		protected void runFile(PluginTask task, Schema schema, WorkbookFile file, List<String> sheetNames,
+				PageOutput output) {
+			try {
+				// the following files are opened while the current file is converted
+				Thread.sleep(200);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			super.runFile(task, schema, file, sheetNames, output);
+		}
+	}
+
+	@Theory
+	public void testVisitRow(String excelFile) throws ParseException {
+		try (EmbulkPluginTester tester = new EmbulkPluginTester()) {
+			tester.addParserPlugin(PoiExcelParserPlugin.TYPE, PoiExcelParserPlugin.class);
+			tester.addParserPlugin(VisitColumnsPlugin.TYPE, VisitColumnsPlugin.class);
+
+			for (String engine : Arrays.asList("usermodel", "streaming")) {
+				List<OutputRecord> expected = null;
+				for (String type : Arrays.asList(VisitColumnsPlugin.TYPE, PoiExcelParserPlugin.TYPE)) {
+					EmbulkTestParserConfig parser = tester.newParserConfig(type);
+					parser.set("engine", engine);
+					parser.set("sheets", Arrays.asList("test1"));
+					parser.set("skip_header_lines", 1);
+					parser.set("default_timezone", "Asia/Tokyo");
+					parser.addColumn("boolean", "boolean");
+					parser.addColumn("long", "long");
+					parser.addColumn("double", "double");
+					parser.addColumn("string", "string");
+					parser.addColumn("timestamp", "timestamp").set("format", "%Y/%m/%d");
+					parser.addColumn("formula", "string").set("column_number", "B").set("value", "cell_formula");
+					parser.addColumn("style", "string").set("column_number", "A").set("value", "cell_style");
+					parser.addColumn("font", "string").set("value", "cell_font");
+					parser.addColumn("formatted", "string").set("column_number", "C").set("value", "cell_formatted");
+					parser.addColumn("comment", "string").set("value", "cell_comment");
+					parser.addColumn("type", "string").set("value", "cell_type");
+					parser.addColumn("cached_type", "string").set("value", "cell_cached_type");
+					parser.addColumn("empty", "string").set("column_number", "Z");
+					parser.addColumn("sheet", "string").set("value", "sheet_name");
+					parser.addColumn("row", "long").set("value", "row_number");
+					parser.addColumn("column", "long").set("column_number", "D").set("value", "column_number");
+					parser.addColumn("constant", "string").set("value", "constant.zzz");
+
+					URL inFile = getClass().getResource(excelFile);
+					List<OutputRecord> result = new ArrayList<>(tester.runParser(inFile, parser));
+					if (expected == null) {
+						expected = result;
+						continue;
+					}
+
+					assertThat(result.size(), is(expected.size()));
+					for (int i = 0; i < result.size(); i++) {
+						assertThat(result.get(i).toString(), is(expected.get(i).toString()));
+					}
+				}
+			}
+		}
+	}
+
+	// sets the columns by Schema#visitColumns instead of the compiled plan of visitRow
+	public static class VisitColumnsPlugin extends PoiExcelParserPlugin {
+		public static final String TYPE = "poi_excel_visit_columns";
+
+		@Override
+		protected PoiExcelVisitorFactory newPoiExcelVisitorFactory(PluginTask task, Schema schema, Sheet sheet,
+				PoiExcelWorkbookCache workbookCache, PageBuilder pageBuilder) {
+			return newFactory(schema, super.newPoiExcelVisitorFactory(task, schema, sheet, workbookCache,
+					pageBuilder));
+		}
+
+		@Override
+		protected PoiExcelVisitorFactory newPoiExcelVisitorFactory(PluginTask task, Schema schema, String sheetName,
+				int sheetIndex, PoiExcelWorkbookCache workbookCache, PageBuilder pageBuilder) {
+			return newFactory(schema, super.newPoiExcelVisitorFactory(task, schema, sheetName, sheetIndex,
+					workbookCache, pageBuilder));
+		}
+
+		private PoiExcelVisitorFactory newFactory(final Schema schema, PoiExcelVisitorFactory factory) {
+			return new PoiExcelVisitorFactory(factory.getVisitorValue()) {
+
+				@Override
+				protected PoiExcelColumnVisitor newPoiExcelColumnVisitor() {
+					return new PoiExcelColumnVisitor(visitorValue) {
+
+						@Override
+						public void visitRow(Row row) {
+							setRow(row);
+							schema.visitColumns(this);
+						}
+					};
+				}
+			};
+		}
+	}
+
+	private SimpleDateFormat sdf;
+	{
+		sdf = new SimpleDateFormat("yyyy/MM/dd");
+		sdf.setTimeZone(TimeZone.getTimeZone("Asia/Tokyo"));
+	}
+
+	private void check1(List<OutputRecord> result, int index, Boolean b, Long l, Double d, String s, String t)
+			throws ParseException {
+		Timestamp timestamp = (t != null) ? Timestamp.ofEpochMilli(sdf.parse(t).getTime()) : null;
+
+		OutputRecord r = result.get(index);
+		// System.out.println(r);
+		assertThat(r.getAsBoolean("boolean"), is(b));
+		assertThat(r.getAsLong("long"), is(l));
+		assertThat(r.getAsDouble("double"), is(d));
+		assertThat(r.getAsString("string"), is(s));
+		assertThat(r.getAsTimestamp("timestamp"), is(timestamp));
+		assertThat(r.getAsString("sheet"), is("test1"));
+		assertThat(r.getAsLong("row"), is((long) (index + 2)));
+	}
+
+	@Theory
+	public void testStreaming_sheets(String excelFile) throws ParseException {
+		try (EmbulkPluginTester tester = new EmbulkPluginTester()) {
+			tester.addParserPlugin(PoiExcelParserPlugin.TYPE, PoiExcelParserPlugin.class);
+
+			EmbulkTestParserConfig parser = tester.newParserConfig(PoiExcelParserPlugin.TYPE);
+			parser.set("engine", "streaming");
+			parser.set("sheets", Arrays.asList("formula_replace", "merged_cell"));
+			parser.set("search_merged_cell", false);
+			parser.addColumn("sheet", "string").set("value", "sheet_name");
+			parser.addColumn("a", "string");
+
+			URL inFile = getClass().getResource(excelFile);
+			List<OutputRecord> result = tester.runParser(inFile, parser);
+
+			assertThat(result.size(), is(6));
+			check2(result, 0, "formula_replace", "boolean");
+			check2(result, 1, "formula_replace", "test2-b1");
+			check2(result, 2, "merged_cell", "test3-a1");
+			check2(result, 3, "merged_cell", "data");
+			check2(result, 4, "merged_cell", null);
+			check2(result, 5, "merged_cell", null);
+		}
+	}
+
+	@Theory
+	public void testStreaming_sheetOrder(String excelFile) throws ParseException {
+		try (EmbulkPluginTester tester = new EmbulkPluginTester()) {
+			tester.addParserPlugin(PoiExcelParserPlugin.TYPE, PoiExcelParserPlugin.class);
+
+			EmbulkTestParserConfig parser = tester.newParserConfig(PoiExcelParserPlugin.TYPE);
+			parser.set("engine", "streaming");
+			parser.set("sheets", Arrays.asList("merged_cell", "formula_replace"));
+			parser.set("search_merged_cell", false);
+			parser.addColumn("sheet", "string").set("value", "sheet_name");
+			parser.addColumn("a", "string");
+
+			URL inFile = getClass().getResource(excelFile);
+			List<OutputRecord> result = tester.runParser(inFile, parser);
+
+			assertThat(result.size(), is(6));
+			check2(result, 0, "merged_cell", "test3-a1");
+			check2(result, 1, "merged_cell", "data");
+			check2(result, 2, "merged_cell", null);
+			check2(result, 3, "merged_cell", null);
+			check2(result, 4, "formula_replace", "boolean");
+			check2(result, 5, "formula_replace", "test2-b1");
+		}
+	}
+
+	@Theory
+	public void testSheetThreads(String excelFile) throws ParseException {
+		try (EmbulkPluginTester tester = new EmbulkPluginTester()) {
+			tester.addParserPlugin(PoiExcelParserPlugin.TYPE, PoiExcelParserPlugin.class);
+
+			EmbulkTestParserConfig parser = tester.newParserConfig(PoiExcelParserPlugin.TYPE);
+			parser.set("sheet_threads", 2);
+			parser.set("sheets", Arrays.asList("merged_cell", "formula_replace"));
+			parser.set("search_merged_cell", false);
+			parser.addColumn("sheet", "string").set("value", "sheet_name");
+			parser.addColumn("a", "string");
+
+			URL inFile = getClass().getResource(excelFile);
+			List<OutputRecord> result = tester.runParser(inFile, parser);
+
+			assertThat(result.size(), is(6));
+			check2(result, 0, "merged_cell", "test3-a1");
+			check2(result, 1, "merged_cell", "data");
+			check2(result, 2, "merged_cell", null);
+			check2(result, 3, "merged_cell", null);
+			check2(result, 4, "formula_replace", "boolean");
+			check2(result, 5, "formula_replace", "test2-b1");
+		}
+	}
+
+	@Theory
+	public void testSheetThreads_attribute(String excelFile) throws ParseException {
+		try (EmbulkPluginTester tester = new EmbulkPluginTester()) {
+			tester.addParserPlugin(PoiExcelParserPlugin.TYPE, PoiExcelParserPlugin.class);
+
+			EmbulkTestParserConfig parser = tester.newParserConfig(PoiExcelParserPlugin.TYPE);
+			parser.set("sheet_threads", 2);
+			parser.set("sheet_order", "sheet");
+			parser.set("sheets", Arrays.asList("comment", "style"));
+			parser.addColumn("sheet", "string").set("value", "sheet_name");
+			parser.addColumn("comment", "string").set("column_number", "A").set("value", "cell_comment.string");
+			parser.addColumn("color", "string").set("column_number", "A")
+					.set("value", "cell_style.fill_foreground_color");
+
+			URL inFile = getClass().getResource(excelFile);
+			List<OutputRecord> result = tester.runParser(inFile, parser);
+
+			assertThat(result.size(), is(7));
+			check3(result, 0, "comment", "hishidama:\nmy comment");
+			check3(result, 1, "comment", null);
+			check4(result, 2, "style", "ff0000");
+			check4(result, 3, "style", "008000");
+			check4(result, 4, "style", "0000ff");
+			check4(result, 5, "style", "ffffff");
+			check4(result, 6, "style", "000000");
+		}
+	}
+
+	private void check3(List<OutputRecord> result, int index, String sheet, String comment) {
+		OutputRecord r = result.get(index);
+		assertThat(r.getAsString("sheet"), is(sheet));
+		assertThat(r.getAsString("comment"), is(comment));
+	}
+
+	private void check4(List<OutputRecord> result, int index, String sheet, String color) {
+		OutputRecord r = result.get(index);
+		assertThat(r.getAsString("sheet"), is(sheet));
+		assertThat(r.getAsString("comment"), is(nullValue()));
+		assertThat(r.getAsString("color"), is(color));
+	}
+
+	private void check2(List<OutputRecord> result, int index, String sheet, String a) {
+		OutputRecord r = result.get(index);
+		// System.out.println(r);
+		assertThat(r.getAsString("sheet"), is(sheet));
+		assertThat(r.getAsString("a"), is(a));
+	}
+}
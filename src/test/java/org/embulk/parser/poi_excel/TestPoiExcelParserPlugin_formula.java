@@ -1,17 +1,24 @@
 package org.embulk.parser.poi_excel;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
 import static org.junit.Assert.assertThat;
 
 import java.net.URL;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import org.apache.poi.ss.usermodel.Sheet;
 import org.embulk.config.ConfigSource;
 import org.embulk.parser.EmbulkPluginTester;
 import org.embulk.parser.EmbulkTestOutputPlugin.OutputRecord;
 import org.embulk.parser.EmbulkTestParserConfig;
+import org.embulk.parser.poi_excel.visitor.PoiExcelVisitorFactory;
+import org.embulk.parser.poi_excel.visitor.PoiExcelWorkbookCache;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.Schema;
 import org.junit.experimental.theories.DataPoints;
 import org.junit.experimental.theories.Theories;
 import org.junit.experimental.theories.Theory;
@@ -61,6 +68,90 @@ public class TestPoiExcelParserPlugin_formula {
 		}
 	}
 
+	@Theory
+	public void testFormulaHandlingAuto(String excelFile) throws ParseException {
+		try (EmbulkPluginTester tester = new EmbulkPluginTester()) {
+			tester.addParserPlugin(PoiExcelParserPlugin.TYPE, PoiExcelParserPlugin.class);
+
+			EmbulkTestParserConfig parser = tester.newParserConfig(PoiExcelParserPlugin.TYPE);
+			parser.set("sheet", "formula_replace");
+
+			ConfigSource replace0 = tester.newConfigSource();
+			replace0.set("regex", "B1");
+			replace0.set("to", "B${row}");
+
+			parser.addColumn("text", "string").set("formula_handling", "auto");
+			parser.addColumn("text2", "string").set("column_number", "A").set("formula_handling", "auto")
+					.set("formula_replace", Arrays.asList(replace0));
+
+			URL inFile = getClass().getResource(excelFile);
+			List<OutputRecord> result = tester.runParser(inFile, parser);
+
+			assertThat(result.size(), is(2));
+			assertThat(result.get(0).getAsString("text"), is("boolean"));
+			assertThat(result.get(0).getAsString("text2"), is("boolean"));
+			assertThat(result.get(1).getAsString("text"), is("test2-b1"));
+			assertThat(result.get(1).getAsString("text2"), is("test2-b2"));
+		}
+	}
+
+	@Theory
+	public void testFormulaHandlingAuto_path(String excelFile) throws ParseException {
+		try (EmbulkPluginTester tester = new EmbulkPluginTester()) {
+			tester.addParserPlugin(AutoCountPlugin.TYPE, AutoCountPlugin.class);
+
+			EmbulkTestParserConfig parser = tester.newParserConfig(AutoCountPlugin.TYPE);
+			parser.set("sheet", "auto");
+			parser.set("skip_header_lines", 1);
+
+			ConfigSource replace0 = tester.newConfigSource();
+			replace0.set("regex", "ROW\\(\\)");
+			replace0.set("to", "${row}");
+
+			// the cached values of the fixture are 999 (the cell of "no cached" in xlsx has no cached value)
+			parser.addColumn("case", "string");
+			parser.addColumn("value", "double").set("formula_handling", "auto");
+			parser.addColumn("replaced", "double").set("column_number", "B").set("formula_handling", "auto")
+					.set("formula_replace", Arrays.asList(replace0));
+
+			URL inFile = getClass().getResource(getFormulaFile(excelFile));
+			AutoCountPlugin.workbookCache = null;
+			List<OutputRecord> result = tester.runParser(inFile, parser);
+
+			boolean xlsx = excelFile.endsWith(".xlsx");
+			assertThat(result.size(), is(3));
+			assertThat(result.get(0).getAsString("case"), is("cached"));
+			assertThat(result.get(0).getAsDouble("value"), is(999d));
+			assertThat(result.get(0).getAsDouble("replaced"), is(20d));
+			assertThat(result.get(1).getAsString("case"), is("volatile"));
+			assertThat(result.get(1).getAsDouble("value"), is(30d));
+			assertThat(result.get(1).getAsDouble("replaced"), is(30d));
+			assertThat(result.get(2).getAsString("case"), is("no cached"));
+			assertThat(result.get(2).getAsDouble("value"), is(xlsx ? 40d : 999d));
+			assertThat(result.get(2).getAsDouble("replaced"), is(40d));
+
+			PoiExcelWorkbookCache cache = AutoCountPlugin.workbookCache;
+			assertThat(cache.getAutoCachedCount(), is(xlsx ? 1L : 2L));
+			assertThat(cache.getAutoNoCachedCount(), is(xlsx ? 1L : 0L));
+			assertThat(cache.getAutoVolatileCount(), is(1L));
+			assertThat(cache.getAutoReplaceCount(), is(3L));
+		}
+	}
+
+	// keeps the workbook cache to check the path of formula_handling=auto
+	public static class AutoCountPlugin extends PoiExcelParserPlugin {
+		public static final String TYPE = "poi_excel_auto_count";
+
+		static volatile PoiExcelWorkbookCache workbookCache;
+
+		@Override
+		protected PoiExcelVisitorFactory newPoiExcelVisitorFactory(PluginTask task, Schema schema, Sheet sheet,
+				PoiExcelWorkbookCache workbookCache, PageBuilder pageBuilder) {
+			AutoCountPlugin.workbookCache = workbookCache;
+			return super.newPoiExcelVisitorFactory(task, schema, sheet, workbookCache, pageBuilder);
+		}
+	}
+
 	@Theory
 	public void testForumlaReplace(String excelFile) throws ParseException {
 		try (EmbulkPluginTester tester = new EmbulkPluginTester()) {
@@ -87,4 +178,171 @@ public class TestPoiExcelParserPlugin_formula {
 			assertThat(result.get(1).getAsString("text"), is("test2-b2"));
 		}
 	}
+
+	@Theory
+	public void testFormulaReplaceNotModified(String excelFile) throws ParseException {
+		try (EmbulkPluginTester tester = new EmbulkPluginTester()) {
+			tester.addParserPlugin(PoiExcelParserPlugin.TYPE, PoiExcelParserPlugin.class);
+
+			EmbulkTestParserConfig parser = tester.newParserConfig(PoiExcelParserPlugin.TYPE);
+			parser.set("sheet", "formula_replace");
+
+			ConfigSource replace0 = tester.newConfigSource();
+			replace0.set("regex", "B1");
+			replace0.set("to", "B${row}");
+
+			parser.addColumn("text", "string").set("formula_replace", Arrays.asList(replace0));
+			parser.addColumn("formula", "string").set("column_number", "A").set("value", "cell_formula");
+
+			URL inFile = getClass().getResource(excelFile);
+			List<OutputRecord> result = tester.runParser(inFile, parser);
+
+			assertThat(result.size(), is(2));
+			assertThat(result.get(0).getAsString("text"), is("boolean"));
+			assertThat(result.get(0).getAsString("formula"), is("test1!A1"));
+			assertThat(result.get(1).getAsString("text"), is("test2-b2"));
+			assertThat(result.get(1).getAsString("formula"), is("B1"));
+		}
+	}
+
+	@Theory
+	public void testFormulaTemplate(String excelFile) throws ParseException {
+		try (EmbulkPluginTester tester = new EmbulkPluginTester()) {
+			tester.addParserPlugin(PoiExcelParserPlugin.TYPE, PoiExcelParserPlugin.class);
+
+			EmbulkTestParserConfig parser = tester.newParserConfig(PoiExcelParserPlugin.TYPE);
+			parser.set("sheet", "formula_replace");
+
+			parser.addColumn("text", "string").set("formula_template", true);
+			parser.addColumn("text2", "string").set("column_number", "A").set("formula_template", false);
+
+			URL inFile = getClass().getResource(excelFile);
+			List<OutputRecord> result = tester.runParser(inFile, parser);
+
+			assertThat(result.size(), is(2));
+			assertThat(result.get(0).getAsString("text"), is("boolean"));
+			assertThat(result.get(0).getAsString("text2"), is("boolean"));
+			assertThat(result.get(1).getAsString("text"), is("test2-b1"));
+			assertThat(result.get(1).getAsString("text2"), is("test2-b1"));
+		}
+	}
+
+	@Theory
+	public void testFormulaTemplate_copiedDown(String excelFile) throws ParseException {
+		try (EmbulkPluginTester tester = new EmbulkPluginTester()) {
+			tester.addParserPlugin(PoiExcelParserPlugin.TYPE, PoiExcelParserPlugin.class);
+
+			EmbulkTestParserConfig parser = tester.newParserConfig(PoiExcelParserPlugin.TYPE);
+			parser.set("sheet", "template");
+			parser.set("skip_header_lines", 1);
+			parser.set("on_cell_error", "error_code");
+
+			String[][] columns = { { "arithmetic", "D", "double" }, { "absolute", "E", "double" },
+					{ "range", "F", "double" }, { "error", "G", "string" }, { "choose", "H", "double" },
+					{ "indirect", "I", "double" }, { "lookup", "J", "double" }, { "text", "K", "string" } };
+			for (String[] column : columns) {
+				parser.addColumn(column[0], column[2]).set("column_number", column[1]).set("formula_template", true);
+				parser.addColumn(column[0] + "-poi", column[2]).set("column_number", column[1])
+						.set("formula_template", false);
+			}
+
+			URL inFile = getClass().getResource(getFormulaFile(excelFile));
+			List<OutputRecord> result = tester.runParser(inFile, parser);
+
+			assertThat(result.size(), is(30));
+			for (int i = 0; i < result.size(); i++) {
+				OutputRecord r = result.get(i);
+				// System.out.println(r);
+				for (String[] column : columns) {
+					if (column[2].equals("double")) {
+						assertThat(column[0], r.getAsDouble(column[0]), is(r.getAsDouble(column[0] + "-poi")));
+					} else {
+						assertThat(column[0], r.getAsString(column[0]), is(r.getAsString(column[0] + "-poi")));
+					}
+				}
+
+				long n = i + 1;
+				assertThat(r.getAsDouble("arithmetic"), is(n * n * 1.5 + 1));
+				assertThat(r.getAsDouble("absolute"), is(n * 10d));
+				assertThat(r.getAsDouble("range"), is(n * (n + 1) / 2d));
+				assertThat(r.getAsString("error") == null, is(false));
+				assertThat(r.getAsDouble("choose"), is((n % 2 == 0) ? n : n * 1.5));
+				assertThat(r.getAsDouble("indirect"), is(n * 1.5));
+				assertThat(r.getAsDouble("lookup"), is((31 - n) * 1.5));
+				assertThat(r.getAsString("text"), is("x" + n + "-" + n));
+			}
+			assertThat(result.get(0).getAsString("error"), is(not(result.get(2).getAsString("error"))));
+		}
+	}
+
+	private String getFormulaFile(String excelFile) {
+		// the copied-down formulas (the shared formula group of xlsx in column D)
+		return excelFile.endsWith(".xlsx") ? "test_formula.xlsx" : "test_formula.xls";
+	}
+
+	@Theory
+	public void testFormulaBatch(String excelFile) throws ParseException {
+		try (EmbulkPluginTester tester = new EmbulkPluginTester()) {
+			tester.addParserPlugin(PoiExcelParserPlugin.TYPE, PoiExcelParserPlugin.class);
+
+			EmbulkTestParserConfig parser = tester.newParserConfig(PoiExcelParserPlugin.TYPE);
+			parser.set("sheet", "formula_replace");
+			parser.set("formula_batch", true);
+			parser.set("formula_batch_threads", 2);
+
+			parser.addColumn("text", "string");
+			parser.addColumn("text2", "string").set("column_number", "A").set("formula_template", false);
+
+			URL inFile = getClass().getResource(excelFile);
+			List<OutputRecord> result = tester.runParser(inFile, parser);
+
+			assertThat(result.size(), is(2));
+			assertThat(result.get(0).getAsString("text"), is("boolean"));
+			assertThat(result.get(0).getAsString("text2"), is("boolean"));
+			assertThat(result.get(1).getAsString("text"), is("test2-b1"));
+			assertThat(result.get(1).getAsString("text2"), is("test2-b1"));
+		}
+	}
+
+	@Theory
+	public void testFormulaBatch_components(String excelFile) throws ParseException {
+		try (EmbulkPluginTester tester = new EmbulkPluginTester()) {
+			tester.addParserPlugin(PoiExcelParserPlugin.TYPE, PoiExcelParserPlugin.class);
+
+			// two chained components, the components of each row, references to another sheet and errors
+			EmbulkTestParserConfig parser = tester.newParserConfig(PoiExcelParserPlugin.TYPE);
+			parser.set("sheet", "batch");
+			parser.set("skip_header_lines", 1);
+			parser.set("on_cell_error", "error_code");
+			String[] columns = { "n", "value", "total", "other", "error", "diff" };
+			for (String column : columns) {
+				parser.addColumn(column, column.equals("error") ? "string" : "double");
+			}
+
+			URL inFile = getClass().getResource(getFormulaFile(excelFile));
+			parser.set("formula_batch", false);
+			List<OutputRecord> expected = new ArrayList<>(tester.runParser(inFile, parser));
+			parser.set("formula_batch", true);
+			parser.set("formula_batch_threads", 4);
+			List<OutputRecord> result = tester.runParser(inFile, parser);
+
+			assertThat(result.size(), is(400));
+			assertThat(expected.size(), is(400));
+			for (int i = 0; i < result.size(); i++) {
+				OutputRecord r = result.get(i);
+				// System.out.println(r);
+				for (String column : columns) {
+					if (column.equals("error")) {
+						assertThat(column, r.getAsString(column), is(expected.get(i).getAsString(column)));
+					} else {
+						assertThat(column, r.getAsDouble(column), is(expected.get(i).getAsDouble(column)));
+					}
+				}
+			}
+			assertThat(result.get(0).getAsDouble("other"), is(7d));
+			assertThat(result.get(199).getAsDouble("total"), is(40200d));
+			assertThat(result.get(399).getAsDouble("total"), is(180300d));
+			assertThat(result.get(399).getAsDouble("diff"), is(180300d - 1200));
+		}
+	}
 }
@@ -0,0 +1,97 @@
+package org.embulk.parser.poi_excel;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.embulk.config.ConfigDiff;
+import org.embulk.config.ConfigSource;
+import org.embulk.parser.EmbulkPluginTester;
+import org.embulk.spi.GuessPlugin;
+import org.junit.experimental.theories.DataPoints;
+import org.junit.experimental.theories.Theories;
+import org.junit.experimental.theories.Theory;
+import org.junit.runner.RunWith;
+
+@RunWith(Theories.class)
+public class TestPoiExcelParserPlugin_guess {
+
+	@DataPoints
+	public static String[] FILES = { "test1.xls", "test2.xlsx" };
+
+	@Theory
+	public void testGuess(String excelFile) throws URISyntaxException {
+		try (EmbulkPluginTester tester = new EmbulkPluginTester()) {
+			tester.addParserPlugin(PoiExcelParserPlugin.TYPE, PoiExcelParserPlugin.class);
+			tester.addPlugin(GuessPlugin.class, PoiExcelParserPlugin.TYPE, PoiExcelGuessPlugin.class);
+
+			ConfigDiff parser = guess(tester, excelFile, "test1");
+			assertThat(parser.get(Integer.class, "skip_header_lines"), is(1));
+
+			List<Map<String, Object>> columns = getColumns(parser);
+			assertThat(columns.size(), is(6));
+			check(columns, 0, "boolean", "string", "A");
+			check(columns, 1, "long", "string", "B");
+			check(columns, 2, "double", "string", "C");
+			check(columns, 3, "string", "string", "D");
+			check(columns, 4, "timestamp", "string", "E");
+			check(columns, 5, "G", "string", "G");
+		}
+	}
+
+	@Theory
+	public void testGuessType(String excelFile) throws URISyntaxException {
+		try (EmbulkPluginTester tester = new EmbulkPluginTester()) {
+			tester.addParserPlugin(PoiExcelParserPlugin.TYPE, PoiExcelParserPlugin.class);
+			tester.addPlugin(GuessPlugin.class, PoiExcelParserPlugin.TYPE, PoiExcelGuessPlugin.class);
+
+			ConfigDiff parser = guess(tester, excelFile, "merged_cell");
+			assertThat(parser.get(Integer.class, "skip_header_lines"), is(1));
+
+			List<Map<String, Object>> columns = getColumns(parser);
+			assertThat(columns.size(), is(5));
+			check(columns, 0, "test3-a1", "string", "A");
+			check(columns, 1, "B", "long", "B");
+			check(columns, 2, "D", "string", "D");
+		}
+	}
+
+	private ConfigDiff guess(EmbulkPluginTester tester, String excelFile, String sheetName)
+			throws URISyntaxException {
+		File file = new File(getClass().getResource(excelFile).toURI());
+
+		ConfigSource parser = tester.newConfigSource();
+		parser.set("type", PoiExcelParserPlugin.TYPE);
+		parser.set("sheets", Arrays.asList(sheetName));
+		ConfigSource in = tester.newConfigSource();
+		in.set("type", "file");
+		in.set("path_prefix", file.getAbsolutePath());
+		in.set("parser", parser);
+		ConfigSource exec = tester.newConfigSource();
+		exec.set("guess_plugins", Arrays.asList(PoiExcelParserPlugin.TYPE));
+		ConfigSource config = tester.newConfigSource();
+		config.set("in", in);
+		config.set("exec", exec);
+
+		ConfigDiff diff = tester.guess(config);
+		return diff.getNested("in").getNested("parser");
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<Map<String, Object>> getColumns(ConfigDiff parser) {
+		return parser.get(List.class, "columns");
+	}
+
+	private void check(List<Map<String, Object>> columns, int index, String name, String type, String columnNumber) {
+		Map<String, Object> column = columns.get(index);
+		// System.out.println(column);
+		assertThat(column.get("name"), is((Object) name));
+		assertThat(column.get("type"), is((Object) type));
+		assertThat(column.get("column_number"), is((Object) columnNumber));
+	}
+}
@@ -90,6 +90,42 @@ public class TestPoiExcelParserPlugin_sheets {
 		assertThat(record.getAsLong("number"), is(number));
 	}
 
+	@Theory
+	public void testRowRange(String excelFile) throws ParseException {
+		for (String engine : Arrays.asList("usermodel", "streaming")) {
+			testRowRange(excelFile, engine, newMap("start_row", 3), 3L, 4L, 5L, 6L, 7L, 8L);
+			testRowRange(excelFile, engine, newMap("end_row", 3), 1L, 2L, 3L);
+			Map<String, Object> range = newMap("start_row", 3);
+			range.put("end_row", 6);
+			testRowRange(excelFile, engine, range, 3L, 4L, 5L, 6L);
+			range = newMap("skip_header_lines", 1);
+			range.put("max_rows", 2);
+			testRowRange(excelFile, engine, range, 2L, 3L);
+			testRowRange(excelFile, engine, newMap("max_rows", 0));
+		}
+	}
+
+	private void testRowRange(String excelFile, String engine, Map<String, Object> range, Long... expected)
+			throws ParseException {
+		try (EmbulkPluginTester tester = new EmbulkPluginTester()) {
+			tester.addParserPlugin(PoiExcelParserPlugin.TYPE, PoiExcelParserPlugin.class);
+
+			EmbulkTestParserConfig parser = tester.newParserConfig(PoiExcelParserPlugin.TYPE);
+			parser.set("sheets", Arrays.asList("test1"));
+			parser.set("engine", engine);
+			parser.set("sheet_options", newMap("test1", range));
+			parser.addColumn("row", "long").set("value", "row_number");
+
+			URL inFile = getClass().getResource(excelFile);
+			List<OutputRecord> result = tester.runParser(inFile, parser);
+
+			assertThat(engine + range, result.size(), is(expected.length));
+			for (int i = 0; i < expected.length; i++) {
+				assertThat(engine + range, result.get(i).getAsLong("row"), is(expected[i]));
+			}
+		}
+	}
+
 	@Theory
 	public void testResolveSheetName1(String excelFile) throws ParseException {
 		try (EmbulkPluginTester tester = new EmbulkPluginTester()) {
@@ -0,0 +1,158 @@
+package org.embulk.parser.poi_excel.visitor;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.apache.poi.ss.formula.TwoDEval;
+import org.apache.poi.ss.formula.eval.BlankEval;
+import org.apache.poi.ss.formula.eval.BoolEval;
+import org.apache.poi.ss.formula.eval.ErrorEval;
+import org.apache.poi.ss.formula.eval.NumberEval;
+import org.apache.poi.ss.formula.eval.StringEval;
+import org.apache.poi.ss.formula.eval.ValueEval;
+import org.apache.poi.ss.formula.functions.Function;
+import org.apache.poi.ss.formula.functions.Match;
+import org.junit.Test;
+
+public class TestPoiExcelLookupIndex {
+
+	private static final ValueEval[] VALUES = { new NumberEval(0), new NumberEval(-0.0), new NumberEval(1),
+			new NumberEval(2.5), new NumberEval(-3), new StringEval("abc"), new StringEval("ABC"),
+			new StringEval("b"), new StringEval(""), new StringEval("\u00df"), BoolEval.TRUE, BoolEval.FALSE,
+			BlankEval.instance, ErrorEval.NA };
+
+	@Test
+	public void testMatch() {
+		Function match = new Match();
+		Random random = new Random(1);
+		for (int n = 0; n < 2000; n++) {
+			int size = random.nextInt(20) + 1;
+			ValueEval[] items = new ValueEval[size];
+			for (int i = 0; i < size; i++) {
+				items[i] = VALUES[random.nextInt(VALUES.length)];
+			}
+			if (n % 2 == 0) {
+				// sorted range (approximate match)
+				Arrays.sort(items, new Comparator<ValueEval>() {
+
+					@Override
+					public int compare(ValueEval o1, ValueEval o2) {
+						return Double.compare(toDouble(o1), toDouble(o2));
+					}
+				});
+			}
+			PoiExcelLookupIndex index = new PoiExcelLookupIndex(size);
+			for (int i = 0; i < size; i++) {
+				index.set(i, items[i]);
+			}
+
+			ColumnEval range = new ColumnEval(items);
+			for (ValueEval lookupValue : VALUES) {
+				if (lookupValue instanceof ErrorEval) {
+					continue;
+				}
+				for (int matchType = -1; matchType <= 1; matchType++) {
+					ValueEval expected = match.evaluate(new ValueEval[] { lookupValue, range,
+							new NumberEval(matchType) }, 0, 0);
+					int found;
+					switch (matchType) {
+					case 0:
+						found = index.findExact(lookupValue);
+						break;
+					case 1:
+						found = index.findLargestLessThanOrEqual(lookupValue);
+						break;
+					default:
+						found = index.findSmallestGreaterThanOrEqual(lookupValue);
+						break;
+					}
+					ValueEval actual = (found == PoiExcelLookupIndex.NOT_FOUND) ? ErrorEval.NA : new NumberEval(
+							found + 1);
+					assertThat(lookupValue + " " + matchType, toString(actual), is(toString(expected)));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testWildcard() {
+		PoiExcelLookupIndex index = new PoiExcelLookupIndex(1);
+		index.set(0, new StringEval("abc"));
+		assertThat(index.findExact(new StringEval("a*")), is(PoiExcelLookupIndex.UNSUPPORTED));
+		assertThat(index.findExact(new StringEval("a?c")), is(PoiExcelLookupIndex.UNSUPPORTED));
+		assertThat(index.findExact(new StringEval("ABC")), is(0));
+		assertThat(index.findExact(BlankEval.instance), is(PoiExcelLookupIndex.NOT_FOUND));
+	}
+
+	private static double toDouble(ValueEval value) {
+		if (value instanceof NumberEval) {
+			return ((NumberEval) value).getNumberValue();
+		}
+		if (value instanceof StringEval) {
+			return 100 + ((StringEval) value).getStringValue().length();
+		}
+		if (value instanceof BoolEval) {
+			return ((BoolEval) value).getBooleanValue() ? 201 : 200;
+		}
+		return 300;
+	}
+
+	private static String toString(ValueEval value) {
+		if (value instanceof NumberEval) {
+			return Double.toString(((NumberEval) value).getNumberValue());
+		}
+		return value.toString();
+	}
+
+	private static final class ColumnEval implements TwoDEval {
+		private final ValueEval[] items;
+
+		public ColumnEval(ValueEval[] items) {
+			this.items = items;
+		}
+
+		@Override
+		public ValueEval getValue(int rowIndex, int columnIndex) {
+			return items[rowIndex];
+		}
+
+		@Override
+		public int getWidth() {
+			return 1;
+		}
+
+		@Override
+		public int getHeight() {
+			return items.length;
+		}
+
+		@Override
+		public boolean isRow() {
+			return items.length == 1;
+		}
+
+		@Override
+		public boolean isColumn() {
+			return true;
+		}
+
+		@Override
+		public TwoDEval getRow(int rowIndex) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public TwoDEval getColumn(int columnIndex) {
+			return this;
+		}
+
+		@Override
+		public boolean isSubTotal(int rowIndex, int columnIndex) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package org.embulk.parser.poi_excel.visitor;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.Random;
+
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.junit.Test;
+
+public class TestPoiExcelMergedRegionIndex {
+
+	@Test
+	public void testGet() {
+		Random random = new Random(1);
+		for (int n = 0; n < 500; n++) {
+			int size = random.nextInt(30);
+			CellRangeAddress[] regions = new CellRangeAddress[size];
+			for (int i = 0; i < size; i++) {
+				if (i > 0 && random.nextInt(4) == 0) {
+					// nested or same first row as a previous region
+					CellRangeAddress outer = regions[random.nextInt(i)];
+					int firstRow = outer.getFirstRow();
+					int lastRow = firstRow + random.nextInt(outer.getLastRow() - firstRow + 1);
+					int firstColumn = outer.getFirstColumn() + random.nextInt(2);
+					int lastColumn = Math.max(firstColumn, outer.getLastColumn() - random.nextInt(2));
+					regions[i] = new CellRangeAddress(firstRow, lastRow, firstColumn, lastColumn);
+				} else {
+					// overlapping
+					int firstRow = random.nextInt(40);
+					int firstColumn = random.nextInt(8);
+					regions[i] = new CellRangeAddress(firstRow, firstRow + random.nextInt(10), firstColumn,
+							firstColumn + random.nextInt(4));
+				}
+			}
+
+			PoiExcelMergedRegionIndex index = new PoiExcelMergedRegionIndex(regions);
+			assertThat(index.size(), is(size));
+			for (int r = 0; r < 52; r++) {
+				for (int c = 0; c < 13; c++) {
+					assertThat(index.get(r, c), sameInstance(find(regions, r, c)));
+				}
+			}
+		}
+	}
+
+	// same as the linear search of the merged regions
+	private static CellRangeAddress find(CellRangeAddress[] regions, int r, int c) {
+		for (CellRangeAddress region : regions) {
+			if (region.isInRange(r, c)) {
+				return region;
+			}
+		}
+		return null;
+	}
+
+	@Test
+	public void testGet_firstRegionWins() {
+		CellRangeAddress a = new CellRangeAddress(2, 5, 0, 3);
+		CellRangeAddress b = new CellRangeAddress(0, 9, 0, 9);
+		CellRangeAddress c = new CellRangeAddress(2, 3, 1, 1);
+		PoiExcelMergedRegionIndex index = new PoiExcelMergedRegionIndex(new CellRangeAddress[] { a, b, c });
+
+		// the first region in the sheet wins (not the first in the order of the first row)
+		assertThat(index.get(0, 0), sameInstance(b));
+		assertThat(index.get(2, 0), sameInstance(a));
+		assertThat(index.get(2, 1), sameInstance(a));
+		assertThat(index.get(6, 1), sameInstance(b));
+		assertThat(index.get(10, 0), is(nullValue()));
+
+		index = new PoiExcelMergedRegionIndex(new CellRangeAddress[] { c, a, b });
+		assertThat(index.get(2, 1), sameInstance(c));
+		assertThat(index.get(2, 0), sameInstance(a));
+	}
+
+	@Test
+	public void testGet_empty() {
+		PoiExcelMergedRegionIndex index = new PoiExcelMergedRegionIndex(new CellRangeAddress[0]);
+		assertThat(index.get(0, 0), is(nullValue()));
+	}
+}
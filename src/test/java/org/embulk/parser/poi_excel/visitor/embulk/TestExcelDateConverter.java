@@ -0,0 +1,75 @@
+package org.embulk.parser.poi_excel.visitor.embulk;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.junit.experimental.theories.DataPoints;
+import org.junit.experimental.theories.Theories;
+import org.junit.experimental.theories.Theory;
+import org.junit.runner.RunWith;
+
+@RunWith(Theories.class)
+public class TestExcelDateConverter {
+
+	@DataPoints
+	public static String[] TIME_ZONES = { "UTC", "Asia/Tokyo", "America/New_York", "Europe/London",
+			"Australia/Lord_Howe", "America/Sao_Paulo", "Pacific/Apia", "Asia/Kolkata" };
+
+	@DataPoints
+	public static boolean[] DATE1904 = { false, true };
+
+	@Theory
+	public void testLeapYearQuirk(String zone, boolean date1904) {
+		ExcelDateConverter converter = new ExcelDateConverter(TimeZone.getTimeZone(zone), date1904);
+		for (int i = 0; i <= 70 * 4; i++) {
+			double value = i / 4d;
+			check(converter, value, zone, date1904);
+		}
+	}
+
+	@Theory
+	public void testTransitionDays(String zone, boolean date1904) {
+		TimeZone tz = TimeZone.getTimeZone(zone);
+		ExcelDateConverter converter = new ExcelDateConverter(tz, date1904);
+		// every 15 minutes from 2010 to 2013 (serial of 1900 date system)
+		for (double day = 40179; day < 41275; day++) {
+			for (int q = 0; q < 96; q++) {
+				check(converter, day + q / 96d, zone, date1904);
+			}
+		}
+	}
+
+	@Theory
+	public void testRandom(String zone, boolean date1904) {
+		ExcelDateConverter converter = new ExcelDateConverter(TimeZone.getTimeZone(zone), date1904);
+		Random random = new Random(zone.hashCode());
+		for (int i = 0; i < 20000; i++) {
+			double value;
+			switch (i % 4) {
+			case 0:
+				value = random.nextDouble() * 2958466;
+				break;
+			case 1:
+				// end of the day (rounded to the next day)
+				value = random.nextInt(80000) + 0.999999999;
+				break;
+			case 2:
+				value = random.nextInt(80000) + random.nextInt(86400) / 86400d;
+				break;
+			default:
+				value = random.nextInt(80000);
+				break;
+			}
+			check(converter, value, zone, date1904);
+		}
+	}
+
+	private void check(ExcelDateConverter converter, double value, String zone, boolean date1904) {
+		long expected = DateUtil.getJavaDate(value, date1904, TimeZone.getTimeZone(zone)).getTime();
+		assertThat(zone + " " + date1904 + " " + value, converter.toEpochMilli(value), is(expected));
+	}
+}
@@ -0,0 +1,72 @@
+package org.embulk.parser.poi_excel.visitor.embulk;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import org.embulk.spi.time.Timestamp;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+public class TestFastTimestampParser {
+
+	private static final DateTimeZone TOKYO = DateTimeZone.forID("Asia/Tokyo");
+	private static final DateTimeZone NEW_YORK = DateTimeZone.forID("America/New_York");
+
+	@Test
+	public void testCompile() {
+		assertThat(FastTimestampParser.compile("%Y/%m/%d", TOKYO), notNullValue());
+		assertThat(FastTimestampParser.compile("%Y-%m-%d %H:%M:%S", TOKYO), notNullValue());
+		assertThat(FastTimestampParser.compile("%FT%T%z", TOKYO), notNullValue());
+		assertThat(FastTimestampParser.compile("%Y-%m-%d %H:%M:%S.%N %z", TOKYO), nullValue());
+		assertThat(FastTimestampParser.compile("%m/%d", TOKYO), nullValue());
+		assertThat(FastTimestampParser.compile("%Y%", TOKYO), nullValue());
+	}
+
+	@Test
+	public void testParse() {
+		FastTimestampParser parser = FastTimestampParser.compile("%Y/%m/%d", TOKYO);
+		check(parser.parse("2015/10/4"), new DateTime(2015, 10, 4, 0, 0, 0, TOKYO));
+		check(parser.parse("2015/01/04"), new DateTime(2015, 1, 4, 0, 0, 0, TOKYO));
+		check(parser.parse("2016/2/29"), new DateTime(2016, 2, 29, 0, 0, 0, TOKYO));
+
+		parser = FastTimestampParser.compile("%Y-%m-%d %H:%M:%S", NEW_YORK);
+		check(parser.parse("2015-12-31 23:59:59"), new DateTime(2015, 12, 31, 23, 59, 59, NEW_YORK));
+		check(parser.parse("1900-03-01 01:02:03"), new DateTime(1900, 3, 1, 1, 2, 3, NEW_YORK));
+		// overlap: the earlier offset, gap: shifted forward
+		check(parser.parse("2015-11-01 01:30:00"), new DateTime(NEW_YORK.convertLocalToUTC(new DateTime(2015, 11, 1,
+				1, 30, 0, DateTimeZone.UTC).getMillis(), false), DateTimeZone.UTC));
+		check(parser.parse("2015-03-08 02:30:00"), new DateTime(NEW_YORK.convertLocalToUTC(new DateTime(2015, 3, 8, 2,
+				30, 0, DateTimeZone.UTC).getMillis(), false), DateTimeZone.UTC));
+
+		parser = FastTimestampParser.compile("%FT%T%z", NEW_YORK);
+		check(parser.parse("2015-10-04T12:34:56+09:00"), new DateTime(2015, 10, 4, 12, 34, 56, TOKYO));
+		check(parser.parse("2015-10-04T12:34:56-05:30"), new DateTime(2015, 10, 4, 12, 34, 56,
+				DateTimeZone.forOffsetHoursMinutes(-5, -30)));
+	}
+
+	@Test
+	public void testFallback() {
+		FastTimestampParser parser = FastTimestampParser.compile("%Y-%m-%d %H:%M:%S", TOKYO);
+		assertThat(parser.parse("2015-10-04"), nullValue());
+		assertThat(parser.parse("2015-10-04 12:34:56 extra"), nullValue());
+		assertThat(parser.parse("2015-10-04  12:34:56"), nullValue());
+		assertThat(parser.parse("15-10-04 12:34:56"), nullValue());
+		assertThat(parser.parse("12015-10-04 12:34:56"), nullValue());
+		assertThat(parser.parse("2015-13-04 12:34:56"), nullValue());
+		assertThat(parser.parse("2015-02-29 12:34:56"), nullValue());
+		assertThat(parser.parse("2015-10-04 24:00:00"), nullValue());
+		assertThat(parser.parse("2015-10-04 12:34:60"), nullValue());
+		assertThat(parser.parse("2015-10-04 123:4:56"), nullValue());
+
+		parser = FastTimestampParser.compile("%FT%T%z", TOKYO);
+		assertThat(parser.parse("2015-10-04T12:34:56Z"), nullValue());
+		assertThat(parser.parse("2015-10-04T12:34:56+0900"), nullValue());
+	}
+
+	private void check(Timestamp actual, DateTime expected) {
+		assertThat(actual, is(Timestamp.ofEpochMilli(expected.getMillis())));
+	}
+}
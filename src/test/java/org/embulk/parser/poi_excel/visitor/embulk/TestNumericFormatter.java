@@ -0,0 +1,62 @@
+package org.embulk.parser.poi_excel.visitor.embulk;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestNumericFormatter {
+
+	private static final double[] VALUES = { 0, -0.0, 1, -1, 0.5, 0.125, 0.15, 2.675, -0.004, 123.456, 1e7, -1e15,
+			1e16, 1.5e-7, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+
+	@Test
+	public void testDefault() {
+		NumericFormatter formatter = new NumericFormatter("");
+		for (double value : VALUES) {
+			check(formatter, value, toString(value));
+		}
+		Random random = new Random(1);
+		for (int i = 0; i < 100000; i++) {
+			double value = (i % 2 == 0) ? random.nextInt(20000000) - 10000000 : Double.longBitsToDouble(random
+					.nextLong());
+			check(formatter, value, toString(value));
+		}
+	}
+
+	@Test
+	public void testFormat() {
+		String[] formats = { "%f", "%.0f", "%.2f", "%.3f", "%10.2f", "%-10.3f", "%010.2f", "x%.2f%%", "%e", "%,.2f",
+				"%s" };
+		Random random = new Random(1);
+		for (String format : formats) {
+			NumericFormatter formatter = new NumericFormatter(format);
+			for (double value : VALUES) {
+				check(formatter, value, String.format(format, value));
+			}
+			for (int i = 0; i < 10000; i++) {
+				double value = Math.round(random.nextDouble() * 1000000) / 1000.0 - 500;
+				check(formatter, value, String.format(format, value));
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testIllegalFormat() {
+		new NumericFormatter("%d").format(1);
+	}
+
+	private static String toString(double value) {
+		String s = Double.toString(value);
+		if (s.endsWith(".0")) {
+			return s.substring(0, s.length() - 2);
+		}
+		return s;
+	}
+
+	private void check(NumericFormatter formatter, double value, String expected) {
+		assertThat(Double.toString(value), formatter.format(value), is(expected));
+	}
+}